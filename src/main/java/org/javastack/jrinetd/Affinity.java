@@ -0,0 +1,343 @@
+package org.javastack.jrinetd;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Content-keyed affinity: extract sticky key from initial bytes of client stream
+ */
+public class Affinity {
+	/**
+	 * No key in stream (use source address)
+	 */
+	public static final byte[] NONE = new byte[0];
+	// Synthetic sticky addresses: fdff:ffff:ffff:ffff::/64 + 64 bits of key hash
+	private static final int PREFIX_LEN = 8;
+	private static final String MD_ALG = "MD5";
+
+	private final Type type;
+	private final byte[] name;
+	private final int peekSize;
+
+	private Affinity(final Type type, final String name, final int peekSize) {
+		this.type = type;
+		this.name = ((name == null) ? null : name.getBytes());
+		this.peekSize = peekSize;
+	}
+
+	/**
+	 * Parse affinity config
+	 *
+	 * @param cfg "cookie:name" or "header:name" or "mqtt" or "tls"
+	 * @param peekSize maximum bytes to peek
+	 * @return
+	 */
+	public static Affinity valueOf(final String cfg, final int peekSize) {
+		final int colon = cfg.indexOf(':');
+		final Type type = Type.valueOf(((colon > 0) ? cfg.substring(0, colon) : cfg).toUpperCase());
+		final String name = ((colon > 0) ? cfg.substring(colon + 1) : null);
+		if (((type == Type.COOKIE) || (type == Type.HEADER)) && ((name == null) || name.isEmpty())) {
+			throw new IllegalArgumentException("Invalid affinity (name required): " + cfg);
+		}
+		// Room for PROXY header (max 107 bytes)
+		return new Affinity(type, name, Math.min(peekSize, Constants.BUFFER_LEN - 108));
+	}
+
+	/**
+	 * Maximum bytes to peek
+	 *
+	 * @return
+	 */
+	public int getPeekSize() {
+		return peekSize;
+	}
+
+	/**
+	 * Extract key from initial bytes
+	 *
+	 * @param bb buffer with initial bytes (from 0 to limit)
+	 * @return key, {@link #NONE} if stream has no key, or null if more bytes are needed
+	 */
+	public byte[] extract(final ByteBuffer bb) {
+		if (bb.limit() < 1) {
+			return null;
+		}
+		switch (type) {
+			case COOKIE:
+			case HEADER:
+				return extractHTTP(bb);
+			case MQTT:
+				return extractMQTT(bb);
+			case TLS:
+				return extractTLS(bb);
+		}
+		return NONE;
+	}
+
+	private byte[] extractHTTP(final ByteBuffer bb) {
+		final int len = bb.limit();
+		// Request line: METHOD SP URI SP VERSION
+		int i = 0;
+		for (; i < len; i++) {
+			final int c = bb.get(i);
+			if (c == ' ') {
+				break;
+			}
+			if ((c < 'A') || (c > 'Z')) {
+				return NONE;
+			}
+		}
+		if (i == 0) {
+			return NONE;
+		}
+		int eol = indexOf(bb, i, '\n');
+		while (eol >= 0) {
+			final int start = eol + 1;
+			eol = indexOf(bb, start, '\n');
+			if (eol < 0) {
+				break;
+			}
+			final int end = (((eol > start) && (bb.get(eol - 1) == '\r')) ? (eol - 1) : eol);
+			if (end == start) {
+				return NONE; // End of headers
+			}
+			final int colon = indexOf(bb, start, ':');
+			if ((colon < 0) || (colon > end)) {
+				continue;
+			}
+			if (type == Type.HEADER) {
+				if (equalsIgnoreCase(bb, start, colon, name)) {
+					return value(bb, colon + 1, end);
+				}
+			} else if (equalsIgnoreCase(bb, start, colon, "Cookie".getBytes())) {
+				// Cookie: n1=v1; n2=v2
+				int p = colon + 1;
+				while (p < end) {
+					int sep = indexOf(bb, p, ';');
+					if ((sep < 0) || (sep > end)) {
+						sep = end;
+					}
+					while ((p < sep) && (bb.get(p) == ' ')) {
+						p++;
+					}
+					final int eq = indexOf(bb, p, '=');
+					if ((eq > 0) && (eq < sep) && equals(bb, p, eq, name)) {
+						return value(bb, eq + 1, sep);
+					}
+					p = sep + 1;
+				}
+			}
+		}
+		return null;
+	}
+
+	private byte[] extractMQTT(final ByteBuffer bb) {
+		final int len = bb.limit();
+		// Fixed header: CONNECT packet
+		if ((bb.get(0) & 0xF0) != 0x10) {
+			return NONE;
+		}
+		int p = 1;
+		for (int b = 0x80; (b & 0x80) != 0; p++) {
+			if (p >= len) {
+				return null;
+			}
+			if (p > 4) {
+				return NONE;
+			}
+			b = bb.get(p);
+		}
+		// Variable header: protocol name, level, flags, keepalive
+		if ((p + 2) > len) {
+			return null;
+		}
+		p += 2 + getShort(bb, p);
+		if ((p + 4) > len) {
+			return null;
+		}
+		final int level = bb.get(p);
+		p += 4;
+		if (level >= 5) {
+			// Properties
+			int propLen = 0;
+			int shift = 0;
+			for (int b = 0x80; (b & 0x80) != 0; p++, shift += 7) {
+				if (p >= len) {
+					return null;
+				}
+				if (shift > 21) {
+					return NONE;
+				}
+				b = bb.get(p);
+				propLen |= ((b & 0x7F) << shift);
+			}
+			p += propLen;
+		}
+		// Payload: client identifier
+		if ((p + 2) > len) {
+			return null;
+		}
+		final int idLen = getShort(bb, p);
+		p += 2;
+		if (idLen == 0) {
+			return NONE;
+		}
+		if ((p + idLen) > len) {
+			return null;
+		}
+		return bytes(bb, p, p + idLen);
+	}
+
+	private byte[] extractTLS(final ByteBuffer bb) {
+		final int len = bb.limit();
+		// Record: handshake(22), version(2), length(2)
+		if (bb.get(0) != 0x16) {
+			return NONE;
+		}
+		// Handshake: client_hello(1), length(3), version(2), random(32), session_id(1+n)
+		if (len < 6) {
+			return null;
+		}
+		if (bb.get(5) != 0x01) {
+			return NONE;
+		}
+		final int p = 5 + 4 + 2 + 32;
+		if (len <= p) {
+			return null;
+		}
+		final int idLen = (bb.get(p) & 0xFF);
+		if (idLen == 0) {
+			return NONE;
+		}
+		if ((p + 1 + idLen) > len) {
+			return null;
+		}
+		return bytes(bb, p + 1, p + 1 + idLen);
+	}
+
+	private static final int getShort(final ByteBuffer bb, final int p) {
+		return (((bb.get(p) & 0xFF) << 8) | (bb.get(p + 1) & 0xFF));
+	}
+
+	private static final int indexOf(final ByteBuffer bb, final int from, final char c) {
+		final int len = bb.limit();
+		for (int i = from; i < len; i++) {
+			if (bb.get(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static final boolean equals(final ByteBuffer bb, int start, int end, final byte[] s) {
+		while ((end > start) && (bb.get(end - 1) == ' ')) {
+			end--;
+		}
+		if ((end - start) != s.length) {
+			return false;
+		}
+		for (int i = 0; i < s.length; i++) {
+			if (bb.get(start + i) != s[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final boolean equalsIgnoreCase(final ByteBuffer bb, final int start, final int end,
+			final byte[] s) {
+		if ((end - start) != s.length) {
+			return false;
+		}
+		for (int i = 0; i < s.length; i++) {
+			if (Character.toLowerCase((char) bb.get(start + i)) != Character.toLowerCase((char) s[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final byte[] value(final ByteBuffer bb, int start, int end) {
+		while ((start < end) && (bb.get(start) == ' ')) {
+			start++;
+		}
+		while ((end > start) && (bb.get(end - 1) == ' ')) {
+			end--;
+		}
+		return ((start == end) ? NONE : bytes(bb, start, end));
+	}
+
+	private static final byte[] bytes(final ByteBuffer bb, final int start, final int end) {
+		final byte[] b = new byte[end - start];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = bb.get(start + i);
+		}
+		return b;
+	}
+
+	/**
+	 * Map key to a synthetic sticky address (hashed)
+	 *
+	 * @param key
+	 * @return
+	 */
+	public static InetAddress toStickyAddress(final byte[] key) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance(MD_ALG);
+			final byte[] h = md.digest(key);
+			final byte[] b = new byte[16];
+			b[0] = (byte) 0xFD;
+			for (int i = 1; i < PREFIX_LEN; i++) {
+				b[i] = (byte) 0xFF;
+			}
+			System.arraycopy(h, 0, b, PREFIX_LEN, 16 - PREFIX_LEN);
+			return IpAddress.getAddressByBytes(b);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Check if address is a synthetic sticky address (bitmask must not be applied)
+	 *
+	 * @param addr
+	 * @return
+	 */
+	public static boolean isStickyAddress(final InetAddress addr) {
+		final byte[] b = addr.getAddress();
+		if ((b.length != 16) || (b[0] != (byte) 0xFD)) {
+			return false;
+		}
+		for (int i = 1; i < PREFIX_LEN; i++) {
+			if (b[i] != (byte) 0xFF) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "type=" + type + ((name != null) ? (" name=" + new String(name)) : "") + " peek=" + peekSize;
+	}
+
+	public enum Type {
+		/**
+		 * HTTP Cookie value
+		 */
+		COOKIE,
+		/**
+		 * HTTP Header value
+		 */
+		HEADER,
+		/**
+		 * MQTT CONNECT client identifier
+		 */
+		MQTT,
+		/**
+		 * TLS ClientHello session ID
+		 */
+		TLS;
+	}
+}
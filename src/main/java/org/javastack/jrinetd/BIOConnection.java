@@ -154,14 +154,14 @@ public class BIOConnection {
 
 		public InputStream getInputStream() throws IOException {
 			if (is == null) {
-				is = new BufferedInputStream(sock.getInputStream(), 256);
+				is = new BufferedInputStream(sock.getInputStream(), Constants.CLUSTER_BUFFER_LEN);
 			}
 			return is;
 		}
 
 		public OutputStream getOutputStream() throws IOException {
 			if (os == null) {
-				os = new BufferedOutputStream(sock.getOutputStream(), 256);
+				os = new BufferedOutputStream(sock.getOutputStream(), Constants.CLUSTER_BUFFER_LEN);
 			}
 			return os;
 		}
@@ -0,0 +1,216 @@
+package org.javastack.jrinetd;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime statistics of a resolved backend address (lock-free)
+ */
+public class BackendStats {
+	private final AtomicInteger inflight = new AtomicInteger(0);
+	private final AtomicLong ewmaLatency = new AtomicLong(Double.doubleToLongBits(0d)); // micros
+	private final ConcurrencyLimit limit = new ConcurrencyLimit();
+	private final RateLimit rate;
+	private final long created;
+	private volatile long lastFailure = 0;
+	private volatile long lastSuccess = 0;
+	// Failure reported by other node of cluster (cleared by local success)
+	private volatile long remoteFailure = 0;
+	// Connections of other nodes of cluster (reported periodically)
+	private volatile int remote = 0;
+	private volatile long remoteUpdated = 0;
+
+	/**
+	 * Create stats for a backend
+	 *
+	 * @param warm if true, backend is not subject to slow-start (known since startup)
+	 * @param maxRate maximum new connections per second (0 unlimited)
+	 */
+	public BackendStats(final boolean warm, final int maxRate) {
+		this.created = (warm ? 0 : System.currentTimeMillis());
+		this.rate = ((maxRate > 0) ? new RateLimit(maxRate) : null);
+	}
+
+	/**
+	 * Current connections (connecting or bridged) to this backend
+	 *
+	 * @return
+	 */
+	public int getInflight() {
+		return inflight.get();
+	}
+
+	/**
+	 * Connections of other nodes of cluster to this backend (0 if last report is stale)
+	 *
+	 * @return
+	 */
+	public int getRemoteInflight() {
+		return (((System.currentTimeMillis() - remoteUpdated) > Constants.CLUSTER_LOAD_STALE) ? 0 : remote);
+	}
+
+	/**
+	 * Connections of all nodes of cluster to this backend (local if not clustered)
+	 *
+	 * @return
+	 */
+	public int getClusterInflight() {
+		return (getInflight() + getRemoteInflight());
+	}
+
+	/**
+	 * Smoothed connect latency in microseconds (0 if unknown)
+	 *
+	 * @return
+	 */
+	public double getLatency() {
+		return Double.longBitsToDouble(ewmaLatency.get());
+	}
+
+	/**
+	 * Adaptive limit of concurrent connections
+	 *
+	 * @return
+	 */
+	public ConcurrencyLimit getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Backend has reached his adaptive concurrency limit
+	 *
+	 * @return
+	 */
+	public boolean isSaturated() {
+		return (getInflight() >= limit.get());
+	}
+
+	/**
+	 * Backend is below static limits of concurrent connections (all nodes of cluster) and new
+	 * connections per second
+	 *
+	 * @param maxConn maximum concurrent connections (0 unlimited)
+	 * @return
+	 */
+	public boolean isBelowLimits(final int maxConn) {
+		if ((maxConn > 0) && (getClusterInflight() >= maxConn)) {
+			return false;
+		}
+		return ((rate == null) || rate.isAvailable());
+	}
+
+	/**
+	 * Backend is considered healthy if has not failed recently (here or in other node of cluster)
+	 *
+	 * @return
+	 */
+	public boolean isHealthy() {
+		final long now = System.currentTimeMillis();
+		return ((now - lastFailure) > Constants.BACKEND_FAIL_TIME)
+				&& ((now - remoteFailure) > Constants.BACKEND_FAIL_TIME);
+	}
+
+	/**
+	 * Effective weight (0-1] of this backend, ramps linearly during slow-start window after the backend
+	 * is added or recovered from a failure
+	 *
+	 * @param slowStart window in millis (0 disabled)
+	 * @return
+	 */
+	public double getWeight(final long slowStart) {
+		if (slowStart <= 0) {
+			return 1d;
+		}
+		final long lastFailure = this.lastFailure;
+		final long start = ((lastFailure == 0) ? created : //
+				Math.max(created, lastFailure + Constants.BACKEND_FAIL_TIME));
+		final long elapsed = System.currentTimeMillis() - start;
+		if (elapsed >= slowStart) {
+			return 1d;
+		}
+		if (elapsed <= 0) {
+			return Constants.SLOWSTART_MIN_WEIGHT;
+		}
+		return Constants.SLOWSTART_MIN_WEIGHT + ((1d - Constants.SLOWSTART_MIN_WEIGHT) * elapsed / slowStart);
+	}
+
+	/**
+	 * Score for load balancing (lower is better)
+	 *
+	 * @return
+	 */
+	public double getScore() {
+		return (getLatency() + 1d) * (getClusterInflight() + 1);
+	}
+
+	void acquire() {
+		inflight.incrementAndGet();
+		if (rate != null) {
+			rate.acquire();
+		}
+	}
+
+	void release() {
+		inflight.decrementAndGet();
+	}
+
+	void setRemote(final int connections, final long now) {
+		remote = connections;
+		remoteUpdated = now;
+	}
+
+	/**
+	 * Failure reported by other node of cluster, ignored if this node connected recently (one node with
+	 * network problems must not eject healthy backends everywhere)
+	 *
+	 * @param now
+	 */
+	void setRemoteFailure(final long now) {
+		if ((now - lastSuccess) > Constants.BACKEND_FAIL_TIME) {
+			remoteFailure = now;
+		}
+	}
+
+	void onConnected(final long latencyNanos) {
+		lastSuccess = System.currentTimeMillis();
+		remoteFailure = 0;
+		updateLatency(latencyNanos / 1000d);
+	}
+
+	void onResponse(final long latencyNanos) {
+		limit.onSample(latencyNanos, getInflight());
+	}
+
+	/**
+	 * Connect failed
+	 *
+	 * @return true if backend was healthy here (new failure, reported to cluster)
+	 */
+	boolean onFailed() {
+		final long now = System.currentTimeMillis();
+		final boolean healthy = ((now - lastFailure) > Constants.BACKEND_FAIL_TIME);
+		lastFailure = now;
+		limit.onDrop();
+		// Penalize as if connect took the full penalty time
+		updateLatency(Constants.BACKEND_FAIL_PENALTY * 1000d);
+		return healthy;
+	}
+
+	private void updateLatency(final double sample) {
+		while (true) {
+			final long oldBits = ewmaLatency.get();
+			final double old = Double.longBitsToDouble(oldBits);
+			final double ewma = ((old == 0d) ? sample : //
+					(old + (Constants.BACKEND_EWMA_ALPHA * (sample - old))));
+			if (ewmaLatency.compareAndSet(oldBits, Double.doubleToLongBits(ewma))) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "inflight=" + getInflight() + " remote=" + getRemoteInflight() + " latency=" + ((long) getLatency()) + "us limit=" + limit
+				+ " healthy=" + isHealthy();
+	}
+}
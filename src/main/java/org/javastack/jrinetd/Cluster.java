@@ -1,46 +1,102 @@
 package org.javastack.jrinetd;
 
-import java.io.EOFException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-import org.javastack.jrinetd.BIOConnection.Connection;
-import org.javastack.jrinetd.BIOConnection.Listener;
+import org.javastack.jrinetd.NIOConnection.EventLoop;
+import org.javastack.jrinetd.NIOConnection.Handler;
+import org.javastack.jrinetd.NIOConnection.Link;
+import org.javastack.jrinetd.NIOConnection.Listener;
+import org.javastack.jrinetd.NIOConnection.Tickable;
+import org.javastack.jrinetd.StickyStore.StickyEntry;
 
-public abstract class Cluster implements Runnable {
+/**
+ * Cluster links (replication of stickies), all served by a shared NIO event loop
+ */
+public abstract class Cluster implements Runnable, Handler, Tickable {
+	// Old protocol (unframed): opcode + message
 	private static final int OP_NOP = 0x00;
 	private static final int OP_NEW = 0x01;
+	// Framed protocol: both peers send HELLO + version, then frames
+	private static final int HELLO = 0xCE;
+	private static final int VERSION = 5;
+	private static final int FRAME_HEARTBEAT = 0x00;
+	private static final int FRAME_ENTRIES = 0x01; // count(4) + stickies
+	private static final int FRAME_DIGEST = 0x02; // client to server: bucket digests of stores
+	private static final int FRAME_SYNCED = 0x03; // initial sync completed
+	private static final int FRAME_LEASES = 0x04; // count(4) + [ sticky + expires(8) ] (version 3)
+	private static final int VERSION_LEASES = 3;
+	private static final int FRAME_LOAD = 0x05; // count(2) + [ backend(addr) + connections(4) ] (version 4)
+	private static final int VERSION_LOAD = 4;
+	private static final int FRAME_HEALTH = 0x06; // count(2) + [ failed backend(addr) ] (version 5)
+	private static final int VERSION_HEALTH = 5;
+	private static final int FLAG_DEFLATE = 0x01; // payload: raw length(4) + deflated data
+	private static final byte[] HEARTBEAT_OLD = new byte[] {
+		OP_NOP
+	};
+	private static final byte[] HEARTBEAT_FRAME = ClusterMessage.frame(FRAME_HEARTBEAT, new byte[0], null);
 
+	// Tasks out of event loop (digests, initial sync)
 	private static final ExecutorService threadPool = Executors.newCachedThreadPool();
 	private static final AtomicInteger runningClusters = new AtomicInteger(0);
 	private static final AtomicInteger idSeq = new AtomicInteger();
 	private static final HashSet<Cluster> instances = new HashSet<Cluster>();
+	private static final HashSet<Long> syncedClusters = new HashSet<Long>();
+	private static final Random random = new Random();
 
 	final long clusterId;
 	final InetSocketAddress address;
 	final Options opts;
 	final GlobalEventHandler events;
+	final int heartbeat;
 
 	final int id = getId();
 	final AtomicBoolean running = new AtomicBoolean(false);
+	private final AtomicBoolean registered = new AtomicBoolean(false);
+	volatile EventLoop loop = null;
+	// Decoding state (event loop)
+	private Inflater inflater = null;
+	private byte[] inflated = null;
 
 	public Cluster(final String clusterName, final String address, final Options opts,
 			final GlobalEventHandler events) throws IOException {
-		this.clusterId = IOHelper.longIdFromString(clusterName);
-		this.address = IOHelper.parseAddress(address);
+		this(IOHelper.longIdFromString(clusterName), IOHelper.parseAddress(address), opts, events);
+	}
+
+	Cluster(final long clusterId, final InetSocketAddress address, final Options opts,
+			final GlobalEventHandler events) {
+		this.clusterId = clusterId;
+		this.address = address;
 		this.opts = opts;
 		this.events = events;
+		this.heartbeat = opts.getInteger(Options.P_HEARTBEAT, Constants.CLUSTER_HEARTBEAT).intValue();
 		synchronized (instances) {
 			instances.add(this);
 		}
@@ -64,6 +120,78 @@ public abstract class Cluster implements Runnable {
 		threadPool.submit(r);
 	}
 
+	/**
+	 * Check if initial sync of cluster is completed (once per process, survives reloads)
+	 * 
+	 * @param clusterId
+	 * @return null if there is no cluster-out for this cluster, true if any completed initial sync
+	 */
+	public static Boolean isSynced(final long clusterId) {
+		Boolean synced = null;
+		synchronized (instances) {
+			if (syncedClusters.contains(Long.valueOf(clusterId))) {
+				return Boolean.TRUE;
+			}
+			for (final Cluster c : instances) {
+				if (c.waitsSync() && (c.clusterId == clusterId)) {
+					synced = Boolean.FALSE;
+				}
+			}
+		}
+		return synced;
+	}
+
+	static void setSynced(final long clusterId) {
+		synchronized (instances) {
+			syncedClusters.add(Long.valueOf(clusterId));
+		}
+	}
+
+	/**
+	 * Forget a finished cluster (transient links)
+	 * 
+	 * @param c
+	 */
+	static void unregister(final Cluster c) {
+		synchronized (instances) {
+			instances.remove(c);
+		}
+	}
+
+	/**
+	 * This cluster receives an initial sync from peers
+	 * 
+	 * @return
+	 */
+	boolean waitsSync() {
+		return false;
+	}
+
+	/**
+	 * Connections per backend reported by other node (called from event loop)
+	 * 
+	 * @param node
+	 * @param connections
+	 */
+	void onLoad(final InetSocketAddress node, final Map<InetSocketAddress, Integer> connections) {
+		final Map<InetSocketAddress, Integer> sums = ClusterLoad.getInstance(clusterId).update(node,
+				connections, System.currentTimeMillis());
+		if (events != null) {
+			events.onClusterLoad(clusterId, sums);
+		}
+	}
+
+	/**
+	 * Backends failed in other node (called from event loop)
+	 * 
+	 * @param failed
+	 */
+	void onHealth(final Collection<InetSocketAddress> failed) {
+		if ((events != null) && !failed.isEmpty()) {
+			events.onClusterHealth(clusterId, failed);
+		}
+	}
+
 	public static void shutdown() {
 		synchronized (instances) {
 			final Iterator<Cluster> i = instances.iterator();
@@ -94,6 +222,15 @@ public abstract class Cluster implements Runnable {
 	void stop() {
 		Log.info(getName(), "Stoping: " + getAddress());
 		running.set(false);
+		if (loop != null) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					close();
+					end();
+				}
+			});
+		}
 	}
 
 	public boolean isRunning() {
@@ -102,32 +239,139 @@ public abstract class Cluster implements Runnable {
 
 	@Override
 	public void run() {
+		Log.info(getName(), "Started: " + IOHelper.inetAddrToHoman(getAddress()));
+		running.set(true);
+		runningClusters.incrementAndGet();
+		registered.set(true);
 		try {
-			Thread.currentThread().setName(
-					getClass().getSimpleName() + "-" + id + "-" + IOHelper.inetAddrToHoman(getAddress()));
-			Log.info(getName(), "Started");
-			running.set(true);
-			runningClusters.incrementAndGet();
-			process();
+			loop = EventLoop.getInstance();
 		} catch (Throwable t) {
 			Log.error(getName(), "Exception: " + t, t);
-		} finally {
+			end();
+			return;
+		}
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!isRunning()) {
+					end();
+					return;
+				}
+				try {
+					start();
+					loop.addTickable(Cluster.this);
+				} catch (Throwable t) {
+					Log.error(getName(), "Exception: " + t, t);
+					close();
+					end();
+				}
+			}
+		});
+	}
+
+	private void end() {
+		if (registered.compareAndSet(true, false)) {
+			if (loop != null) {
+				loop.removeTickable(this);
+			}
 			runningClusters.decrementAndGet();
 			running.compareAndSet(true, false);
 			Log.info(getName(), "Ended");
 		}
 	}
 
-	abstract void process();
+	/**
+	 * Open links (called from event loop)
+	 * 
+	 * @throws IOException
+	 */
+	abstract void start() throws IOException;
+
+	/**
+	 * Close links (called from event loop)
+	 */
+	abstract void close();
+
+	/**
+	 * Send heartbeat if link is idle and detect failed links
+	 * 
+	 * @param link
+	 * @param now
+	 * @param detect peer sends heartbeats too (close link if silent)
+	 * @param hb heartbeat message
+	 * @return false if link was closed
+	 */
+	boolean checkLink(final Link link, final long now, final boolean detect, final byte[] hb) {
+		if (detect && ((now - link.lastRead) > (heartbeat * Constants.CLUSTER_HEARTBEAT_MISSES))) {
+			Log.warn(getName(), "Heartbeat timeout: " + link.getRemoteAddress());
+			link.close();
+			return false;
+		}
+		if ((now - link.lastWrite) >= heartbeat) {
+			link.write(ByteBuffer.wrap(hb));
+		}
+		return true;
+	}
+
+	/**
+	 * Payload of frame, inflated if compressed (reused buffer, valid until next call)
+	 * 
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	ByteBuffer payload(final Frame f) throws IOException {
+		if ((f.flags & FLAG_DEFLATE) == 0) {
+			return f.payload;
+		}
+		final ByteBuffer p = f.payload;
+		final int rawLen = p.getInt();
+		if ((rawLen < 0) || (rawLen > Constants.CLUSTER_MAX_MESSAGE)) {
+			throw new IOException("Invalid Frame: length=" + rawLen);
+		}
+		if ((inflated == null) || (inflated.length < rawLen)) {
+			inflated = new byte[Math.max(rawLen, Constants.CLUSTER_BUFFER_LEN)];
+		}
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		inflater.reset();
+		inflater.setInput(p.array(), p.arrayOffset() + p.position(), p.remaining());
+		int len = 0;
+		try {
+			while (!inflater.finished() && (len < rawLen)) {
+				final int n = inflater.inflate(inflated, len, rawLen - len);
+				if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				len += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid Frame: " + e);
+		}
+		if (len != rawLen) {
+			throw new IOException("Invalid Frame: inflated=" + len + " expected=" + rawLen);
+		}
+		return ByteBuffer.wrap(inflated, 0, rawLen);
+	}
 
 	static class ClusterServer extends Cluster {
 		private static final HashMap<Long, ClusterServer> servers = new HashMap<Long, ClusterServer>();
-		private final Listener listen;
+		private Listener listen = null;
+		// Replication queue (bounded, lock-free), drained by event loop
+		private final ConcurrentLinkedQueue<StickyMessage> queue = new ConcurrentLinkedQueue<StickyMessage>();
+		private final AtomicInteger queued = new AtomicInteger(0);
+		private final AtomicLong dropped = new AtomicLong(0);
+		// Failed backends (only transitions to failed, few), drained by event loop
+		private final ConcurrentLinkedQueue<InetSocketAddress> healthQueue = new ConcurrentLinkedQueue<InetSocketAddress>();
+		private final LinkedHashMap<StickyMessage.Key, StickyMessage> batch = new LinkedHashMap<StickyMessage.Key, StickyMessage>();
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private long nextLoad = 0;
+		private boolean idle = true;
 
 		ClusterServer(final String clusterName, final String address, final Options opts,
 				final GlobalEventHandler events) throws IOException {
 			super(clusterName, address, opts, events);
-			listen = BIOConnection.getListener(getAddress());
 			if (servers.put(Long.valueOf(clusterId), this) != null) {
 				Log.warn(getName(), "ClusterId already defined: " + clusterId + " address=" + getAddress());
 			}
@@ -142,159 +386,833 @@ public abstract class Cluster implements Runnable {
 		}
 
 		@Override
-		void stop() {
-			super.stop();
+		void start() throws IOException {
+			listen = NIOConnection.listen(loop, getAddress(), this);
+			Log.info(getName(), "Listening: " + IOHelper.inetAddrToHoman(getAddress()));
+		}
+
+		@Override
+		void close() {
 			IOHelper.closeSilent(listen);
+			listen = null;
 		}
 
 		@Override
-		void process() {
-			while (isRunning()) {
-				try {
-					final Connection c = BIOConnection.acceptConnection(listen, //
-							Constants.CLUSTER_ACCEPT_TIMEOUT, //
-							Constants.CLUSTER_READ_TIMEOUT);
-					if ((events != null) && (c != null)) {
-						events.onClusterClient(clusterId, c);
+		public void onOpen(final Link link) {
+			Log.info(getName(), "Cluster client connected: " + link.getRemoteAddress());
+			link.attachment = new Peer();
+		}
+
+		@Override
+		public void onRead(final Link link, final ByteBuffer in) throws IOException {
+			final Peer peer = (Peer) link.attachment;
+			while (in.hasRemaining()) {
+				if (!peer.framed) {
+					if (peer.handshake) {
+						throw new IOException("Unexpected data from old cluster client");
+					}
+					if (in.remaining() < 2) {
+						return;
 					}
-				} catch (IOException e) {
-					if (isRunning()) {
-						Log.error(getName(), "IOException: " + e, e);
+					final int b = (in.get() & 0xFF);
+					if (b != HELLO) {
+						throw new IOException("Invalid Operation: " + b);
 					}
+					peer.version = Math.min(VERSION, (in.get() & 0xFF));
+					peer.framed = true;
+					link.write(ByteBuffer.wrap(ClusterMessage.hello()));
+					Log.info(getName(), "Cluster client protocol version: " + peer.version);
+					continue;
+				}
+				final Frame f = Frame.read(in);
+				if (f == null) {
+					return;
+				}
+				peer.heartbeats = true;
+				switch (f.type) {
+					case FRAME_HEARTBEAT: {
+						break;
+					}
+					case FRAME_DIGEST: {
+						final Map<Long, long[]> digests;
+						try {
+							digests = ClusterMessage.deserializeDigests(payload(f));
+						} catch (BufferUnderflowException e) {
+							throw new IOException("Invalid Frame: truncated digests");
+						}
+						if (peer.handshake) {
+							Log.warn(getName(), "Late digests from cluster client (ignored)");
+						} else {
+							handshake(link, digests);
+						}
+						break;
+					}
+					default:
+						// Newer peers may send frames unknown here
+						if (Log.isDebugEnabled()) {
+							Log.debug(getName(), "Ignored frame type: " + f.type);
+						}
 				}
 			}
 		}
 
-		public void send(final Connection c, final StickyMessage msg) {
-			try {
-				c.write(OP_NEW);
-				ClusterMessage.serializeStickyMessage(c.getOutputStream(), msg);
-			} catch (IOException e) {
-				IOHelper.closeSilent(c);
-				Log.error(getName(), "IOException: " + e);
+		@Override
+		public void onClose(final Link link) {
+			Log.info(getName(), "Cluster client disconnected: " + link.getRemoteAddress());
+		}
+
+		private void handshake(final Link link, final Map<Long, long[]> digests) {
+			((Peer) link.attachment).handshake = true;
+			if (events != null) {
+				newTask(new Runnable() {
+					@Override
+					public void run() {
+						events.onClusterClient(clusterId, link, digests);
+					}
+				});
+			}
+		}
+
+		@Override
+		public void onTick(final long now) {
+			if (listen == null) {
+				return;
+			}
+			final Iterator<Link> i = listen.connections();
+			while (i.hasNext()) {
+				final Link link = i.next();
+				final Peer peer = (Peer) link.attachment;
+				if (!peer.framed && !peer.handshake) {
+					if ((now - link.created) > Constants.CLUSTER_READ_TIMEOUT) {
+						// Old clients send nothing, then get a full sync (unframed)
+						Log.info(getName(), "No hello from cluster client (old protocol, full sync)");
+						handshake(link, null);
+					}
+					continue;
+				}
+				checkLink(link, now, peer.heartbeats, (peer.framed ? HEARTBEAT_FRAME : HEARTBEAT_OLD));
+			}
+			// Drain replication queue, coalesce repeated keys (last wins) and write batches to clients
+			while (!queue.isEmpty()) {
+				StickyMessage msg = null;
+				while ((batch.size() < Constants.CLUSTER_BATCH_SIZE) && ((msg = queue.poll()) != null)) {
+					queued.decrementAndGet();
+					final StickyMessage.Key key = msg.getKey();
+					batch.remove(key); // keep order of last update
+					batch.put(key, msg);
+				}
+				byte[] leases = null, framed = null, old = null;
+				final Iterator<Link> j = listen.connections();
+				while (j.hasNext()) {
+					final Link link = j.next();
+					final Peer peer = (Peer) link.attachment;
+					if (peer.framed && (peer.version >= VERSION_LEASES)) {
+						if (leases == null) {
+							final byte[] entries = ClusterMessage.serializeEntries(batch.values(), true);
+							leases = ClusterMessage.frame(FRAME_LEASES, entries, deflater);
+						}
+						link.write(ByteBuffer.wrap(leases));
+					} else if (peer.framed) {
+						if (framed == null) {
+							final byte[] entries = ClusterMessage.serializeEntries(batch.values(), false);
+							framed = ClusterMessage.frame(FRAME_ENTRIES, entries, deflater);
+						}
+						link.write(ByteBuffer.wrap(framed));
+					} else if (peer.handshake) {
+						if (old == null) {
+							old = ClusterMessage.serializeStickyMessages(batch.values());
+						}
+						link.write(ByteBuffer.wrap(old));
+					}
+				}
+				onBroadcast(batch.values());
+				batch.clear();
+			}
+			if (!healthQueue.isEmpty()) {
+				final LinkedHashSet<InetSocketAddress> failed = new LinkedHashSet<InetSocketAddress>();
+				InetSocketAddress backend = null;
+				while ((backend = healthQueue.poll()) != null) {
+					failed.add(backend);
+				}
+				publishHealth(failed);
+			}
+			if ((now >= nextLoad) && (events != null)) {
+				nextLoad = now + Constants.CLUSTER_LOAD_INTERVAL;
+				publishLoad(events.getClusterLoad(clusterId));
+			}
+		}
+
+		/**
+		 * Report connections per backend of this node to clients (idle reports are not repeated, old
+		 * reports expire in receivers)
+		 */
+		private void publishLoad(final Map<InetSocketAddress, Integer> connections) {
+			boolean idle = true;
+			for (final Integer c : connections.values()) {
+				if (c.intValue() > 0) {
+					idle = false;
+					break;
+				}
+			}
+			if (idle && this.idle) {
+				return;
 			}
+			this.idle = idle;
+			byte[] frame = null;
+			final Iterator<Link> i = listen.connections();
+			while (i.hasNext()) {
+				final Link link = i.next();
+				final Peer peer = (Peer) link.attachment;
+				if (peer.framed && (peer.version >= VERSION_LOAD)) {
+					if (frame == null) {
+						frame = ClusterMessage.frame(FRAME_LOAD, ClusterMessage.serializeLoad(connections), null);
+					}
+					link.write(ByteBuffer.wrap(frame));
+				}
+			}
+			onPublishLoad(connections);
 		}
 
-		public void send(final StickyMessage msg) {
-			final Iterator<Connection> i = listen.connections();
+		/**
+		 * Send failed backends to clients (deltas, recovery is never sent: each node confirms it)
+		 */
+		private void publishHealth(final Collection<InetSocketAddress> failed) {
+			byte[] frame = null;
+			final Iterator<Link> i = listen.connections();
 			while (i.hasNext()) {
-				final Connection c = i.next();
-				send(c, msg);
+				final Link link = i.next();
+				final Peer peer = (Peer) link.attachment;
+				if (peer.framed && (peer.version >= VERSION_HEALTH)) {
+					if (frame == null) {
+						frame = ClusterMessage.frame(FRAME_HEALTH, ClusterMessage.serializeBackends(failed), null);
+					}
+					link.write(ByteBuffer.wrap(frame));
+				}
 			}
+			onPublishHealth(failed);
+		}
+
+		/**
+		 * Failed backends of this node (called from event loop)
+		 * 
+		 * @param failed
+		 */
+		void onPublishHealth(final Collection<InetSocketAddress> failed) {
+		}
+
+		/**
+		 * Report of connections per backend of this node (called from event loop)
+		 * 
+		 * @param connections
+		 */
+		void onPublishLoad(final Map<InetSocketAddress, Integer> connections) {
+		}
+
+		/**
+		 * Batch of local updates sent to clients (called from event loop)
+		 * 
+		 * @param msgs
+		 */
+		void onBroadcast(final Collection<StickyMessage> msgs) {
+		}
+
+		/**
+		 * Send part of initial sync to new client (called out of event loop, waits while client drains)
+		 * 
+		 * @param link
+		 * @param msgs
+		 * @param last initial sync completed with this part
+		 */
+		public void send(final Link link, final List<StickyMessage> msgs, final boolean last) {
+			final Peer peer = (Peer) link.attachment;
+			final boolean framed = peer.framed;
+			final boolean leases = (peer.version >= VERSION_LEASES);
+			if (Log.isDebugEnabled()) {
+				Log.debug(getName(), "Sending initial sync: " + msgs.size() + " framed=" + framed);
+			}
+			final Deflater deflater = (framed ? new Deflater(Deflater.BEST_SPEED) : null);
+			try {
+				final int total = msgs.size();
+				for (int off = 0; (off < total) && link.isOpen(); off += Constants.CLUSTER_BATCH_SIZE) {
+					final List<StickyMessage> sub = msgs.subList(off,
+							Math.min(total, off + Constants.CLUSTER_BATCH_SIZE));
+					final int type = (leases ? FRAME_LEASES : FRAME_ENTRIES);
+					final byte[] buf = (framed ? ClusterMessage.frame(type,
+							ClusterMessage.serializeEntries(sub, leases), deflater) //
+							: ClusterMessage.serializeStickyMessages(sub));
+					while (link.isOpen() && (link.getPending() > (Constants.CLUSTER_MAX_PENDING / 2))) {
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Constants.CLUSTER_SEND_DELAY));
+					}
+					link.write(ByteBuffer.wrap(buf));
+				}
+				if (framed && last) {
+					link.write(ByteBuffer.wrap(ClusterMessage.frame(FRAME_SYNCED, new byte[0], null)));
+				}
+			} finally {
+				if (deflater != null) {
+					deflater.end();
+				}
+			}
+		}
+
+		/**
+		 * Send to all clients (asynchronous, never blocks)
+		 * 
+		 * @param msg
+		 * @return false if queue is full (message dropped)
+		 */
+		public boolean send(final StickyMessage msg) {
+			if (queued.incrementAndGet() > Constants.CLUSTER_QUEUE_SIZE) {
+				queued.decrementAndGet();
+				if ((dropped.incrementAndGet() % Constants.CLUSTER_QUEUE_SIZE) == 1) {
+					Log.warn(getName(), "Replication queue full, dropped messages: " + dropped.get());
+				}
+				return false;
+			}
+			queue.offer(msg);
+			return true;
+		}
+
+		/**
+		 * Send failed backend to all clients (asynchronous, never blocks)
+		 * 
+		 * @param backend
+		 */
+		public void sendHealth(final InetSocketAddress backend) {
+			healthQueue.offer(backend);
+		}
+
+		/**
+		 * Messages dropped (queue full)
+		 * 
+		 * @return
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/**
+		 * State of cluster client
+		 */
+		static class Peer {
+			volatile boolean framed = false;
+			volatile boolean handshake = false;
+			boolean heartbeats = false;
+			volatile int version = 0;
 		}
 	}
 
 	static class ClusterClient extends Cluster {
-		Connection c = null;
+		private final int reconnectMin;
+		private final int reconnectMax;
+		// Single sync (gossip): no reconnect, stop when synced
+		private final boolean once;
+		private Link link = null;
+		private boolean synced = false;
+		private boolean heartbeats = false;
+		// Protocol of server: unknown (null), framed (true) or old (false)
+		private Boolean framed = null;
+		private int backoff;
+		private long nextConnect = 0;
 
 		ClusterClient(final String clusterName, final String address, final Options opts,
 				final GlobalEventHandler events) throws IOException {
-			super(clusterName, address, opts, events);
+			this(IOHelper.longIdFromString(clusterName), IOHelper.parseAddress(address), opts, events, false);
+		}
+
+		ClusterClient(final long clusterId, final InetSocketAddress address, final Options opts,
+				final GlobalEventHandler events, final boolean once) {
+			super(clusterId, address, opts, events);
+			this.once = once;
+			reconnectMin = Math.max(1,
+					opts.getInteger(Options.P_RECONNECT_MIN, Constants.CLUSTER_RECONNECT_MIN).intValue());
+			reconnectMax = Math.max(reconnectMin,
+					opts.getInteger(Options.P_RECONNECT_MAX, Constants.CLUSTER_RECONNECT_MAX).intValue());
+			backoff = reconnectMin;
 		}
 
 		@Override
-		void stop() {
-			super.stop();
-			IOHelper.closeSilent(c);
+		boolean waitsSync() {
+			return !once;
 		}
 
 		@Override
-		void process() {
-			while (isRunning()) {
-				try {
-					Log.info(getName(), "Connecting: " + address);
-					c = BIOConnection.openConnection(address, //
-							Constants.CLUSTER_CONNECT_TIMEOUT, //
-							Constants.CLUSTER_READ_TIMEOUT);
-				} catch (IOException e) {
-					Log.error(getName(), "IOException (open): " + e);
+		void start() {
+			connect();
+		}
+
+		@Override
+		void close() {
+			if (link != null) {
+				link.close();
+			}
+		}
+
+		private void connect() {
+			Log.info(getName(), "Connecting: " + address);
+			try {
+				link = null;
+				heartbeats = false;
+				framed = null;
+				final Link l = NIOConnection.connect(loop, address, this);
+				if (l.isOpen()) {
+					link = l;
+				}
+			} catch (IOException e) {
+				Log.error(getName(), "IOException (open): " + e);
+				reconnect();
+			}
+		}
+
+		/**
+		 * Schedule reconnect with exponential back-off and jitter
+		 */
+		private void reconnect() {
+			link = null;
+			if (once) {
+				stop();
+				return;
+			}
+			final int delay = ((backoff >>> 1) + random.nextInt((backoff >>> 1) + 1));
+			nextConnect = System.currentTimeMillis() + delay;
+			backoff = (int) Math.min(reconnectMax, (backoff * 2L));
+			Log.info(getName(), "Reconnect in " + delay + "ms: " + address);
+		}
+
+		@Override
+		public void onOpen(final Link link) {
+			Log.info(getName(), "Connected: " + address);
+			this.link = link;
+			backoff = reconnectMin;
+			link.write(ByteBuffer.wrap(ClusterMessage.hello()));
+			// Digests may take some time with big stores
+			newTask(new Runnable() {
+				@Override
+				public void run() {
 					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException ie) {
-						Thread.currentThread().interrupt();
+						final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+						ClusterMessage.serializeDigests(buf, events.getClusterDigests(clusterId));
+						final byte[] frame = ClusterMessage.frame(FRAME_DIGEST, buf.toByteArray(), null);
+						link.write(ByteBuffer.wrap(frame));
+					} catch (IOException e) {
+						link.close();
+						Log.error(getName(), "IOException (digests): " + e);
 					}
-					continue;
 				}
-				try {
-					Log.info(getName(), "Connected: " + address);
-					while (isRunning()) {
-						try {
-							final int b = c.read();
-							if (b < 0) { // EOS
-								throw new EOFException();
-							}
-							if (Log.isDebugEnabled()) {
-								Log.debug(getName(), "Received: " + b);
-							}
-							switch (b) {
-								case OP_NOP: {
-									continue;
-								}
-								case OP_NEW: {
-									if (!processEventNew(c)) {
-										throw new EOFException();
-									}
-									break;
-								}
-								default:
-									throw new IOException("Invalid Operation: " + b);
-							}
-						} catch (SocketTimeoutException e) {
-							continue;
+			});
+		}
+
+		@Override
+		public void onRead(final Link link, final ByteBuffer in) throws IOException {
+			while (in.hasRemaining()) {
+				if (framed == null) {
+					// Old servers never send hello
+					if ((in.get(in.position()) & 0xFF) == HELLO) {
+						if (in.remaining() < 2) {
+							return;
 						}
+						in.get();
+						final int version = Math.min(VERSION, (in.get() & 0xFF));
+						framed = Boolean.TRUE;
+						Log.info(getName(), "Server protocol version: " + version);
+						continue;
 					}
-				} catch (IOException e) {
-					if (isRunning()) {
-						Log.error(getName(), "IOException (read): " + e);
+					framed = Boolean.FALSE;
+					Log.info(getName(), "Server with old protocol");
+				}
+				if (framed.booleanValue()) {
+					final Frame f = Frame.read(in);
+					if (f == null) {
+						return;
 					}
-					IOHelper.closeSilent(c);
-					c = null;
+					heartbeats = true;
+					processFrame(f);
+				} else {
+					processOld(in);
 				}
 			}
 		}
 
-		private boolean processEventNew(final Connection c) throws IOException {
-			final StickyMessage msg = ClusterMessage.deserializeStickyMessage(c.getInputStream());
-			events.onStickyFromCluster(clusterId, msg);
-			return true;
+		private void processFrame(final Frame f) throws IOException {
+			if (Log.isDebugEnabled()) {
+				Log.debug(getName(), "Received frame: " + f.type);
+			}
+			switch (f.type) {
+				case FRAME_HEARTBEAT: {
+					break;
+				}
+				case FRAME_ENTRIES:
+				case FRAME_LEASES: {
+					// Decoded in place from receive (or inflate) buffer
+					final ByteBuffer p = payload(f);
+					final boolean leases = (f.type == FRAME_LEASES);
+					try {
+						final int count = p.getInt();
+						for (int i = 0; i < count; i++) {
+							events.onStickyFromCluster(clusterId,
+									ClusterMessage.deserializeStickyMessage(p, leases));
+						}
+					} catch (BufferUnderflowException e) {
+						throw new IOException("Invalid Frame: truncated entries");
+					}
+					break;
+				}
+				case FRAME_LOAD: {
+					try {
+						onLoad(address, ClusterMessage.deserializeLoad(payload(f)));
+					} catch (BufferUnderflowException e) {
+						throw new IOException("Invalid Frame: truncated load");
+					}
+					break;
+				}
+				case FRAME_HEALTH: {
+					try {
+						onHealth(ClusterMessage.deserializeBackends(payload(f)));
+					} catch (BufferUnderflowException e) {
+						throw new IOException("Invalid Frame: truncated health");
+					}
+					break;
+				}
+				case FRAME_SYNCED: {
+					if (!synced) {
+						Log.info(getName(), "Initial sync completed: " + address);
+						synced = true;
+						setSynced(clusterId);
+					}
+					if (once) {
+						stop();
+					}
+					break;
+				}
+				default:
+					// Newer peers may send frames unknown here
+					if (Log.isDebugEnabled()) {
+						Log.debug(getName(), "Ignored frame type: " + f.type);
+					}
+			}
+		}
+
+		private void processOld(final ByteBuffer in) throws IOException {
+			in.mark();
+			try {
+				final int b = (in.get() & 0xFF);
+				switch (b) {
+					case OP_NOP: {
+						break;
+					}
+					case OP_NEW: {
+						events.onStickyFromCluster(clusterId, ClusterMessage.deserializeStickyMessage(in, false));
+						break;
+					}
+					default:
+						throw new IOException("Invalid Operation: " + b);
+				}
+			} catch (BufferUnderflowException e) {
+				in.reset();
+				throw e;
+			}
+		}
+
+		@Override
+		public void onClose(final Link link) {
+			if (this.link != link) {
+				return;
+			}
+			if (isRunning()) {
+				Log.error(getName(), "Disconnected: " + address);
+				reconnect();
+			} else {
+				this.link = null;
+			}
+		}
+
+		@Override
+		public void onTick(final long now) {
+			if (link == null) {
+				if (isRunning() && (now >= nextConnect)) {
+					connect();
+				}
+				return;
+			}
+			if (!link.isConnected()) {
+				if ((now - link.created) > Constants.CLUSTER_CONNECT_TIMEOUT) {
+					Log.error(getName(), "Connect timeout: " + address);
+					link.close();
+				}
+				return;
+			}
+			// Old servers send no heartbeats (and never read)
+			if (heartbeats) {
+				checkLink(link, now, true, HEARTBEAT_FRAME);
+			}
+		}
+	}
+
+	/**
+	 * Frame: length(4) + type(1) + flags(1) + payload (length-2 bytes)
+	 */
+	static class Frame {
+		final int type;
+		final int flags;
+		final ByteBuffer payload;
+
+		Frame(final int type, final int flags, final ByteBuffer payload) {
+			this.type = type;
+			this.flags = flags;
+			this.payload = payload;
+		}
+
+		/**
+		 * Next complete frame in buffer (payload is a view of buffer, no copy)
+		 * 
+		 * @param in
+		 * @return null if more bytes are needed
+		 * @throws IOException
+		 */
+		static Frame read(final ByteBuffer in) throws IOException {
+			if (in.remaining() < 4) {
+				return null;
+			}
+			final int len = in.getInt(in.position());
+			if ((len < 2) || (len > Constants.CLUSTER_MAX_MESSAGE)) {
+				throw new IOException("Invalid Frame length: " + len);
+			}
+			if (in.remaining() < (4 + len)) {
+				return null;
+			}
+			in.position(in.position() + 4);
+			final int type = (in.get() & 0xFF);
+			final int flags = (in.get() & 0xFF);
+			final ByteBuffer payload = in.slice();
+			payload.limit(len - 2);
+			in.position(in.position() + len - 2);
+			return new Frame(type, flags, payload);
+		}
+	}
+
+	/**
+	 * Active connections per backend reported by other nodes of a cluster, the report of each node
+	 * expires after CLUSTER_LOAD_STALE (cluster-wide limits with bounded staleness)
+	 */
+	static class ClusterLoad {
+		private static final HashMap<Long, ClusterLoad> loads = new HashMap<Long, ClusterLoad>();
+		// backend -> node -> { connections, received }
+		private final HashMap<InetSocketAddress, HashMap<InetSocketAddress, long[]>> backends = new HashMap<InetSocketAddress, HashMap<InetSocketAddress, long[]>>();
+
+		synchronized static ClusterLoad getInstance(final long clusterId) {
+			ClusterLoad load = loads.get(Long.valueOf(clusterId));
+			if (load == null) {
+				load = new ClusterLoad();
+				loads.put(Long.valueOf(clusterId), load);
+			}
+			return load;
+		}
+
+		/**
+		 * Update report of node
+		 * 
+		 * @param node
+		 * @param connections
+		 * @param now
+		 * @return connections of all nodes (not stale) to reported backends
+		 */
+		synchronized Map<InetSocketAddress, Integer> update(final InetSocketAddress node,
+				final Map<InetSocketAddress, Integer> connections, final long now) {
+			final Map<InetSocketAddress, Integer> sums = new HashMap<InetSocketAddress, Integer>();
+			for (final Entry<InetSocketAddress, Integer> e : connections.entrySet()) {
+				HashMap<InetSocketAddress, long[]> nodes = backends.get(e.getKey());
+				if (nodes == null) {
+					nodes = new HashMap<InetSocketAddress, long[]>();
+					backends.put(e.getKey(), nodes);
+				}
+				nodes.put(node, new long[] {
+						e.getValue().longValue(), now
+				});
+				long sum = 0;
+				final Iterator<long[]> i = nodes.values().iterator();
+				while (i.hasNext()) {
+					final long[] v = i.next();
+					if ((now - v[1]) > Constants.CLUSTER_LOAD_STALE) {
+						i.remove();
+					} else {
+						sum += v[0];
+					}
+				}
+				sums.put(e.getKey(), Integer.valueOf((int) Math.min(sum, Integer.MAX_VALUE)));
+			}
+			return sums;
+		}
+	}
+
+	/**
+	 * Bucket digests of sticky stores (anti-entropy): peers compare them and only buckets that
+	 * differ are sent
+	 */
+	static class ClusterDigest {
+		static final long FNV_OFFSET = 0xcbf29ce484222325L;
+		static final long FNV_PRIME = 0x100000001b3L;
+
+		static final long hash(long h, final byte[] b) {
+			for (int i = 0; i < b.length; i++) {
+				h ^= (b[i] & 0xFF);
+				h *= FNV_PRIME;
+			}
+			return h;
+		}
+
+		static final long mix(long h) {
+			h ^= (h >>> 33);
+			h *= 0xff51afd7ed558ccdL;
+			h ^= (h >>> 33);
+			return h;
+		}
+
+		/**
+		 * Bucket of sticky key
+		 * 
+		 * @param key
+		 * @return
+		 */
+		static int bucket(final InetAddress key) {
+			final long h = mix(hash(FNV_OFFSET, key.getAddress()));
+			return (int) ((h & Long.MAX_VALUE) % Constants.CLUSTER_SYNC_BUCKETS);
+		}
+
+		/**
+		 * Hash of sticky entry (key, value and timestamp: renewed leases differ too)
+		 * 
+		 * @param e
+		 * @return
+		 */
+		static long hash(final StickyEntry<InetAddress, InetSocketAddress> e) {
+			long h = hash(FNV_OFFSET, e.key.getAddress());
+			if (e.value != null) {
+				h = hash(h, e.value.getAddress().getAddress());
+				h = (h ^ e.value.getPort()) * FNV_PRIME;
+			}
+			h = (h ^ e.ts) * FNV_PRIME;
+			return mix(h);
+		}
+
+		/**
+		 * Digest of entries (sum of hashes per bucket, independent of order)
+		 * 
+		 * @param entries
+		 * @return
+		 */
+		static long[] compute(final List<StickyEntry<InetAddress, InetSocketAddress>> entries) {
+			final long[] digest = new long[Constants.CLUSTER_SYNC_BUCKETS];
+			for (final StickyEntry<InetAddress, InetSocketAddress> e : entries) {
+				digest[bucket(e.key)] += hash(e);
+			}
+			return digest;
 		}
 	}
 
 	static class ClusterMessage {
-		static StickyMessage deserializeStickyMessage(final InputStream is) throws IOException {
-			final byte[] stickyIdBuf = new byte[8];
-			is.read(stickyIdBuf); // 8
-			final long stickyId = IOHelper.longFromByteArray(stickyIdBuf, 0);
-			final int stickyAddrLen = is.read(); // 1
+		static StickyMessage deserializeStickyMessage(final ByteBuffer in, final boolean lease)
+				throws IOException {
+			final long stickyId = in.getLong(); // 8
+			final int stickyAddrLen = (in.get() & 0xFF); // 1
 			checkAddressLen(stickyAddrLen);
 			final byte[] stickyAddrBuf = new byte[stickyAddrLen];
-			checkAddressLen(is.read(stickyAddrBuf)); // 4-16max
+			in.get(stickyAddrBuf); // 4-16max
 			final InetAddress stickyAddress = InetAddress.getByAddress(stickyAddrBuf);
-			final int remoteAddrLen = is.read(); // 1
+			final int remoteAddrLen = (in.get() & 0xFF); // 1
 			final InetSocketAddress remoteAddress;
 			if (remoteAddrLen == 0x42) {
 				remoteAddress = null;
 			} else {
 				checkAddressLen(remoteAddrLen);
 				final byte[] remoteAddrBuf = new byte[remoteAddrLen];
-				checkAddressLen(is.read(remoteAddrBuf)); // 4-16max
+				in.get(remoteAddrBuf); // 4-16max
 				final InetAddress remoteAddr = InetAddress.getByAddress(remoteAddrBuf);
-				final int remotePortHi = is.read(); // 1
-				final int remotePortLo = is.read(); // 1
-				if ((remotePortHi < 0) || (remotePortLo < 0)) {
-					throw new IOException("Invalid Port bytes: " + remotePortHi + ":" + remotePortLo);
-				}
-				final int remotePort = (((remotePortHi & 0xFF) << 8) | (remotePortLo & 0xFF));
+				final int remotePort = (in.getShort() & 0xFFFF); // 2
 				remoteAddress = new InetSocketAddress(remoteAddr, remotePort);
 			}
-			return new StickyMessage(stickyId, stickyAddress, remoteAddress);
+			final long expires = (lease ? in.getLong() : 0); // 8
+			return new StickyMessage(stickyId, stickyAddress, remoteAddress, expires);
 		}
 
-		private static void checkAddressLen(final int len) throws IOException {
-			// IPv4 (32bits / 4 bytes), IPv6 (128bits / 16bytes)
-			if ((len != 4) && (len != 16)) {
-				throw new IOException("Invalid InetAddress length: " + len);
+		static Map<Long, long[]> deserializeDigests(final ByteBuffer in) throws IOException {
+			// count(2) + [ stickyId(8) + buckets(2) + buckets * digest(8) ]
+			final int count = (in.getShort() & 0xFFFF);
+			final Map<Long, long[]> digests = new HashMap<Long, long[]>();
+			for (int i = 0; i < count; i++) {
+				final long stickyId = in.getLong();
+				final long[] digest = new long[(in.getShort() & 0xFFFF)];
+				for (int j = 0; j < digest.length; j++) {
+					digest[j] = in.getLong();
+				}
+				digests.put(Long.valueOf(stickyId), digest);
+			}
+			return digests;
+		}
+
+		static Map<InetSocketAddress, Integer> deserializeLoad(final ByteBuffer in) throws IOException {
+			// count(2) + [ addrLen(1) + addr + port(2) + connections(4) ]
+			final int count = (in.getShort() & 0xFFFF);
+			final Map<InetSocketAddress, Integer> connections = new HashMap<InetSocketAddress, Integer>();
+			for (int i = 0; i < count; i++) {
+				final int len = (in.get() & 0xFF);
+				checkAddressLen(len);
+				final byte[] addr = new byte[len];
+				in.get(addr);
+				final int port = (in.getShort() & 0xFFFF);
+				connections.put(new InetSocketAddress(InetAddress.getByAddress(addr), port),
+						Integer.valueOf(in.getInt()));
+			}
+			return connections;
+		}
+
+		static byte[] serializeLoad(final Map<InetSocketAddress, Integer> connections) {
+			final ByteBuffer bb = ByteBuffer.allocate(2 + (connections.size() * (1 + 16 + 2 + 4)));
+			bb.putShort((short) Math.min(connections.size(), 0xFFFF));
+			int count = 0;
+			for (final Entry<InetSocketAddress, Integer> e : connections.entrySet()) {
+				if (++count > 0xFFFF) {
+					break;
+				}
+				final byte[] addr = e.getKey().getAddress().getAddress();
+				bb.put((byte) addr.length);
+				bb.put(addr);
+				bb.putShort((short) e.getKey().getPort());
+				bb.putInt(e.getValue().intValue());
+			}
+			final byte[] b = new byte[bb.position()];
+			System.arraycopy(bb.array(), 0, b, 0, b.length);
+			return b;
+		}
+
+		static List<InetSocketAddress> deserializeBackends(final ByteBuffer in) throws IOException {
+			// count(2) + [ addrLen(1) + addr + port(2) ]
+			final int count = (in.getShort() & 0xFFFF);
+			final List<InetSocketAddress> backends = new ArrayList<InetSocketAddress>(count);
+			for (int i = 0; i < count; i++) {
+				final int len = (in.get() & 0xFF);
+				checkAddressLen(len);
+				final byte[] addr = new byte[len];
+				in.get(addr);
+				backends.add(new InetSocketAddress(InetAddress.getByAddress(addr), (in.getShort() & 0xFFFF)));
 			}
+			return backends;
+		}
+
+		static byte[] serializeBackends(final Collection<InetSocketAddress> backends) {
+			final int count = Math.min(backends.size(), 0xFFFF);
+			final ByteBuffer bb = ByteBuffer.allocate(2 + (count * (1 + 16 + 2)));
+			bb.putShort((short) count);
+			final Iterator<InetSocketAddress> i = backends.iterator();
+			for (int n = 0; n < count; n++) {
+				final InetSocketAddress backend = i.next();
+				final byte[] addr = backend.getAddress().getAddress();
+				bb.put((byte) addr.length);
+				bb.put(addr);
+				bb.putShort((short) backend.getPort());
+			}
+			final byte[] b = new byte[bb.position()];
+			System.arraycopy(bb.array(), 0, b, 0, b.length);
+			return b;
 		}
 
 		static void serializeStickyMessage(final OutputStream os, final StickyMessage msg) throws IOException {
@@ -319,7 +1237,117 @@ public abstract class Cluster implements Runnable {
 				os.write((remotePort >>> 8) & 0xFF);
 				os.write((remotePort & 0xFF));
 			}
-			os.flush();
+		}
+
+		static void serializeDigests(final OutputStream os, final Map<Long, long[]> digests)
+				throws IOException {
+			final byte[] buf = new byte[8];
+			os.write((digests.size() >>> 8) & 0xFF);
+			os.write(digests.size() & 0xFF);
+			for (final Entry<Long, long[]> e : digests.entrySet()) {
+				final long[] digest = e.getValue();
+				IOHelper.longToByteArray(e.getKey().longValue(), buf, 0);
+				os.write(buf);
+				os.write((digest.length >>> 8) & 0xFF);
+				os.write(digest.length & 0xFF);
+				for (int j = 0; j < digest.length; j++) {
+					IOHelper.longToByteArray(digest[j], buf, 0);
+					os.write(buf);
+				}
+			}
+		}
+
+		/**
+		 * Serialize messages (old protocol: OP_NEW each)
+		 * 
+		 * @param msgs
+		 * @return
+		 */
+		static byte[] serializeStickyMessages(final Iterable<StickyMessage> msgs) {
+			final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			try {
+				for (final StickyMessage msg : msgs) {
+					buf.write(OP_NEW);
+					serializeStickyMessage(buf, msg);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e); // Never happen (memory)
+			}
+			return buf.toByteArray();
+		}
+
+		/**
+		 * Serialize payload of entries frame: count(4) + stickies (each followed by expires(8) in leases)
+		 * 
+		 * @param msgs
+		 * @param leases
+		 * @return
+		 */
+		static byte[] serializeEntries(final Collection<StickyMessage> msgs, final boolean leases) {
+			final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			try {
+				final byte[] b = new byte[8];
+				IOHelper.intToByteArray(msgs.size(), b, 0);
+				buf.write(b, 0, 4);
+				for (final StickyMessage msg : msgs) {
+					serializeStickyMessage(buf, msg);
+					if (leases) {
+						IOHelper.longToByteArray(msg.expires, b, 0);
+						buf.write(b);
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e); // Never happen (memory)
+			}
+			return buf.toByteArray();
+		}
+
+		static byte[] hello() {
+			return new byte[] {
+					(byte) HELLO, (byte) VERSION
+			};
+		}
+
+		/**
+		 * Build frame, compressed if payload is big and compression reduces it
+		 * 
+		 * @param type
+		 * @param payload
+		 * @param deflater null to disable compression
+		 * @return
+		 */
+		static byte[] frame(final int type, final byte[] payload, final Deflater deflater) {
+			byte[] data = payload;
+			int flags = 0;
+			if ((deflater != null) && (payload.length >= Constants.CLUSTER_COMPRESS_MIN)) {
+				final ByteArrayOutputStream buf = new ByteArrayOutputStream(payload.length >>> 1);
+				final byte[] out = new byte[Constants.CLUSTER_BUFFER_LEN];
+				deflater.reset();
+				deflater.setInput(payload);
+				deflater.finish();
+				while (!deflater.finished()) {
+					buf.write(out, 0, deflater.deflate(out));
+				}
+				if ((buf.size() + 4) < payload.length) {
+					data = buf.toByteArray();
+					flags |= FLAG_DEFLATE;
+				}
+			}
+			final int extra = (((flags & FLAG_DEFLATE) != 0) ? 4 : 0);
+			final ByteBuffer bb = ByteBuffer.allocate(4 + 2 + extra + data.length);
+			bb.putInt(2 + extra + data.length).put((byte) type).put((byte) flags);
+			if (extra > 0) {
+				bb.putInt(payload.length);
+			}
+			bb.put(data);
+			return bb.array();
+		}
+
+		private static void checkAddressLen(final int len) throws IOException {
+			// IPv4 (32bits / 4 bytes), IPv6 (128bits / 16bytes)
+			if ((len != 4) && (len != 16)) {
+				throw new IOException("Invalid InetAddress length: " + len);
+			}
 		}
 	}
 }
@@ -0,0 +1,1193 @@
+package org.javastack.jrinetd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.javastack.jrinetd.Cluster.ClusterClient;
+import org.javastack.jrinetd.Cluster.ClusterDigest;
+import org.javastack.jrinetd.Cluster.ClusterMessage;
+import org.javastack.jrinetd.Cluster.ClusterServer;
+import org.javastack.jrinetd.NIOConnection.Datagram;
+import org.javastack.jrinetd.NIOConnection.DatagramHandler;
+import org.javastack.jrinetd.NIOConnection.EventLoop;
+import org.javastack.jrinetd.StickyStore.RemoteLookup;
+
+/**
+ * Gossip cluster (SWIM): members are found from seeds, failures detected with direct and indirect
+ * probes (UDP), membership changes and sticky updates are disseminated epidemically (bounded fan-out,
+ * each update transmitted log(n) times); TCP listener in same address serves digest sync to members
+ * (and cluster-out links). With REPLICAS stickies are partitioned: each key is stored only by its
+ * owners in a consistent hash ring, other members ask them on miss and cache the answer briefly
+ */
+public class ClusterGossip extends ClusterServer implements DatagramHandler, RemoteLookup {
+	// Datagram: magic(1) + version(1) + clusterId(8) + type(1) + seq(4) + incarnation(4) + from(addr)
+	// + target(addr) + count(2) + [ kind(1) + length(2) + update ]
+	private static final int MAGIC = 0xC5;
+	private static final int VERSION = 1;
+	private static final int MSG_PING = 0x01;
+	private static final int MSG_PING_REQ = 0x02; // probe target on behalf of sender
+	private static final int MSG_ACK = 0x03;
+	private static final int MSG_GOSSIP = 0x04; // only updates
+	private static final int MSG_STORE = 0x05; // stickies to owners (partitioned)
+	private static final int MSG_LOOKUP = 0x06; // keys to owners (partitioned)
+	private static final int MSG_FOUND = 0x07; // stickies of owner (answer of lookup)
+	private static final int MSG_LOAD = 0x08; // connections per backend of sender
+	private static final int MSG_HEALTH = 0x09; // backends failed in sender
+	private static final int UPD_MEMBER = 0x01; // state(1) + incarnation(4) + addr
+	private static final int UPD_STICKY = 0x02; // sticky + expires(8)
+	private static final int UPD_KEY = 0x03; // sticky without remote
+	private static final int UPD_LOAD = 0x04; // connections(4) + backend(addr)
+	private static final int UPD_HEALTH = 0x05; // failed backend(addr)
+	// Keys per lookup (answer fits in one datagram)
+	private static final int LOOKUP_KEYS = (Constants.CLUSTER_GOSSIP_PACKET - 64) / 56;
+	private static final int ALIVE = 0;
+	private static final int SUSPECT = 1;
+	private static final int DEAD = 2;
+	private static final String[] STATES = {
+			"ALIVE", "SUSPECT", "DEAD"
+	};
+	private static int lastIncarnation = 0;
+
+	private final InetSocketAddress self;
+	private final List<InetSocketAddress> seeds;
+	private final int replicas; // owners of each sticky (0 = all members)
+	private final Random random = new Random();
+	private final ByteBuffer out = ByteBuffer.allocate(Constants.CLUSTER_GOSSIP_PACKET);
+	// State (event loop)
+	private Datagram datagram = null;
+	private int incarnation = 0;
+	private int seq = 0;
+	private final HashMap<InetSocketAddress, Member> members = new HashMap<InetSocketAddress, Member>();
+	private final ArrayList<Member> probeOrder = new ArrayList<Member>();
+	private int probeIndex = 0;
+	private Probe probe = null;
+	private final HashMap<Integer, Relay> relays = new HashMap<Integer, Relay>();
+	private final LinkedHashMap<Object, Update> memberUpdates = new LinkedHashMap<Object, Update>();
+	private final LinkedHashMap<Object, Update> stickyUpdates = new LinkedHashMap<Object, Update>();
+	private final LinkedHashMap<StickyMessage.Key, Long> seen = new LinkedHashMap<StickyMessage.Key, Long>() {
+		private static final long serialVersionUID = 42L;
+
+		protected boolean removeEldestEntry(final Map.Entry<StickyMessage.Key, Long> eldest) {
+			return size() > Constants.CLUSTER_GOSSIP_SEEN;
+		}
+	};
+	private long gossipDropped = 0;
+	private long nextProbe = 0;
+	private long nextJoin = 0;
+	private long nextRound = 0;
+	private long nextSync = 0;
+	private ClusterClient syncClient = null;
+	private boolean ringChanged = false;
+	private final HashMap<Integer, Request> requests = new HashMap<Integer, Request>();
+	private long nextPurge = 0;
+	// Live members and partitioned stickies (any thread)
+	private volatile List<InetSocketAddress> liveMembers = Collections.emptyList();
+	private volatile Ring ring;
+	private final ConcurrentHashMap<StickyMessage.Key, Lookup> lookups = new ConcurrentHashMap<StickyMessage.Key, Lookup>();
+	private final ConcurrentHashMap<StickyMessage.Key, Answer> answers = new ConcurrentHashMap<StickyMessage.Key, Answer>();
+	private final ConcurrentLinkedQueue<Lookup> lookupQueue = new ConcurrentLinkedQueue<Lookup>();
+	private final AtomicBoolean lookupScheduled = new AtomicBoolean(false);
+	private final Runnable lookupTask = new Runnable() {
+		@Override
+		public void run() {
+			lookupScheduled.set(false);
+			sendLookups(System.currentTimeMillis());
+		}
+	};
+
+	ClusterGossip(final String clusterName, final String address, final Options opts,
+			final GlobalEventHandler events) throws IOException {
+		super(clusterName, address, opts, events);
+		final String advertise = opts.getString(Options.P_ADVERTISE);
+		self = ((advertise == null) ? getAddress() : IOHelper.parseAddress(advertise));
+		if (self.getAddress().isAnyLocalAddress()) {
+			throw new IOException("ADVERTISE=host:port required when binding any address");
+		}
+		final String cfg = opts.getString(Options.P_SEEDS);
+		final ArrayList<InetSocketAddress> seeds = new ArrayList<InetSocketAddress>();
+		if (cfg != null) {
+			for (final String seed : cfg.split(";")) {
+				final InetSocketAddress addr = IOHelper.parseAddress(seed.trim());
+				if (!addr.equals(self)) {
+					seeds.add(addr);
+				}
+			}
+		}
+		this.seeds = seeds;
+		this.replicas = Math.max(0, opts.getInteger(Options.P_REPLICAS, Options.I_NULL).intValue());
+		this.ring = new Ring(Collections.singletonList(self));
+	}
+
+	private synchronized static int nextIncarnation() {
+		// Restarted members must override their old (dead) state
+		lastIncarnation = Math.max(lastIncarnation + 1, (int) (System.currentTimeMillis() / 1000));
+		return lastIncarnation;
+	}
+
+	@Override
+	boolean waitsSync() {
+		// Partitioned: misses are looked up in owners
+		return (!seeds.isEmpty() && (replicas == 0));
+	}
+
+	@Override
+	void start() throws IOException {
+		super.start();
+		datagram = NIOConnection.bind(loop, getAddress(), this);
+		incarnation = nextIncarnation();
+		Log.info(getName(), "Gossip: " + self + " incarnation=" + incarnation + " seeds=" + seeds
+				+ ((replicas > 0) ? (" replicas=" + replicas) : ""));
+	}
+
+	@Override
+	void close() {
+		super.close();
+		IOHelper.closeSilent(datagram);
+		datagram = null;
+		if (syncClient != null) {
+			syncClient.stop();
+			syncClient = null;
+		}
+	}
+
+	/**
+	 * Members not dead (thread-safe, copy published by event loop)
+	 *
+	 * @return
+	 */
+	public List<InetSocketAddress> getMembers() {
+		return liveMembers;
+	}
+
+	private void publishMembers() {
+		final ArrayList<InetSocketAddress> l = new ArrayList<InetSocketAddress>();
+		for (final Member m : members.values()) {
+			if (m.state != DEAD) {
+				l.add(m.address);
+			}
+		}
+		liveMembers = Collections.unmodifiableList(l);
+	}
+
+	@Override
+	void onBroadcast(final Collection<StickyMessage> msgs) {
+		if (replicas > 0) {
+			store(msgs);
+			return;
+		}
+		for (final StickyMessage msg : msgs) {
+			seen.put(msg.getKey(), Long.valueOf(msg.expires));
+			queueSticky(msg);
+		}
+	}
+
+	@Override
+	void onPublishLoad(final Map<InetSocketAddress, Integer> connections) {
+		if (datagram == null) {
+			return;
+		}
+		final ArrayList<byte[]> updates = new ArrayList<byte[]>(connections.size());
+		for (final Map.Entry<InetSocketAddress, Integer> e : connections.entrySet()) {
+			final ByteBuffer bb = ByteBuffer.allocate(3 + 4 + 19);
+			bb.put((byte) UPD_LOAD);
+			bb.putShort((short) 0);
+			bb.putInt(e.getValue().intValue());
+			writeAddress(bb, e.getKey());
+			bb.putShort(1, (short) (bb.position() - 3));
+			final byte[] data = new byte[bb.position()];
+			System.arraycopy(bb.array(), 0, data, 0, data.length);
+			updates.add(data);
+		}
+		for (final Member m : members.values()) {
+			if (m.state != DEAD) {
+				sendUpdates(MSG_LOAD, 0, updates, m.address);
+			}
+		}
+	}
+
+	@Override
+	void onPublishHealth(final Collection<InetSocketAddress> failed) {
+		if (datagram == null) {
+			return;
+		}
+		final ArrayList<byte[]> updates = new ArrayList<byte[]>(failed.size());
+		for (final InetSocketAddress backend : failed) {
+			final ByteBuffer bb = ByteBuffer.allocate(3 + 19);
+			bb.put((byte) UPD_HEALTH);
+			bb.putShort((short) 0);
+			writeAddress(bb, backend);
+			bb.putShort(1, (short) (bb.position() - 3));
+			final byte[] data = new byte[bb.position()];
+			System.arraycopy(bb.array(), 0, data, 0, data.length);
+			updates.add(data);
+		}
+		for (final Member m : members.values()) {
+			if (m.state != DEAD) {
+				sendUpdates(MSG_HEALTH, 0, updates, m.address);
+			}
+		}
+	}
+
+	@Override
+	public void onTick(final long now) {
+		super.onTick(now);
+		if (datagram == null) {
+			return;
+		}
+		expire(now);
+		if (ringChanged) {
+			ringChanged = false;
+			publishMembers();
+			if (replicas > 0) {
+				rebuildRing();
+			}
+		}
+		if (replicas > 0) {
+			expireLookups(now);
+		}
+		if (probe != null) {
+			if (!probe.indirect && ((now - probe.sent) >= (heartbeat >>> 1))) {
+				// No ack: ask other members to probe target
+				probe.indirect = true;
+				for (final Member m : pick(Constants.CLUSTER_GOSSIP_INDIRECT, probe.target)) {
+					send(MSG_PING_REQ, probe.seq, probe.target.address, m.address);
+				}
+			}
+			if ((now - probe.sent) >= heartbeat) {
+				final Member m = probe.target;
+				probe = null;
+				if (m.state == ALIVE) {
+					update(m.address, SUSPECT, m.incarnation, now);
+				}
+			}
+		}
+		if ((probe == null) && (now >= nextProbe)) {
+			nextProbe = now + heartbeat;
+			final Member m = nextProbeTarget();
+			if (m != null) {
+				probe = new Probe(m, ++seq, now);
+				send(MSG_PING, probe.seq, null, m.address);
+			}
+		}
+		if ((now >= nextJoin) && !seeds.isEmpty() && (countLive() == 0)) {
+			nextJoin = now + heartbeat;
+			for (final InetSocketAddress seed : seeds) {
+				send(MSG_PING, ++seq, null, seed);
+			}
+		}
+		if ((now >= nextRound) && (!memberUpdates.isEmpty() || !stickyUpdates.isEmpty())) {
+			nextRound = now + Constants.CLUSTER_GOSSIP_ROUND;
+			gossip();
+		}
+		if ((replicas == 0) && (now >= nextSync) && ((syncClient == null) || !syncClient.isRunning())) {
+			final List<Member> l = pick(1, null);
+			if (!l.isEmpty()) {
+				sync(l.get(0), now);
+			}
+		}
+	}
+
+	/**
+	 * Anti-entropy: pull differences from a member (digests over TCP), repairs lost updates
+	 */
+	private void sync(final Member m, final long now) {
+		if (syncClient != null) {
+			Cluster.unregister(syncClient);
+		}
+		final boolean synced = Boolean.TRUE.equals(Cluster.isSynced(clusterId));
+		nextSync = now + (synced ? Constants.CLUSTER_GOSSIP_SYNC : Constants.CLUSTER_CONNECT_TIMEOUT);
+		syncClient = new ClusterClient(clusterId, m.address, opts, events, true);
+		Cluster.newTask(syncClient);
+	}
+
+	private void expire(final long now) {
+		final int n = countLive();
+		final long suspect = (long) Constants.CLUSTER_GOSSIP_SUSPECT * heartbeat * log(n);
+		final Iterator<Member> i = members.values().iterator();
+		while (i.hasNext()) {
+			final Member m = i.next();
+			if ((m.state == DEAD) && ((now - m.changed) > Constants.CLUSTER_GOSSIP_DEAD)) {
+				i.remove();
+			}
+		}
+		for (final Member m : new ArrayList<Member>(members.values())) {
+			if ((m.state == SUSPECT) && ((now - m.changed) > suspect)) {
+				update(m.address, DEAD, m.incarnation, now);
+			}
+		}
+		final Iterator<Relay> j = relays.values().iterator();
+		while (j.hasNext()) {
+			if ((now - j.next().created) > heartbeat) {
+				j.remove();
+			}
+		}
+	}
+
+	/**
+	 * Round-robin over shuffled members (each member probed once per cycle)
+	 */
+	private Member nextProbeTarget() {
+		for (int tries = 0; tries < 2; tries++) {
+			while (probeIndex < probeOrder.size()) {
+				final Member m = probeOrder.get(probeIndex++);
+				if ((m.state != DEAD) && (members.get(m.address) == m)) {
+					return m;
+				}
+			}
+			probeOrder.clear();
+			for (final Member m : members.values()) {
+				if (m.state != DEAD) {
+					probeOrder.add(m);
+				}
+			}
+			Collections.shuffle(probeOrder, random);
+			probeIndex = 0;
+		}
+		return null;
+	}
+
+	/**
+	 * Random alive members
+	 *
+	 * @param count
+	 * @param exclude
+	 * @return
+	 */
+	private List<Member> pick(final int count, final Member exclude) {
+		final ArrayList<Member> l = new ArrayList<Member>();
+		for (final Member m : members.values()) {
+			if ((m.state == ALIVE) && (m != exclude)) {
+				l.add(m);
+			}
+		}
+		Collections.shuffle(l, random);
+		return ((l.size() > count) ? l.subList(0, count) : l);
+	}
+
+	private int countLive() {
+		int n = 0;
+		for (final Member m : members.values()) {
+			if (m.state != DEAD) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * ceil(log10(n+1)) of cluster size (with self), minimum 1
+	 */
+	private static int log(final int members) {
+		return Math.max(1, (int) Math.ceil(Math.log10(members + 2)));
+	}
+
+	/**
+	 * Apply member state (SWIM precedence: higher incarnation wins, suspect overrides alive of same
+	 * incarnation, dead overrides all)
+	 */
+	private void update(final InetSocketAddress addr, final int state, final int inc, final long now) {
+		if (addr.equals(self)) {
+			if ((state != ALIVE) && (inc >= incarnation)) {
+				// Refute suspicion
+				incarnation = inc + 1;
+				Log.warn(getName(), "Gossip: refuting " + STATES[state] + " incarnation=" + incarnation);
+				queueMember(self, ALIVE, incarnation);
+			}
+			return;
+		}
+		Member m = members.get(addr);
+		if (m == null) {
+			if (state == DEAD) {
+				return;
+			}
+			m = new Member(addr, state, inc, now);
+			members.put(addr, m);
+			ringChanged = true;
+			Log.info(getName(), "Gossip: member joined " + addr + " " + STATES[state] + " incarnation=" + inc);
+			queueMember(addr, state, inc);
+			return;
+		}
+		switch (state) {
+			case ALIVE:
+				if (inc <= m.incarnation) {
+					return;
+				}
+				break;
+			case SUSPECT:
+				if ((inc < m.incarnation) || ((inc == m.incarnation) && (m.state != ALIVE))) {
+					return;
+				}
+				break;
+			case DEAD:
+				if ((inc < m.incarnation) || (m.state == DEAD)) {
+					return;
+				}
+				break;
+			default:
+				return;
+		}
+		if (m.state != state) {
+			ringChanged = true;
+			final String msg = "Gossip: member " + addr + " " + STATES[state] + " incarnation=" + inc;
+			if (state == ALIVE) {
+				Log.info(getName(), msg);
+			} else {
+				Log.warn(getName(), msg);
+			}
+		}
+		m.state = state;
+		m.incarnation = inc;
+		m.changed = now;
+		queueMember(addr, state, inc);
+	}
+
+	private void queueMember(final InetSocketAddress addr, final int state, final int inc) {
+		final ByteBuffer bb = ByteBuffer.allocate(3 + 1 + 4 + 19);
+		bb.put((byte) UPD_MEMBER);
+		bb.putShort((short) 0);
+		bb.put((byte) state);
+		bb.putInt(inc);
+		writeAddress(bb, addr);
+		bb.putShort(1, (short) (bb.position() - 3));
+		final byte[] data = new byte[bb.position()];
+		System.arraycopy(bb.array(), 0, data, 0, data.length);
+		memberUpdates.remove(addr);
+		memberUpdates.put(addr, new Update(addr, data));
+	}
+
+	private void queueSticky(final StickyMessage msg) {
+		final byte[] data = encode(UPD_STICKY, msg);
+		final StickyMessage.Key key = msg.getKey();
+		stickyUpdates.remove(key); // keep order of last update
+		stickyUpdates.put(key, new Update(key, data));
+		if (stickyUpdates.size() > Constants.CLUSTER_QUEUE_SIZE) {
+			final Iterator<Update> i = stickyUpdates.values().iterator();
+			i.next();
+			i.remove();
+			if ((++gossipDropped % Constants.CLUSTER_QUEUE_SIZE) == 1) {
+				Log.warn(getName(), "Gossip queue full, dropped updates: " + gossipDropped);
+			}
+		}
+	}
+
+	/**
+	 * Sticky update (UPD_STICKY with expiration of lease, UPD_KEY only key)
+	 */
+	private static byte[] encode(final int kind, final StickyMessage msg) {
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+		try {
+			buf.write(kind);
+			buf.write(0);
+			buf.write(0);
+			ClusterMessage.serializeStickyMessage(buf, msg);
+			if (kind == UPD_STICKY) {
+				final byte[] expires = new byte[8];
+				IOHelper.longToByteArray(msg.expires, expires, 0);
+				buf.write(expires);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e); // Never happen (memory)
+		}
+		final byte[] data = buf.toByteArray();
+		data[1] = (byte) ((data.length - 3) >>> 8);
+		data[2] = (byte) (data.length - 3);
+		return data;
+	}
+
+	/**
+	 * Gossip round: oldest pending updates (members first) to a few random members
+	 */
+	private void gossip() {
+		final List<Member> targets = pick(Constants.CLUSTER_GOSSIP_FANOUT, null);
+		if (targets.isEmpty()) {
+			return;
+		}
+		final int budget = Constants.CLUSTER_GOSSIP_ROUND_PACKETS * (Constants.CLUSTER_GOSSIP_PACKET - 64);
+		final ArrayList<Update> round = new ArrayList<Update>();
+		int bytes = collect(memberUpdates, round, budget, 0);
+		bytes = collect(stickyUpdates, round, budget, bytes);
+		for (final Member m : targets) {
+			int off = 0;
+			while (off < round.size()) {
+				final int countPos = header(MSG_GOSSIP, 0, null);
+				int count = 0;
+				for (; (off < round.size()) && (round.get(off).data.length <= out.remaining()); off++) {
+					out.put(round.get(off).data);
+					count++;
+				}
+				flush(countPos, count, m.address);
+				if (count == 0) {
+					break;
+				}
+			}
+		}
+		final int limit = Constants.CLUSTER_GOSSIP_RETRANSMIT * log(countLive());
+		for (final Update u : round) {
+			u.transmits += targets.size();
+			if (u.transmits >= limit) {
+				final Map<Object, Update> updates = ((u.key instanceof StickyMessage.Key) ? stickyUpdates
+						: memberUpdates);
+				if (updates.get(u.key) == u) {
+					updates.remove(u.key);
+				}
+			}
+		}
+	}
+
+	private static int collect(final LinkedHashMap<Object, Update> updates, final List<Update> round,
+			final int budget, int bytes) {
+		for (final Update u : updates.values()) {
+			if ((bytes + u.data.length) > budget) {
+				break;
+			}
+			round.add(u);
+			bytes += u.data.length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Send datagram with pending updates piggybacked (as many as fit)
+	 */
+	private void send(final int type, final int seq, final InetSocketAddress target,
+			final InetSocketAddress to) {
+		final int countPos = header(type, seq, target);
+		final int limit = Constants.CLUSTER_GOSSIP_RETRANSMIT * log(countLive());
+		int count = fill(memberUpdates, limit, 0);
+		count = fill(stickyUpdates, limit, count);
+		flush(countPos, count, to);
+	}
+
+	/**
+	 * Send updates in as many datagrams as needed (at least one)
+	 */
+	private void sendUpdates(final int type, final int seq, final List<byte[]> updates,
+			final InetSocketAddress to) {
+		int off = 0;
+		do {
+			final int countPos = header(type, seq, null);
+			int count = 0;
+			for (; (off < updates.size()) && (updates.get(off).length <= out.remaining()); off++) {
+				out.put(updates.get(off));
+				count++;
+			}
+			flush(countPos, count, to);
+			if (count == 0) {
+				break;
+			}
+		} while (off < updates.size());
+	}
+
+	private int header(final int type, final int seq, final InetSocketAddress target) {
+		out.clear();
+		out.put((byte) MAGIC);
+		out.put((byte) VERSION);
+		out.putLong(clusterId);
+		out.put((byte) type);
+		out.putInt(seq);
+		out.putInt(incarnation);
+		writeAddress(out, self);
+		writeAddress(out, target);
+		final int countPos = out.position();
+		out.putShort((short) 0);
+		return countPos;
+	}
+
+	private void flush(final int countPos, final int count, final InetSocketAddress to) {
+		out.putShort(countPos, (short) count);
+		out.flip();
+		datagram.send(out, to);
+	}
+
+	private int fill(final LinkedHashMap<Object, Update> updates, final int limit, int count) {
+		final Iterator<Update> i = updates.values().iterator();
+		while (i.hasNext() && (count < 0xFFFF)) {
+			final Update u = i.next();
+			if (u.data.length > out.remaining()) {
+				break;
+			}
+			out.put(u.data);
+			count++;
+			if (++u.transmits >= limit) {
+				i.remove();
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void onDatagram(final InetSocketAddress src, final ByteBuffer in) throws IOException {
+		if ((in.get() & 0xFF) != MAGIC) {
+			throw new IOException("Invalid magic");
+		}
+		in.get(); // version (newer peers only append fields or update kinds)
+		if (in.getLong() != clusterId) {
+			throw new IOException("Invalid clusterId");
+		}
+		final long now = System.currentTimeMillis();
+		final int type = (in.get() & 0xFF);
+		final int rseq = in.getInt();
+		final int inc = in.getInt();
+		final InetSocketAddress from = readAddress(in);
+		final InetSocketAddress target = readAddress(in);
+		if ((from == null) || from.equals(self)) {
+			return;
+		}
+		// Sender is alive
+		update(from, ALIVE, inc, now);
+		final int count = (in.getShort() & 0xFFFF);
+		List<StickyMessage> stickies = null;
+		Map<InetSocketAddress, Integer> load = null;
+		List<InetSocketAddress> failed = null;
+		for (int i = 0; i < count; i++) {
+			final int kind = (in.get() & 0xFF);
+			final int end = (in.getShort() & 0xFFFF) + in.position();
+			if (end > in.limit()) {
+				throw new IOException("Invalid update length");
+			}
+			switch (kind) {
+				case UPD_MEMBER: {
+					final int state = (in.get() & 0xFF);
+					final int minc = in.getInt();
+					final InetSocketAddress addr = readAddress(in);
+					if ((addr != null) && (state <= DEAD)) {
+						update(addr, state, minc, now);
+					}
+					break;
+				}
+				case UPD_STICKY: {
+					final StickyMessage msg = ClusterMessage.deserializeStickyMessage(in, true);
+					if (type == MSG_FOUND) {
+						stickies = add(stickies, msg);
+					} else if (type == MSG_STORE) {
+						onStore(msg, now);
+					} else {
+						onSticky(msg, now);
+					}
+					break;
+				}
+				case UPD_KEY: {
+					stickies = add(stickies, ClusterMessage.deserializeStickyMessage(in, false));
+					break;
+				}
+				case UPD_LOAD: {
+					final int connections = in.getInt();
+					final InetSocketAddress addr = readAddress(in);
+					if (addr != null) {
+						if (load == null) {
+							load = new HashMap<InetSocketAddress, Integer>();
+						}
+						load.put(addr, Integer.valueOf(connections));
+					}
+					break;
+				}
+				case UPD_HEALTH: {
+					final InetSocketAddress addr = readAddress(in);
+					if (addr != null) {
+						if (failed == null) {
+							failed = new ArrayList<InetSocketAddress>();
+						}
+						failed.add(addr);
+					}
+					break;
+				}
+			}
+			in.position(end);
+		}
+		switch (type) {
+			case MSG_PING: {
+				send(MSG_ACK, rseq, null, from);
+				break;
+			}
+			case MSG_PING_REQ: {
+				if (target != null) {
+					relays.put(Integer.valueOf(++seq), new Relay(from, rseq, now));
+					send(MSG_PING, seq, null, target);
+				}
+				break;
+			}
+			case MSG_ACK: {
+				final Relay relay = relays.remove(Integer.valueOf(rseq));
+				if (relay != null) {
+					send(MSG_ACK, relay.seq, null, relay.requester);
+				} else if ((probe != null) && (probe.seq == rseq)) {
+					probe = null;
+				}
+				break;
+			}
+			case MSG_LOOKUP: {
+				final ArrayList<byte[]> found = new ArrayList<byte[]>();
+				if ((stickies != null) && (events != null)) {
+					for (final StickyMessage q : stickies) {
+						final StickyMessage msg = events.getClusterSticky(clusterId, q.stickyId,
+								q.stickyAddress);
+						if (msg != null) {
+							found.add(encode(UPD_STICKY, msg));
+						}
+					}
+				}
+				sendUpdates(MSG_FOUND, rseq, found, from);
+				break;
+			}
+			case MSG_FOUND: {
+				final Request r = requests.remove(Integer.valueOf(rseq));
+				if ((r != null) && r.owner.equals(from)) {
+					onFound(r, stickies, now);
+				}
+				break;
+			}
+			case MSG_LOAD: {
+				if (load != null) {
+					onLoad(from, load);
+				}
+				break;
+			}
+			case MSG_HEALTH: {
+				if (failed != null) {
+					onHealth(failed);
+				}
+				break;
+			}
+		}
+	}
+
+	private static List<StickyMessage> add(List<StickyMessage> l, final StickyMessage msg) {
+		if (l == null) {
+			l = new ArrayList<StickyMessage>();
+		}
+		l.add(msg);
+		return l;
+	}
+
+	private void onSticky(final StickyMessage msg, final long now) {
+		if (msg.expires <= now) {
+			return;
+		}
+		final StickyMessage.Key key = msg.getKey();
+		final Long last = seen.get(key);
+		if ((last != null) && (last.longValue() >= msg.expires)) {
+			return; // already seen
+		}
+		seen.put(key, Long.valueOf(msg.expires));
+		if (events != null) {
+			events.onStickyFromCluster(clusterId, msg);
+		}
+		queueSticky(msg);
+	}
+
+	@Override
+	public boolean isPartitioned() {
+		return (replicas > 0);
+	}
+
+	@Override
+	public boolean isOwner(final long stickyId, final InetAddress key) {
+		return ring.owners(Ring.hash(stickyId, key), replicas).contains(self);
+	}
+
+	@Override
+	public boolean lookup(final long stickyId, final InetAddress key) {
+		final StickyMessage.Key k = new StickyMessage.Key(stickyId, key);
+		if (lookups.containsKey(k)) {
+			return true;
+		}
+		final EventLoop loop = this.loop;
+		if ((loop == null) || (getCached(stickyId, key) != null)) {
+			return false;
+		}
+		final List<InetSocketAddress> owners = ring.owners(Ring.hash(stickyId, key), replicas);
+		final boolean owner = owners.remove(self);
+		if (owners.isEmpty()) {
+			return false;
+		}
+		final Lookup l = new Lookup(new StickyMessage(stickyId, key, null), owners, owner,
+				System.currentTimeMillis());
+		if (lookups.putIfAbsent(k, l) != null) {
+			return true;
+		}
+		lookupQueue.offer(l);
+		if (lookupScheduled.compareAndSet(false, true)) {
+			loop.execute(lookupTask);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean choose(final StickyMessage msg) {
+		final Lookup l = lookups.get(msg.getKey());
+		if (l == null) {
+			return false;
+		}
+		l.chosen = msg;
+		// Still pending: finish will see chosen
+		return (lookups.get(l.key) == l);
+	}
+
+	@Override
+	public StickyMessage getCached(final long stickyId, final InetAddress key) {
+		final Answer a = answers.get(new StickyMessage.Key(stickyId, key));
+		if ((a == null) || ((System.currentTimeMillis() - a.cached) > Constants.CLUSTER_LOOKUP_CACHE)) {
+			return null;
+		}
+		return a.msg;
+	}
+
+	@Override
+	public void cache(final StickyMessage msg) {
+		final StickyMessage.Key key = msg.getKey();
+		if ((answers.size() < Constants.CLUSTER_LOOKUP_CACHE_SIZE) || answers.containsKey(key)) {
+			answers.put(key, new Answer(msg, System.currentTimeMillis()));
+		}
+	}
+
+	private void rebuildRing() {
+		final ArrayList<InetSocketAddress> nodes = new ArrayList<InetSocketAddress>();
+		nodes.add(self);
+		for (final Member m : members.values()) {
+			if (m.state != DEAD) {
+				nodes.add(m.address);
+			}
+		}
+		ring = new Ring(nodes);
+		Log.info(getName(), "Gossip: partitions members=" + nodes.size() + " replicas=" + replicas);
+	}
+
+	/**
+	 * Local updates sent only to owners of each sticky (partitioned)
+	 */
+	private void store(final Collection<StickyMessage> msgs) {
+		final Ring ring = this.ring;
+		final HashMap<InetSocketAddress, List<byte[]>> byOwner = new HashMap<InetSocketAddress, List<byte[]>>();
+		for (final StickyMessage msg : msgs) {
+			byte[] data = null;
+			for (final InetSocketAddress owner : ring.owners(Ring.hash(msg.stickyId, msg.stickyAddress),
+					replicas)) {
+				if (owner.equals(self)) {
+					continue;
+				}
+				if (data == null) {
+					data = encode(UPD_STICKY, msg);
+				}
+				List<byte[]> l = byOwner.get(owner);
+				if (l == null) {
+					l = new ArrayList<byte[]>();
+					byOwner.put(owner, l);
+				}
+				l.add(data);
+			}
+		}
+		for (final Map.Entry<InetSocketAddress, List<byte[]>> e : byOwner.entrySet()) {
+			sendUpdates(MSG_STORE, 0, e.getValue(), e.getKey());
+		}
+	}
+
+	/**
+	 * Queued lookups sent to owners (batched by owner)
+	 */
+	private void sendLookups(final long now) {
+		final HashMap<InetSocketAddress, List<Lookup>> byOwner = new HashMap<InetSocketAddress, List<Lookup>>();
+		Lookup l = null;
+		while ((l = lookupQueue.poll()) != null) {
+			for (final InetSocketAddress owner : l.owners) {
+				List<Lookup> ll = byOwner.get(owner);
+				if (ll == null) {
+					ll = new ArrayList<Lookup>();
+					byOwner.put(owner, ll);
+				}
+				ll.add(l);
+			}
+		}
+		if (datagram == null) {
+			return; // expired by timeout
+		}
+		for (final Map.Entry<InetSocketAddress, List<Lookup>> e : byOwner.entrySet()) {
+			final List<Lookup> ll = e.getValue();
+			for (int off = 0; off < ll.size(); off += LOOKUP_KEYS) {
+				final List<Lookup> keys = new ArrayList<Lookup>(ll.subList(off,
+						Math.min(off + LOOKUP_KEYS, ll.size())));
+				requests.put(Integer.valueOf(++seq), new Request(e.getKey(), keys, now));
+				final int countPos = header(MSG_LOOKUP, seq, null);
+				for (final Lookup k : keys) {
+					out.put(k.data);
+				}
+				flush(countPos, keys.size(), e.getKey());
+			}
+		}
+	}
+
+	private void onFound(final Request r, final List<StickyMessage> stickies, final long now) {
+		final HashMap<StickyMessage.Key, StickyMessage> found = new HashMap<StickyMessage.Key, StickyMessage>();
+		if (stickies != null) {
+			for (final StickyMessage msg : stickies) {
+				found.put(msg.getKey(), msg);
+			}
+		}
+		for (final Lookup l : r.lookups) {
+			final StickyMessage msg = found.get(l.key);
+			l.answered.put(r.owner, Long.valueOf((msg == null) ? 0 : msg.expires));
+			if ((msg != null) && (msg.remoteAddress != null) && (msg.expires > now)
+					&& ((l.best == null) || (msg.expires > l.best.expires))) {
+				l.best = msg;
+			}
+			if (l.answered.size() >= l.owners.size()) {
+				finish(l);
+			}
+		}
+	}
+
+	/**
+	 * Lookup answered by all owners (or timeout): cache answer and repair owners without it, if
+	 * owners have no sticky the node chosen meanwhile is stored
+	 */
+	private void finish(final Lookup l) {
+		if (lookups.get(l.key) != l) {
+			return;
+		}
+		final StickyMessage best = l.best;
+		final StickyMessage answer = ((best != null) ? best : l.chosen);
+		cache((answer != null) ? answer : l.query);
+		lookups.remove(l.key);
+		if (best == null) {
+			// Read after remove (see choose)
+			final StickyMessage chosen = l.chosen;
+			if (chosen == null) {
+				return;
+			}
+			if (answer == null) {
+				cache(chosen);
+			}
+			store(Collections.singletonList(chosen));
+			if (l.owner && (events != null)) {
+				events.onStickyFromCluster(clusterId, chosen);
+			}
+			return;
+		}
+		final List<byte[]> repair = Collections.singletonList(encode(UPD_STICKY, best));
+		for (final Map.Entry<InetSocketAddress, Long> e : l.answered.entrySet()) {
+			if (e.getValue().longValue() < best.expires) {
+				sendUpdates(MSG_STORE, 0, repair, e.getKey());
+			}
+		}
+		if (l.owner && (events != null)) {
+			events.onStickyFromCluster(clusterId, best);
+		}
+	}
+
+	private void expireLookups(final long now) {
+		for (final Lookup l : lookups.values()) {
+			if ((now - l.started) > Constants.CLUSTER_LOOKUP_TIMEOUT) {
+				finish(l);
+			}
+		}
+		final Iterator<Request> i = requests.values().iterator();
+		while (i.hasNext()) {
+			if ((now - i.next().sent) > Constants.CLUSTER_LOOKUP_TIMEOUT) {
+				i.remove();
+			}
+		}
+		if (now >= nextPurge) {
+			nextPurge = now + Constants.CLUSTER_LOOKUP_CACHE;
+			final Iterator<Answer> j = answers.values().iterator();
+			while (j.hasNext()) {
+				if ((now - j.next().cached) > Constants.CLUSTER_LOOKUP_CACHE) {
+					j.remove();
+				}
+			}
+		}
+	}
+
+	private void onStore(final StickyMessage msg, final long now) {
+		if ((msg.expires > now) && (events != null)) {
+			events.onStickyFromCluster(clusterId, msg);
+		}
+	}
+
+	private static void writeAddress(final ByteBuffer bb, final InetSocketAddress addr) {
+		if (addr == null) {
+			bb.put((byte) 0);
+			return;
+		}
+		final byte[] b = addr.getAddress().getAddress();
+		bb.put((byte) b.length);
+		bb.put(b);
+		bb.putShort((short) addr.getPort());
+	}
+
+	private static InetSocketAddress readAddress(final ByteBuffer bb) throws IOException {
+		final int len = (bb.get() & 0xFF);
+		if (len == 0) {
+			return null;
+		}
+		if ((len != 4) && (len != 16)) {
+			throw new IOException("Invalid address length: " + len);
+		}
+		final byte[] b = new byte[len];
+		bb.get(b);
+		final int port = (bb.getShort() & 0xFFFF);
+		return new InetSocketAddress(InetAddress.getByAddress(b), port);
+	}
+
+	static class Member {
+		final InetSocketAddress address;
+		int state;
+		int incarnation;
+		long changed;
+
+		Member(final InetSocketAddress address, final int state, final int incarnation, final long changed) {
+			this.address = address;
+			this.state = state;
+			this.incarnation = incarnation;
+			this.changed = changed;
+		}
+	}
+
+	static class Probe {
+		final Member target;
+		final int seq;
+		final long sent;
+		boolean indirect = false;
+
+		Probe(final Member target, final int seq, final long sent) {
+			this.target = target;
+			this.seq = seq;
+			this.sent = sent;
+		}
+	}
+
+	static class Relay {
+		final InetSocketAddress requester;
+		final int seq;
+		final long created;
+
+		Relay(final InetSocketAddress requester, final int seq, final long created) {
+			this.requester = requester;
+			this.seq = seq;
+			this.created = created;
+		}
+	}
+
+	static class Update {
+		final Object key;
+		final byte[] data;
+		int transmits = 0;
+
+		Update(final Object key, final byte[] data) {
+			this.key = key;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Consistent hashing of stickies over members (virtual nodes), immutable
+	 */
+	static class Ring {
+		private final long[] points;
+		private final InetSocketAddress[] nodes;
+
+		Ring(final Collection<InetSocketAddress> members) {
+			final TreeMap<Long, InetSocketAddress> ring = new TreeMap<Long, InetSocketAddress>();
+			for (final InetSocketAddress addr : members) {
+				long h = ClusterDigest.hash(ClusterDigest.FNV_OFFSET, addr.getAddress().getAddress());
+				h = (h ^ addr.getPort()) * ClusterDigest.FNV_PRIME;
+				for (int v = 0; v < Constants.CLUSTER_RING_VNODES; v++) {
+					ring.put(Long.valueOf(ClusterDigest.mix(h + (v * 0x9E3779B97F4A7C15L))), addr);
+				}
+			}
+			points = new long[ring.size()];
+			nodes = new InetSocketAddress[ring.size()];
+			int i = 0;
+			for (final Map.Entry<Long, InetSocketAddress> e : ring.entrySet()) {
+				points[i] = e.getKey().longValue();
+				nodes[i++] = e.getValue();
+			}
+		}
+
+		static long hash(final long stickyId, final InetAddress key) {
+			return ClusterDigest.mix(ClusterDigest.hash(ClusterDigest.FNV_OFFSET ^ stickyId, key.getAddress()));
+		}
+
+		/**
+		 * Distinct members following hash in ring
+		 *
+		 * @param hash
+		 * @param replicas
+		 * @return
+		 */
+		List<InetSocketAddress> owners(final long hash, final int replicas) {
+			final ArrayList<InetSocketAddress> l = new ArrayList<InetSocketAddress>(replicas);
+			int i = Arrays.binarySearch(points, hash);
+			if (i < 0) {
+				i = -i - 1;
+			}
+			for (int n = 0; (n < points.length) && (l.size() < replicas); n++) {
+				final InetSocketAddress addr = nodes[(i + n) % points.length];
+				if (!l.contains(addr)) {
+					l.add(addr);
+				}
+			}
+			return l;
+		}
+	}
+
+	static class Lookup {
+		final StickyMessage query;
+		final StickyMessage.Key key;
+		final byte[] data;
+		final List<InetSocketAddress> owners; // other than self
+		final boolean owner; // self is owner too
+		final long started;
+		volatile StickyMessage chosen = null; // node chosen locally while pending
+		// Event loop
+		final HashMap<InetSocketAddress, Long> answered = new HashMap<InetSocketAddress, Long>();
+		StickyMessage best = null;
+
+		Lookup(final StickyMessage query, final List<InetSocketAddress> owners, final boolean owner,
+				final long started) {
+			this.query = query;
+			this.key = query.getKey();
+			this.data = encode(UPD_KEY, query);
+			this.owners = owners;
+			this.owner = owner;
+			this.started = started;
+		}
+	}
+
+	static class Request {
+		final InetSocketAddress owner;
+		final List<Lookup> lookups;
+		final long sent;
+
+		Request(final InetSocketAddress owner, final List<Lookup> lookups, final long sent) {
+			this.owner = owner;
+			this.lookups = lookups;
+			this.sent = sent;
+		}
+	}
+
+	static class Answer {
+		final StickyMessage msg; // remoteAddress null if not found
+		final long cached;
+
+		Answer(final StickyMessage msg, final long cached) {
+			this.msg = msg;
+			this.cached = cached;
+		}
+	}
+}
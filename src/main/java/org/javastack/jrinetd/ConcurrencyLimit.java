@@ -0,0 +1,85 @@
+package org.javastack.jrinetd;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive concurrency limit (TCP Vegas style): compare measured latency against the no-load latency
+ * to estimate queueing on the backend, grow the limit while the queue is small and shrink it when the
+ * queue grows (lock-free)
+ */
+public class ConcurrencyLimit {
+	private final AtomicInteger limit = new AtomicInteger(Constants.LIMIT_INITIAL);
+	private final AtomicLong rttNoLoad = new AtomicLong(0); // nanos
+	private final AtomicInteger probe = new AtomicInteger(0);
+
+	/**
+	 * Current limit of concurrent connections
+	 *
+	 * @return
+	 */
+	public int get() {
+		return limit.get();
+	}
+
+	/**
+	 * Register a latency sample
+	 *
+	 * @param rtt in nanos
+	 * @param inflight current concurrent connections
+	 */
+	void onSample(final long rtt, final int inflight) {
+		if (rtt <= 0) {
+			return;
+		}
+		final int current = limit.get();
+		// Periodically forget no-load latency, backend may have changed
+		if (probe.incrementAndGet() > (current * Constants.LIMIT_PROBE_MULTIPLIER)) {
+			probe.set(0);
+			rttNoLoad.set(rtt);
+			return;
+		}
+		final long noLoad = rttNoLoad.get();
+		if ((noLoad == 0) || (rtt < noLoad)) {
+			rttNoLoad.compareAndSet(noLoad, rtt);
+			return;
+		}
+		// Not enough load to measure anything
+		if ((inflight * 2) < current) {
+			return;
+		}
+		final double log = Math.max(1d, Math.log10(current));
+		final int queue = (int) Math.ceil(current * (1d - ((double) noLoad / rtt)));
+		final double next;
+		if (queue <= log) {
+			next = current + (6 * log);
+		} else if (queue < (3 * log)) {
+			next = current + log;
+		} else if (queue > (6 * log)) {
+			next = current - log;
+		} else {
+			return;
+		}
+		update(current, next);
+	}
+
+	/**
+	 * Register a failure (connect error)
+	 */
+	void onDrop() {
+		final int current = limit.get();
+		update(current, current * Constants.LIMIT_BACKOFF_RATIO);
+	}
+
+	private void update(final int current, final double next) {
+		final int n = Math.max(Constants.LIMIT_MIN, Math.min(Constants.LIMIT_MAX, (int) next));
+		if (n != current) {
+			limit.compareAndSet(current, n);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(get());
+	}
+}
@@ -42,6 +42,14 @@ public class ConnectionHandler {
 	private ByteBuffer bufOut = null;
 
 	private LoadBalanceContext<InetAddress, InetSocketAddress> loadBalanceContext = null;
+	private long responseMark = 0;
+	private boolean dataWritten = false;
+	// Replay of initial bytes (null if disabled, overflowed or response received)
+	private byte[] replay = null;
+	private int replayLength = 0;
+	private ByteBuffer replayOut = null;
+	// Peek of initial bytes for content-keyed affinity (0 if not peeking)
+	private long peekStart = 0;
 
 	public ConnectionHandler(final BridgeContext bc, final InetAddress client, final Endpoint endpoint)
 			throws IOException {
@@ -50,6 +58,10 @@ public class ConnectionHandler {
 		//
 		this.bufIn = bc.getServer().allocateByteBuffer();
 		this.loadBalanceContext = this.endpoint.createLoadBalanceContext(client);
+		final int replaySize = bc.getServer().getOpts().getInteger(Options.P_REPLAY, Options.I_NULL).intValue();
+		if (replaySize > 0) {
+			this.replay = new byte[replaySize];
+		}
 		//
 		// connect();
 	}
@@ -75,8 +87,28 @@ public class ConnectionHandler {
 		return remoteAddress;
 	}
 
+	/**
+	 * Connect using specified sticky address (content-keyed affinity)
+	 * 
+	 * @param stickyAddr
+	 * @throws IOException
+	 */
+	public void connect(final InetAddress stickyAddr) throws IOException {
+		if (!stickyAddr.equals(loadBalanceContext.getStickyAddress())) {
+			loadBalanceContext = endpoint.createLoadBalanceContext(stickyAddr);
+		}
+		connect();
+	}
+
 	public void connect() throws IOException {
+		// Sticky owned by other members (partitioned): ask them, but don't wait the answer
+		// (this connect is balanced, later connects use the answer)
+		endpoint.lookupSticky(loadBalanceContext);
 		remoteAddress = endpoint.onConnect(loadBalanceContext);
+		if (remoteAddress == null) {
+			// Unresolved or empty endpoint-list
+			throw new ConnectException("No backend available");
+		}
 		sc = SocketChannel.open();
 		sc.configureBlocking(false);
 		if (sc.connect(remoteAddress)) {
@@ -100,6 +132,9 @@ public class ConnectionHandler {
 			endpoint.onConnectFinished(loadBalanceContext);
 		} catch (ConnectException e) {
 			Log.error(getName(), "Unable to Connected: " + IOHelper.inetAddrToHoman(getRemoteAddress()));
+			if (endpoint.onConnectFailed(loadBalanceContext) && (events != null)) {
+				events.onBackendFailed(bc, loadBalanceContext.getRemoteAddress());
+			}
 			loadBalanceContext.setRemoteAddress(null);
 			if (events != null) {
 				events.onStickyFromLocal(bc, loadBalanceContext);
@@ -113,20 +148,83 @@ public class ConnectionHandler {
 			throw e;
 		}
 		Log.info(getName(), "Connected: " + IOHelper.inetAddrToHoman(getRemoteAddress()));
+		responseMark = System.nanoTime();
 		final ConnectionHandler peer = bc.getPeer(this);
 		wantConnect(false);
 		wantRead(true);
 		peer.wantRead(true);
-		if (bc.getServer().getOpts().isOption(Options.PROXY_SEND)) {
+		if (replayOut != null) {
+			// PROXY header (if any) is already in replay
+			wantWrite(true);
+		} else if (bc.getServer().getOpts().isOption(Options.PROXY_SEND)) {
 			if (Log.isDebugEnabled())
 				Log.debug(getName(), "fillProxyProtocol()");
 			peer.fillProxyProtocol();
 			peer.passBufInToPeer();
+		} else if ((peer.bufIn != null) && (peer.bufIn.position() > 0)) {
+			// Peeked data
+			peer.passBufInToPeer();
 		}
 	}
 
 	private final void fillProxyProtocol() {
+		if (bufIn.position() == 0) {
+			ProxyProtocol.getInstance().formatV1(bufIn, sc.socket());
+			return;
+		}
+		// Peeked data go after PROXY header
+		final byte[] data = new byte[bufIn.position()];
+		bufIn.flip();
+		bufIn.get(data);
+		bufIn.clear();
 		ProxyProtocol.getInstance().formatV1(bufIn, sc.socket());
+		bufIn.put(data);
+	}
+
+	/**
+	 * Start peek of initial bytes from client (content-keyed affinity)
+	 * 
+	 * @throws IOException
+	 */
+	public void startPeek() throws IOException {
+		peekStart = System.currentTimeMillis();
+		bufIn.limit(bc.getServer().getAffinity().getPeekSize());
+		wantRead(true);
+	}
+
+	public boolean isPeeking() {
+		return (peekStart != 0);
+	}
+
+	public long getPeekStart() {
+		return peekStart;
+	}
+
+	/**
+	 * Peek of initial bytes done (found key, no key, buffer full or timeout), connect to remote
+	 * 
+	 * @param timeout
+	 * @throws IOException
+	 */
+	public void onPeek(final boolean timeout) throws IOException {
+		final ByteBuffer bb = bufIn.duplicate();
+		bb.flip();
+		final byte[] key = bc.getServer().getAffinity().extract(bb);
+		if ((key == null) && !timeout && bufIn.hasRemaining()) {
+			return; // Need more data
+		}
+		peekStart = 0;
+		bufIn.limit(bufIn.capacity());
+		wantRead(false);
+		final InetAddress stickyAddr;
+		if ((key != null) && (key.length > 0)) {
+			stickyAddr = Affinity.toStickyAddress(key);
+			if (Log.isDebugEnabled())
+				Log.debug(getName(), "Affinity key=" + new String(key) + " sticky=" + stickyAddr);
+		} else {
+			stickyAddr = sc.socket().getInetAddress();
+		}
+		bc.getPeer(this).connect(stickyAddr);
 	}
 
 	/**
@@ -149,6 +247,15 @@ public class ConnectionHandler {
 			throw new ClosedChannelException();
 		}
 		if (len > 0) {
+			replay = null;
+			if (responseMark != 0) {
+				endpoint.onFirstResponse(loadBalanceContext, System.nanoTime() - responseMark);
+				responseMark = 0;
+			}
+			if (peekStart != 0) {
+				onPeek(false);
+				return;
+			}
 			passBufInToPeer();
 		}
 	}
@@ -186,6 +293,21 @@ public class ConnectionHandler {
 	 * @throws IOException
 	 */
 	public void onWrite() throws IOException {
+		if (replayOut != null) {
+			if (!dataWritten && (responseMark != 0)) {
+				responseMark = System.nanoTime();
+			}
+			dataWritten = true;
+			sc.write(replayOut);
+			if (replayOut.hasRemaining()) {
+				return;
+			}
+			replayOut = null;
+			if (bufOut == null) {
+				wantWrite(false);
+				return;
+			}
+		}
 		if (!canWrite()) {
 			if (Log.isDebugEnabled())
 				Log.debug(getName(), "onWrite() cantWrite()=false");
@@ -194,7 +316,16 @@ public class ConnectionHandler {
 		if (Log.isDebugEnabled())
 			Log.debug(getName(), "onWrite() bufOut=" + bufOut.toString());
 		if (bufOut.hasRemaining()) {
-			sc.write(bufOut);
+			// Client speaks first: wait response since request is sent
+			if (!dataWritten && (responseMark != 0)) {
+				responseMark = System.nanoTime();
+			}
+			dataWritten = true;
+			final int pos = bufOut.position();
+			final int len = sc.write(bufOut);
+			if ((replay != null) && (len > 0)) {
+				keepReplay(pos, len);
+			}
 		}
 		if (!bufOut.hasRemaining()) {
 			passBufOutToPeer();
@@ -202,6 +333,60 @@ public class ConnectionHandler {
 		return;
 	}
 
+	private void keepReplay(final int pos, final int len) {
+		if ((replayLength + len) > replay.length) {
+			Log.warn(getName(), "Replay disabled: initial data exceed " + replay.length + " bytes");
+			replay = null;
+			return;
+		}
+		final ByteBuffer b = bufOut.duplicate();
+		b.position(pos);
+		b.limit(pos + len);
+		b.get(replay, replayLength, len);
+		replayLength += len;
+	}
+
+	/**
+	 * Remote closed or reset connection before any response, try to reconnect to next node and replay
+	 * initial data
+	 * 
+	 * @return true if reconnecting
+	 */
+	public boolean tryReplay() {
+		if ((replay == null) || (loadBalanceContext == null) || (loadBalanceContext.getRemoteAddress() == null)) {
+			return false;
+		}
+		final GlobalEventHandler events = bc.getServer().getGlobalEventHandler();
+		Log.warn(getName(), "Remote closed without response: " + IOHelper.inetAddrToHoman(getRemoteAddress()));
+		if (endpoint.onConnectFailed(loadBalanceContext) && (events != null)) {
+			events.onBackendFailed(bc, loadBalanceContext.getRemoteAddress());
+		}
+		loadBalanceContext.setRemoteAddress(null);
+		if (events != null) {
+			events.onStickyFromLocal(bc, loadBalanceContext);
+		}
+		if (!endpoint.canRetry(loadBalanceContext)) {
+			return false;
+		}
+		endpoint.onConnectFinished(loadBalanceContext);
+		close();
+		try {
+			// Hold client data until connected
+			bc.getPeer(this).wantRead(false);
+			Log.info(getName(), "Replay " + replayLength + " bytes");
+			replayOut = ByteBuffer.wrap(replay, 0, replayLength);
+			responseMark = 0;
+			dataWritten = false;
+			connect();
+			return true;
+		} catch (IOException e) {
+			Log.error(getName(), "Replay failed: " + e.toString());
+			replay = null;
+			replayOut = null;
+		}
+		return false;
+	}
+
 	private void passBufOutToPeer() throws ClosedChannelException {
 		if (Log.isDebugEnabled())
 			Log.debug(getName(), "passBufOutToPeer() bufOut=" + bufOut.toString());
@@ -237,6 +422,8 @@ public class ConnectionHandler {
 		Log.info(getName(), "End connection: " + IOHelper.inetAddrToHoman(getRemoteAddress()));
 		close();
 		bc.getPeer(this).close();
+		release();
+		bc.getPeer(this).release();
 		if (bufIn != null) {
 			bc.getServer().releaseByteBuffer(bufIn);
 			bufIn = null;
@@ -252,6 +439,12 @@ public class ConnectionHandler {
 		sc = null;
 	}
 
+	private final void release() {
+		if (loadBalanceContext != null) {
+			endpoint.onDisconnect(loadBalanceContext);
+		}
+	}
+
 	public boolean isOpen() {
 		return ((sc != null) && sc.isOpen());
 	}
@@ -7,21 +7,104 @@ public class Constants {
 	public static final String PROP_OUT_FILE = "log.stdOutFile";
 	public static final String PROP_ERR_FILE = "log.stdErrFile";
 	public static final String PROP_OUT_STDTOO = "log.stdToo";
+	// System properties (sticky)
+	public static final String PROP_STICKY_DIR = "sticky.dir";
+	// System properties (resolver)
+	public static final String PROP_DNS_SERVER = "dns.server";
 
 	public static final int RELOAD_CONFIG = 10000; 			// Default 10seconds
 	public static final int RELOAD_TIMEOUT = 30000; 		// Default 30seconds timeout
 	public static final int BUFFER_LEN = 2048; 				// Default 2k page
 	public static final int BUFFER_POOL_SIZE = 8192;		// Default 8192 elements (max)
 	public static final int SELECT_TIMEOUT = 1000; 			// Default 1second timeout
+	public static final int QUEUE_SELECT_TIMEOUT = 20;		// Default 20millis timeout (clients waiting)
+	public static final int QUEUE_TIMEOUT = 10000;			// Default 10seconds waiting in queue
 	public static final int ADDR_EXPIRE_TIME = 300000; 		// Default 5min
 	public static final int DNS_CACHE_TIME = 3000; 			// Default 3seconds
 	public static final boolean DNS_CACHE_NEGATIVE = true;  // Default true (negative response cache)
+	public static final int DNS_THREADS = 4;				// Default 4 resolver threads
+	public static final int DNS_TIMEOUT = 1000;				// Default 1second waiting answer of DNS server
+	public static final int DNS_RETRIES = 2;				// Default 2 queries to DNS server (then failed)
+	public static final int DNS_TTL_MIN = 1000;				// Default 1second min TTL of answers
+	public static final int DNS_TTL_MAX = 300000;			// Default 5min max TTL of answers
+	public static final int DNS_JITTER = 10;				// Default refresh up to 10% of TTL earlier
+	public static final int DNS_NEGATIVE_MIN = 1000;		// Default 1second first retry of failed lookup
+	public static final int DNS_NEGATIVE_MAX = 60000;		// Default 60seconds max retry back-off
+	public static final int DNS_RESOLVE_WAIT = 2000;		// Default 2seconds waiting first answer (config load)
+	public static final int ENDPOINT_FILE_CHECK = 1000;		// Default 1second between checks of endpoint files
+
+	// Backend statistics (load balancing)
+	public static final double BACKEND_EWMA_ALPHA = 0.3;	// Default 0.3 (weight of new latency samples)
+	public static final int BACKEND_FAIL_TIME = 10000;		// Default 10seconds unhealthy after connect error
+	public static final int BACKEND_FAIL_PENALTY = 1000;	// Default 1second latency penalty on connect error
+	public static final double SLOWSTART_MIN_WEIGHT = 0.1;	// Default 10% of traffic at start of slow-start
+
+	// Adaptive concurrency limit (per backend)
+	public static final int LIMIT_INITIAL = 20;				// Default 20 concurrent connections
+	public static final int LIMIT_MIN = 1;					// Default 1 concurrent connection
+	public static final int LIMIT_MAX = 1000;				// Default 1000 concurrent connections
+	public static final int LIMIT_PROBE_MULTIPLIER = 30;	// Default reset no-load latency every 30*limit samples
+	public static final double LIMIT_BACKOFF_RATIO = 0.9;	// Default 0.9 (limit decrease on connect error)
+
+	// Retry budget (failover)
+	public static final int RETRY_BUDGET_WINDOW = 10000;	// Default 10seconds sliding window
+	public static final int RETRY_BUDGET_BUCKETS = 10;		// Default 10 buckets (1second each)
+	public static final int RETRY_BUDGET_MIN = 10;			// Default 10 retries per window always allowed
+
+	public static final int LOCALITY_MIN = 50;				// Default 50% local nodes healthy to stay local
+
+	// Content-keyed affinity
+	public static final int AFFINITY_PEEK = 1024;			// Default 1024 bytes peeked from client
+	public static final int AFFINITY_PEEK_TIMEOUT = 1000;	// Default 1second waiting initial bytes
+
+	// Sticky store (off-heap)
+	public static final int STICKY_OFFHEAP_WAYS = 16;		// Default 16 slots per set (power of 2)
+	public static final int STICKY_OFFHEAP_STRIPES = 64;	// Default 64 lock stripes (power of 2)
+	public static final int STICKY_TTL_BUCKETS = 16;		// Default TTL split in 16 time buckets
+
+	// Sticky store (RESP)
+	public static final int STICKY_RESP_QUEUE = 10000;		// Default 10000 pending commands (then dropped)
+	public static final int STICKY_RESP_BATCH = 128;		// Default 128 commands per pipeline
+	public static final int STICKY_RESP_TIMEOUT = 2000;		// Default 2seconds connect/read timeout
+	public static final int STICKY_RESP_RETRY = 1000;		// Default 1second before reconnect
+	public static final int STICKY_NEAR_TTL = 5000;			// Default 5seconds before refresh of near-cache
 
 	// Clean ByteBuffers for paranoids
 	public static final boolean CLEAN_BUF_ONREUSE = false;    // clean buffer after write
 	public static final boolean CLEAN_BUF_ONRELEASE = false;  // clean buffer after close connection
 
-	public static final int CLUSTER_ACCEPT_TIMEOUT = 1000;		// Default 1second timeout
 	public static final int CLUSTER_CONNECT_TIMEOUT = 10000;	// Default 10seconds timeout
 	public static final int CLUSTER_READ_TIMEOUT = 2000;		// Default 2seconds timeout
+	public static final int CLUSTER_QUEUE_SIZE = 100000;		// Default 100000 pending messages (then dropped)
+	public static final int CLUSTER_BATCH_SIZE = 1024;			// Default 1024 messages per write
+	public static final int CLUSTER_SEND_DELAY = 10;			// Default 10millis waiting new messages
+	public static final int CLUSTER_BUFFER_LEN = 65536;			// Default 64k socket buffers
+	public static final int CLUSTER_MAX_MESSAGE = 4194304;		// Default 4MB max message (input buffer)
+	public static final int CLUSTER_COMPRESS_MIN = 1024;		// Default 1k min frame payload to compress
+	public static final int CLUSTER_MAX_PENDING = 16777216;		// Default 16MB output (then slow peer is closed)
+	public static final int CLUSTER_HEARTBEAT = 1000;			// Default 1second between heartbeats
+	public static final int CLUSTER_HEARTBEAT_MISSES = 5;		// Default 5 heartbeats missed to fail link
+	public static final int CLUSTER_RECONNECT_MIN = 500;		// Default 500millis first reconnect back-off
+	public static final int CLUSTER_RECONNECT_MAX = 30000;		// Default 30seconds max reconnect back-off
+	public static final int CLUSTER_SYNC_BUCKETS = 1024;		// Default 1024 digest buckets per sticky
+	public static final int CLUSTER_SYNC_GRACE = 1000;			// Default 1second to find cluster-out
+	public static final int CLUSTER_SYNC_CHECK = 100;			// Default 100millis between sync checks
+	public static final int CLUSTER_LEASE_RENEW = 50;			// Default 50% of TTL remaining to renew sticky
+	public static final int CLUSTER_GOSSIP_PACKET = 1400;		// Default 1400bytes per datagram sent (MTU)
+	public static final int CLUSTER_GOSSIP_PACKET_MAX = 65536;	// Default 64k max datagram received
+	public static final int CLUSTER_GOSSIP_FANOUT = 3;			// Default 3 random members per gossip round
+	public static final int CLUSTER_GOSSIP_ROUND = 50;			// Default 50millis between gossip rounds
+	public static final int CLUSTER_GOSSIP_ROUND_PACKETS = 16;	// Default 16 datagrams per member and round
+	public static final int CLUSTER_GOSSIP_RETRANSMIT = 4;		// Default 4*log10(n+1) transmissions of update
+	public static final int CLUSTER_GOSSIP_INDIRECT = 3;		// Default 3 members for indirect probes
+	public static final int CLUSTER_GOSSIP_SUSPECT = 5;			// Default 5*log10(n+1) intervals as suspect
+	public static final int CLUSTER_GOSSIP_DEAD = 30000;		// Default 30seconds remembering dead members
+	public static final int CLUSTER_GOSSIP_SYNC = 60000;		// Default 60seconds between digest syncs
+	public static final int CLUSTER_GOSSIP_SEEN = 100000;		// Default 100000 leases remembered (dedup)
+	public static final int CLUSTER_RING_VNODES = 64;			// Default 64 points per member in hash ring
+	public static final int CLUSTER_LOOKUP_TIMEOUT = 100;		// Default 100millis waiting owners of sticky
+	public static final int CLUSTER_LOOKUP_CACHE = 5000;		// Default 5seconds caching answer of owners
+	public static final int CLUSTER_LOOKUP_CACHE_SIZE = 100000;	// Default 100000 answers cached (then skipped)
+	public static final int CLUSTER_LOAD_INTERVAL = 100;		// Default 100millis between reports of connections
+	public static final int CLUSTER_LOAD_STALE = 1000;			// Default 1second max age of reported connections
 }
@@ -1,46 +1,447 @@
 package org.javastack.jrinetd;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Asynchronous DNS cache: answers are served from cache (stale while a refresh is in flight), lookups run
+ * in a small pool of threads and expire by TTL of records (refreshed earlier with random jitter), failed
+ * lookups are retried with exponential back-off
+ */
 public class DNSCache {
-	private final Map<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+	private static final AtomicInteger threadSeq = new AtomicInteger();
+	private static final Random random = new Random();
 
+	private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+	private final Resolver resolver;
+	private final ExecutorService pool;
+	// Changes of answers (guarded by this)
+	private long version = 0;
+
+	public DNSCache() {
+		this(newResolver(System.getProperty(Constants.PROP_DNS_SERVER)));
+	}
+
+	DNSCache(final Resolver resolver) {
+		this.resolver = resolver;
+		this.pool = Executors.newFixedThreadPool(Constants.DNS_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "DNSResolver-" + threadSeq.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Resolver backend from config
+	 *
+	 * @param server address of DNS server (addr[:port]), null to use resolver of system
+	 * @return
+	 */
+	static Resolver newResolver(final String server) {
+		if ((server == null) || server.isEmpty()) {
+			return new SystemResolver();
+		}
+		final Resolver resolver = new StubResolver(IOHelper.parseAddress((server.indexOf(':') < 0) ? //
+				(server + ":53") : server));
+		Log.info(DNSCache.class.getSimpleName(), "Resolver: " + resolver);
+		return resolver;
+	}
+
+	/**
+	 * Cached addresses of host (never blocks), a refresh is started in background if expired
+	 *
+	 * @param host
+	 * @return null if host is unknown (not resolved yet or negative answer)
+	 */
 	public List<InetAddress> getAddressList(final String host) {
+		return getEntry(host).addr;
+	}
+
+	/**
+	 * Cached addresses of host, waits first answer if host was never resolved
+	 *
+	 * @param host
+	 * @param deadline time (millis) to stop waiting
+	 * @return null if host is unknown (not resolved yet or negative answer)
+	 * @throws InterruptedException
+	 */
+	public List<InetAddress> getAddressList(final String host, final long deadline)
+			throws InterruptedException {
+		final CacheEntry entry = getEntry(host);
+		synchronized (entry) {
+			long wait = 0;
+			while (!entry.answered && ((wait = deadline - System.currentTimeMillis()) > 0)) {
+				entry.wait(wait);
+			}
+		}
+		return entry.addr;
+	}
+
+	/**
+	 * Wait until any answer changes
+	 *
+	 * @param version last version seen
+	 * @param timeout millis
+	 * @return current version
+	 * @throws InterruptedException
+	 */
+	public synchronized long awaitChange(final long version, final long timeout) throws InterruptedException {
+		if (this.version == version) {
+			wait(timeout);
+		}
+		return this.version;
+	}
+
+	private CacheEntry getEntry(final String host) {
 		CacheEntry entry = cache.get(host);
-		if ((entry == null) || entry.isStale()) {
-			final List<InetAddress> address = initialValue(host);
-			if ((address != null) || Constants.DNS_CACHE_NEGATIVE) {
-				entry = new CacheEntry(address);
-				cache.put(host, entry);
+		if (entry == null) {
+			final CacheEntry e = new CacheEntry(host);
+			entry = cache.putIfAbsent(host, e);
+			if (entry == null) {
+				entry = e;
+			}
+		}
+		// Single lookup in flight per host
+		if ((System.currentTimeMillis() >= entry.refresh) && entry.refreshing.compareAndSet(false, true)) {
+			final CacheEntry refresh = entry;
+			try {
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						lookup(refresh);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				entry.refreshing.set(false);
 			}
 		}
-		return (entry == null ? null : entry.addr);
+		return entry;
 	}
 
-	protected List<InetAddress> initialValue(final String host) {
+	private void lookup(final CacheEntry entry) {
+		Answer answer = null;
 		try {
-			return Arrays.asList(InetAddress.getAllByName(host));
+			answer = resolver.resolve(entry.host);
 		} catch (Exception e) {
-			Log.error(DNSCache.class.getSimpleName(), "Unknown Host: " + host + " [" + e.toString() + "]");
+			Log.error(DNSCache.class.getSimpleName(), "Lookup failed: " + entry.host + " [" + e.toString()
+					+ "]" + ((entry.addr != null) ? " (serving stale)" : ""));
+		}
+		final long now = System.currentTimeMillis();
+		boolean changed = false;
+		synchronized (entry) {
+			if ((answer != null) && (answer.addr != null)) {
+				changed = ((entry.addr == null) || //
+						!new HashSet<InetAddress>(answer.addr).equals(new HashSet<InetAddress>(entry.addr)));
+				entry.addr = answer.addr;
+				entry.failures = 0;
+				final long ttl = Math.max(Constants.DNS_TTL_MIN, Math.min(Constants.DNS_TTL_MAX, answer.ttl));
+				entry.refresh = now + ttl - (long) (ttl * random.nextDouble() * Constants.DNS_JITTER / 100);
+			} else {
+				if (answer != null) {
+					Log.error(DNSCache.class.getSimpleName(), "Unknown Host: " + entry.host);
+					if (Constants.DNS_CACHE_NEGATIVE && (entry.addr != null)) {
+						entry.addr = null;
+						changed = true;
+					}
+				}
+				// Negative answer or failure (stale answer is kept)
+				final long backoff = Math.min(Constants.DNS_NEGATIVE_MAX,
+						((long) Constants.DNS_NEGATIVE_MIN) << Math.min(entry.failures, 16));
+				entry.failures++;
+				entry.refresh = now + (backoff >>> 1) + (long) (random.nextDouble() * (backoff >>> 1));
+			}
+			if (!entry.answered) {
+				entry.answered = true;
+				changed |= (entry.addr != null);
+			}
+			entry.refreshing.set(false);
+			entry.notifyAll();
+		}
+		if (changed) {
+			synchronized (this) {
+				version++;
+				notifyAll();
+			}
 		}
-		return null;
 	}
 
 	static class CacheEntry {
+		final String host;
+		final AtomicBoolean refreshing = new AtomicBoolean(false);
+		volatile List<InetAddress> addr = null;
+		volatile long refresh = 0;
+		boolean answered = false; // guarded by this
+		int failures = 0; // guarded by this
+
+		CacheEntry(final String host) {
+			this.host = host;
+		}
+	}
+
+	/**
+	 * Answer of resolver
+	 */
+	static class Answer {
 		final List<InetAddress> addr;
-		final long expire;
+		final long ttl;
 
-		CacheEntry(final List<InetAddress> addr) {
+		/**
+		 * @param addr addresses, null if host does not exist
+		 * @param ttl millis
+		 */
+		Answer(final List<InetAddress> addr, final long ttl) {
 			this.addr = addr;
-			this.expire = System.currentTimeMillis() + Constants.DNS_CACHE_TIME;
+			this.ttl = ttl;
+		}
+	}
+
+	/**
+	 * Resolver backend
+	 */
+	interface Resolver {
+		/**
+		 * Resolve host (blocking)
+		 *
+		 * @param host
+		 * @return answer
+		 * @throws IOException if server failed (stale answer is kept)
+		 */
+		Answer resolve(final String host) throws IOException;
+	}
+
+	/**
+	 * Resolver of system (JVM), TTL of records is unknown (DNS_CACHE_TIME)
+	 */
+	static class SystemResolver implements Resolver {
+		@Override
+		public Answer resolve(final String host) {
+			try {
+				return new Answer(Arrays.asList(InetAddress.getAllByName(host)), Constants.DNS_CACHE_TIME);
+			} catch (UnknownHostException e) {
+				return new Answer(null, 0);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "system";
+		}
+	}
+
+	/**
+	 * Minimal DNS client (UDP, A and AAAA records) of a configured server (like a local stub), honors TTL of
+	 * records
+	 */
+	static class StubResolver implements Resolver {
+		private static final int TYPE_A = 1;
+		private static final int TYPE_CNAME = 5;
+		private static final int TYPE_AAAA = 28;
+		private static final int CLASS_IN = 1;
+		private static final int RCODE_NXDOMAIN = 3;
+		private static final int FLAG_TC = 0x0200;
+		private static final int PACKET_LEN = 4096;
+
+		private final InetSocketAddress server;
+
+		StubResolver(final InetSocketAddress server) {
+			this.server = server;
+		}
+
+		@Override
+		public Answer resolve(final String host) throws IOException {
+			// IP literals need no lookup
+			if ((host.indexOf(':') >= 0) || host.matches("[0-9.]+")) {
+				return new Answer(Arrays.asList(InetAddress.getAllByName(host)), Constants.DNS_TTL_MAX);
+			}
+			final DatagramSocket socket = new DatagramSocket();
+			try {
+				socket.setSoTimeout(Constants.DNS_TIMEOUT);
+				final List<InetAddress> addr = new ArrayList<InetAddress>();
+				final long[] ttl = new long[] {
+					Long.MAX_VALUE
+				};
+				query(socket, host, TYPE_A, addr, ttl);
+				query(socket, host, TYPE_AAAA, addr, ttl);
+				// NXDOMAIN or no records
+				return new Answer((addr.isEmpty() ? null : addr), ttl[0]);
+			} finally {
+				socket.close();
+			}
+		}
+
+		private void query(final DatagramSocket socket, final String host, final int type,
+				final List<InetAddress> addr, final long[] ttl) throws IOException {
+			final int id = (random.nextInt() & 0xFFFF);
+			final byte[] q = question(id, host, type);
+			final DatagramPacket out = new DatagramPacket(q, q.length, server);
+			final byte[] buf = new byte[PACKET_LEN];
+			final DatagramPacket in = new DatagramPacket(buf, buf.length);
+			for (int attempt = 0; attempt < Constants.DNS_RETRIES; attempt++) {
+				socket.send(out);
+				try {
+					while (true) {
+						in.setLength(buf.length);
+						socket.receive(in);
+						// Ignore stray datagrams
+						if (server.equals(in.getSocketAddress()) && (in.getLength() >= 12)
+								&& ((((buf[0] & 0xFF) << 8) | (buf[1] & 0xFF)) == id)) {
+							if ((((buf[2] & 0xFF) << 8) & FLAG_TC) != 0) {
+								// Truncated: full answer over TCP
+								parse(ByteBuffer.wrap(queryTCP(id, q)), host, type, addr, ttl);
+							} else {
+								parse(ByteBuffer.wrap(buf, 0, in.getLength()), host, type, addr, ttl);
+							}
+							return;
+						}
+					}
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+			}
+			throw new SocketTimeoutException("No answer from " + server);
+		}
+
+		/**
+		 * Query over TCP (answer truncated over UDP)
+		 * 
+		 * @param id of question
+		 * @param q question
+		 * @return answer
+		 * @throws IOException
+		 */
+		private byte[] queryTCP(final int id, final byte[] q) throws IOException {
+			final Socket socket = new Socket();
+			try {
+				socket.connect(server, Constants.DNS_TIMEOUT);
+				socket.setSoTimeout(Constants.DNS_TIMEOUT);
+				final OutputStream os = socket.getOutputStream();
+				final byte[] out = new byte[2 + q.length];
+				out[0] = (byte) (q.length >>> 8);
+				out[1] = (byte) q.length;
+				System.arraycopy(q, 0, out, 2, q.length);
+				os.write(out);
+				os.flush();
+				final InputStream is = socket.getInputStream();
+				final byte[] hdr = new byte[2];
+				if (IOHelper.fullRead(is, hdr, hdr.length) != hdr.length) {
+					throw new IOException("No answer from " + server + " (tcp)");
+				}
+				final byte[] buf = new byte[((hdr[0] & 0xFF) << 8) | (hdr[1] & 0xFF)];
+				if ((buf.length < 12) || (IOHelper.fullRead(is, buf, buf.length) != buf.length)
+						|| ((((buf[0] & 0xFF) << 8) | (buf[1] & 0xFF)) != id)) {
+					throw new IOException("Invalid DNS answer from " + server + " (tcp)");
+				}
+				return buf;
+			} finally {
+				IOHelper.closeSilent(socket);
+			}
+		}
+
+		static byte[] question(final int id, final String host, final int type) throws IOException {
+			// header(12) + name + type(2) + class(2)
+			final ByteBuffer bb = ByteBuffer.allocate(12 + host.length() + 2 + 4);
+			bb.putShort((short) id).putShort((short) 0x0100); // recursion desired
+			bb.putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+			final String[] labels = host.split("\\.");
+			for (int i = 0; i < labels.length; i++) {
+				final byte[] b = labels[i].getBytes("US-ASCII");
+				if ((b.length == 0) || (b.length > 63)) {
+					throw new IOException("Invalid host: " + host);
+				}
+				bb.put((byte) b.length).put(b);
+			}
+			bb.put((byte) 0).putShort((short) type).putShort((short) CLASS_IN);
+			return Arrays.copyOf(bb.array(), bb.position());
+		}
+
+		static void parse(final ByteBuffer bb, final String host, final int type, final List<InetAddress> addr,
+				final long[] ttl) throws IOException {
+			try {
+				bb.position(2);
+				final int flags = (bb.getShort() & 0xFFFF);
+				if ((flags & FLAG_TC) != 0) {
+					// Partial list of addresses is not cached
+					throw new IOException("Truncated DNS answer");
+				}
+				final int rcode = (flags & 0x0F);
+				if (rcode == RCODE_NXDOMAIN) {
+					return;
+				}
+				if (rcode != 0) {
+					throw new IOException("DNS error: rcode=" + rcode);
+				}
+				final int qdcount = (bb.getShort() & 0xFFFF);
+				final int ancount = (bb.getShort() & 0xFFFF);
+				bb.position(12);
+				for (int i = 0; i < qdcount; i++) {
+					skipName(bb);
+					bb.position(bb.position() + 4);
+				}
+				for (int i = 0; i < ancount; i++) {
+					skipName(bb);
+					final int rtype = (bb.getShort() & 0xFFFF);
+					final int rclass = (bb.getShort() & 0xFFFF);
+					final long rttl = ((bb.getInt() & 0xFFFFFFFFL) * 1000);
+					final int len = (bb.getShort() & 0xFFFF);
+					final int end = bb.position() + len;
+					if ((rclass == CLASS_IN) && (rtype == type) && (len == ((type == TYPE_A) ? 4 : 16))) {
+						final byte[] b = new byte[len];
+						bb.get(b);
+						addr.add(InetAddress.getByAddress(host, b));
+						ttl[0] = Math.min(ttl[0], rttl);
+					} else if ((rclass == CLASS_IN) && (rtype == TYPE_CNAME)) {
+						// Alias expires too
+						ttl[0] = Math.min(ttl[0], rttl);
+					}
+					bb.position(end);
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("Invalid DNS answer: " + e);
+			}
+		}
+
+		private static void skipName(final ByteBuffer bb) {
+			while (true) {
+				final int len = (bb.get() & 0xFF);
+				if (len == 0) {
+					return;
+				}
+				if ((len & 0xC0) == 0xC0) {
+					bb.get(); // compression pointer
+					return;
+				}
+				bb.position(bb.position() + len);
+			}
 		}
 
-		boolean isStale() {
-			return (System.currentTimeMillis() > expire);
+		@Override
+		public String toString() {
+			return "stub=" + IOHelper.inetAddrToHoman(server);
 		}
 	}
 }
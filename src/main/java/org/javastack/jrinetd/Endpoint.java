@@ -1,35 +1,70 @@
 package org.javastack.jrinetd;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
 import org.javastack.jrinetd.LoadBalanceStrategy.LoadBalanceContext;
+import org.javastack.jrinetd.LoadBalanceStrategy.Snapshot;
 
 public class Endpoint {
+	public static final String FILE_PREFIX = "file:";
 	private static final DNSCache cache = new DNSCache();
 
+	// File with endpoint-list (service discovery), null if static
+	private final File source;
+	private long sourceModified = 0;
+	private long sourceLength = 0;
 	private volatile EndpointAddress[] addresses;
 	private final LoadBalanceStrategy<InetAddress, InetSocketAddress> loadBalancing;
-	private boolean used = false;
-	private long expire = 0;
+	private volatile boolean used = false;
+	private volatile long expire = 0;
 
 	public Endpoint(final String address,
-			final LoadBalanceStrategy<InetAddress, InetSocketAddress> loadBalancing)
-			throws UnknownHostException {
-		this.addresses = EndpointAddress.valueOf(address);
+			final LoadBalanceStrategy<InetAddress, InetSocketAddress> loadBalancing) throws IOException {
 		this.loadBalancing = loadBalancing;
-		resolve(); // Try to resolve
+		if (address.startsWith(FILE_PREFIX)) {
+			this.source = new File(address.substring(FILE_PREFIX.length()));
+			this.addresses = loadSource(); // Missing, invalid or empty file fails the forward
+		} else {
+			this.source = null;
+			this.addresses = EndpointAddress.valueOf(address);
+		}
+		try {
+			resolve(Constants.DNS_RESOLVE_WAIT); // Try to resolve
+		} catch (UnknownHostException e) {
+			Log.warn(getClass().getSimpleName(), "Unresolved endpoint=" + Arrays.asList(addresses)
+					+ " (resolving in background)");
+		}
+	}
+
+	/**
+	 * Wait until any DNS answer changes
+	 * 
+	 * @param version last version seen
+	 * @param timeout millis
+	 * @return current version
+	 * @throws InterruptedException
+	 */
+	public static long awaitChange(final long version, final long timeout) throws InterruptedException {
+		return cache.awaitChange(version, timeout);
 	}
 
-	public synchronized boolean isUsed() {
+	public boolean isUsed() {
 		return used;
 	}
 
-	public synchronized boolean isExpired() {
+	public boolean isExpired() {
 		return (System.currentTimeMillis() > expire);
 	}
 
@@ -38,18 +73,125 @@ public class Endpoint {
 		this.expire = 0;
 	}
 
+	/**
+	 * Reload endpoint-list from source file if modified (addresses are swapped in place, forward is not
+	 * restarted)
+	 * 
+	 * @return true if addresses changed (resolve is needed)
+	 */
+	public synchronized boolean checkSource() {
+		if (source == null) {
+			return false;
+		}
+		final long modified = source.lastModified();
+		final long length = source.length();
+		if ((modified == sourceModified) && (length == sourceLength)) {
+			return false;
+		}
+		try {
+			final EndpointAddress[] addresses = loadSource();
+			if (Arrays.equals(EndpointAddress.toStrings(addresses), EndpointAddress.toStrings(this.addresses))) {
+				return false;
+			}
+			Log.info(getClass().getSimpleName(), "Endpoint file changed: " + source + " endpoint="
+					+ Arrays.asList(addresses));
+			this.addresses = addresses;
+			this.expire = 0;
+			return true;
+		} catch (FileNotFoundException e) {
+			Log.warn(getClass().getSimpleName(), "Endpoint file not found: " + source
+					+ " (keeping addresses)");
+		} catch (IOException e) {
+			Log.error(getClass().getSimpleName(), "Invalid endpoint file: " + source + " (keeping addresses) ["
+					+ e.toString() + "]");
+		}
+		return false;
+	}
+
+	/**
+	 * Read and parse endpoint-list from source file
+	 * 
+	 * @return addresses (never empty)
+	 * @throws IOException if file is missing, invalid or empty
+	 */
+	private EndpointAddress[] loadSource() throws IOException {
+		sourceModified = source.lastModified();
+		sourceLength = source.length();
+		if (sourceModified == 0) {
+			throw new FileNotFoundException(source.getPath());
+		}
+		final String list = EndpointAddress.parseList(readSource());
+		if (list.trim().isEmpty()) {
+			throw new IOException("Empty endpoint-list");
+		}
+		try {
+			return EndpointAddress.valueOf(list);
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid endpoint-list: " + e.toString(), e);
+		}
+	}
+
+	private String readSource() throws IOException {
+		final InputStream is = new FileInputStream(source);
+		try {
+			final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			final byte[] b = new byte[Constants.BUFFER_LEN];
+			int len = 0;
+			while ((len = is.read(b)) > 0) {
+				buf.write(b, 0, len);
+			}
+			return buf.toString("UTF-8");
+		} finally {
+			IOHelper.closeSilent(is);
+		}
+	}
+
 	public void resolve() throws UnknownHostException {
+		resolve(0);
+	}
+
+	/**
+	 * Resolve addresses from DNS cache
+	 * 
+	 * @param wait millis waiting first answer of hosts never resolved (0 never blocks)
+	 * @throws UnknownHostException
+	 */
+	public void resolve(final long wait) throws UnknownHostException {
 		final EndpointAddress[] addresses = this.addresses;
+		final long deadline = System.currentTimeMillis() + wait;
+		if (wait > 0) {
+			// Lookups of all hosts in parallel
+			for (int i = 0; i < addresses.length; i++) {
+				cache.getAddressList(addresses[i].host);
+			}
+		}
 		final ArrayList<InetSocketAddress> inetAddr = new ArrayList<InetSocketAddress>(addresses.length);
+		final ArrayList<List<InetSocketAddress>> tiers = new ArrayList<List<InetSocketAddress>>();
+		final HashMap<InetSocketAddress, String> zones = new HashMap<InetSocketAddress, String>();
 		for (int i = 0; i < addresses.length; i++) {
-			final List<InetAddress> la = cache.getAddressList(addresses[i].host);
+			final List<InetAddress> la = getAddressList(addresses[i].host, deadline);
 			if ((la != null) && !la.isEmpty()) {
+				while (tiers.size() <= addresses[i].tier) {
+					tiers.add(new ArrayList<InetSocketAddress>());
+				}
+				final List<InetSocketAddress> tier = tiers.get(addresses[i].tier);
 				for (int j = 0; j < la.size(); j++) {
 					final InetAddress a = la.get(j);
-					inetAddr.add(new InetSocketAddress(a, addresses[i].port));
+					final InetSocketAddress sa = new InetSocketAddress(a, addresses[i].port);
+					inetAddr.add(sa);
+					tier.add(sa);
+					if (addresses[i].zone != null) {
+						zones.put(sa, addresses[i].zone);
+					}
 				}
 			}
 		}
+		// Remove tiers without resolved addresses
+		for (int i = tiers.size() - 1; i >= 0; i--) {
+			if (tiers.get(i).isEmpty()) {
+				tiers.remove(i);
+			}
+		}
 		if (inetAddr.isEmpty()) {
 			throw new UnknownHostException(addresses == null ? "<NULL>" : String.valueOf(Arrays
 					.asList(addresses)));
@@ -57,55 +199,256 @@ public class Endpoint {
 		synchronized (this) {
 			this.used = false;
 			this.expire = System.currentTimeMillis() + Constants.ADDR_EXPIRE_TIME;
-			loadBalancing.onResolve(inetAddr);
+			loadBalancing.onResolve(inetAddr, tiers, zones);
 		}
 		Log.info(getClass().getSimpleName(), "Resolved endpoint=" + Arrays.asList(addresses) + " as "
 				+ inetAddr);
 	}
 
-	public synchronized LoadBalanceContext<InetAddress, InetSocketAddress> createLoadBalanceContext(
+	private static List<InetAddress> getAddressList(final String host, final long deadline) {
+		try {
+			return cache.getAddressList(host, deadline);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return cache.getAddressList(host);
+		}
+	}
+
+	public StickyConfig getStickyConfig() {
+		return loadBalancing.getStickyConfig();
+	}
+
+	public Snapshot<InetSocketAddress> getSnapshot() {
+		return loadBalancing.getSnapshot();
+	}
+
+	public boolean admit() {
+		return loadBalancing.admit();
+	}
+
+	public void reserve() {
+		loadBalancing.reserve();
+	}
+
+	public void unreserve() {
+		loadBalancing.unreserve();
+	}
+
+	public boolean isLimited() {
+		return loadBalancing.isLimited();
+	}
+
+	public LoadBalanceContext<InetAddress, InetSocketAddress> createLoadBalanceContext(
 			final InetAddress stickyAddr) {
 		return loadBalancing.createContext(stickyAddr);
 	}
 
-	public synchronized InetSocketAddress onConnect(
+	public boolean lookupSticky(final LoadBalanceContext<InetAddress, InetSocketAddress> ctx) {
+		return loadBalancing.lookupSticky(ctx);
+	}
+
+	public InetSocketAddress onConnect(
 			final LoadBalanceContext<InetAddress, InetSocketAddress> ctx) {
-		used = true;
-		return loadBalancing.onConnect(ctx);
+		if (!used) {
+			used = true; // avoid write sharing between event loops
+		}
+		final InetSocketAddress addr = loadBalancing.onConnect(ctx);
+		loadBalancing.onConnectStart(ctx);
+		return addr;
 	}
 
-	public synchronized void onConnectFinished(final LoadBalanceContext<InetAddress, InetSocketAddress> ctx) {
+	public void onConnectFinished(final LoadBalanceContext<InetAddress, InetSocketAddress> ctx) {
 		loadBalancing.onConnectFinished(ctx);
 	}
 
-	public synchronized boolean canRetry(final LoadBalanceContext<InetAddress, InetSocketAddress> ctx) {
-		return loadBalancing.canRetry(ctx);
+	public void onFirstResponse(final LoadBalanceContext<InetAddress, InetSocketAddress> ctx,
+			final long latency) {
+		loadBalancing.onFirstResponse(ctx, latency);
+	}
+
+	public boolean onConnectFailed(final LoadBalanceContext<InetAddress, InetSocketAddress> ctx) {
+		return loadBalancing.onConnectFailed(ctx);
+	}
+
+	public void onDisconnect(final LoadBalanceContext<InetAddress, InetSocketAddress> ctx) {
+		loadBalancing.onDisconnect(ctx);
+	}
+
+	public boolean canRetry(final LoadBalanceContext<InetAddress, InetSocketAddress> ctx) {
+		return (loadBalancing.canRetry(ctx) && loadBalancing.spendRetry(ctx));
 	}
 
 	static class EndpointAddress {
 		final String host;
 		final int port;
+		final int tier;
+		final String zone;
 
-		EndpointAddress(final String host, final int port) {
+		EndpointAddress(final String host, final int port, final int tier, final String zone) {
 			this.host = host;
 			this.port = port;
+			this.tier = tier;
+			this.zone = zone;
 		}
 
-		static EndpointAddress[] valueOf(final String addressList) {
-			final String tokA[] = addressList.split(",");
-			final EndpointAddress[] addresses = new EndpointAddress[tokA.length];
+		/**
+		 * Parse content of endpoint file: JSON array of addresses, or array of arrays (priority tiers),
+		 * like ["srv1:80@zone1","srv2:80"] or [["srv1:80"],["backup1:80"]]; other content is an
+		 * endpoint-list as in config, split in lines or spaces ("#" starts a comment)
+		 * 
+		 * @param content
+		 * @return endpoint-list
+		 * @throws IOException if content is invalid
+		 */
+		static String parseList(final String content) throws IOException {
+			final String s = content.trim();
+			final StringBuilder sb = new StringBuilder();
+			if (!s.startsWith("[")) {
+				final String[] lines = s.split("\\r?\\n");
+				for (int i = 0; i < lines.length; i++) {
+					final int comment = lines[i].indexOf('#');
+					sb.append(((comment < 0) ? lines[i] : lines[i].substring(0, comment))).append(',');
+				}
+				return sb.toString().replaceAll("[\\s,]*\\|[\\s,]*", "|").replaceAll("[\\s,]+", ",")
+						.replaceAll("^,|,$", "");
+			}
+			int depth = 0;
+			boolean tierStart = true;
+			for (int i = 0; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				if (c == '[') {
+					if (++depth > 2) {
+						throw new IOException("Invalid JSON: nested arrays");
+					}
+					if ((depth == 2) && (sb.length() > 0)) {
+						sb.append('|');
+					}
+					tierStart = true;
+				} else if (c == ']') {
+					depth--;
+				} else if (c == '"') {
+					if (depth < 1) {
+						throw new IOException("Invalid JSON: string at " + i);
+					}
+					final StringBuilder str = new StringBuilder();
+					i = parseString(s, i + 1, str);
+					final String addr = str.toString().trim();
+					if (!addr.matches("[^\\s,|]*")) {
+						throw new IOException("Invalid address: " + addr);
+					}
+					if (!tierStart) {
+						sb.append(',');
+					}
+					sb.append(addr);
+					tierStart = false;
+				} else if ((c != ',') && !Character.isWhitespace(c)) {
+					throw new IOException("Invalid JSON: unexpected '" + c + "' at " + i);
+				}
+			}
+			if (depth != 0) {
+				throw new IOException("Invalid JSON: unbalanced arrays");
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * Parse JSON string (escapes decoded)
+		 * 
+		 * @param s
+		 * @param start position after opening quote
+		 * @param out decoded string
+		 * @return position of closing quote
+		 * @throws IOException if string is invalid
+		 */
+		private static int parseString(final String s, final int start, final StringBuilder out)
+				throws IOException {
+			for (int i = start; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				if (c == '"') {
+					return i;
+				}
+				if (c != '\\') {
+					out.append(c);
+					continue;
+				}
+				if (++i >= s.length()) {
+					break;
+				}
+				final char e = s.charAt(i);
+				switch (e) {
+					case '"':
+					case '\\':
+					case '/':
+						out.append(e);
+						break;
+					case 'b':
+						out.append('\b');
+						break;
+					case 'f':
+						out.append('\f');
+						break;
+					case 'n':
+						out.append('\n');
+						break;
+					case 'r':
+						out.append('\r');
+						break;
+					case 't':
+						out.append('\t');
+						break;
+					case 'u':
+						if ((i + 4) >= s.length()) {
+							throw new IOException("Invalid JSON: escape at " + i);
+						}
+						try {
+							out.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+						} catch (NumberFormatException ex) {
+							throw new IOException("Invalid JSON: escape at " + i);
+						}
+						i += 4;
+						break;
+					default:
+						throw new IOException("Invalid JSON: escape at " + i);
+				}
+			}
+			throw new IOException("Invalid JSON: unterminated string at " + start);
+		}
+
+		static String[] toStrings(final EndpointAddress[] addresses) {
+			final String[] s = new String[addresses.length];
 			for (int i = 0; i < addresses.length; i++) {
-				final String[] tokHP = tokA[i].split(":", 2);
-				final String host = tokHP[0];
-				final int port = Integer.valueOf(tokHP[1]);
-				addresses[i] = new EndpointAddress(host, port);
+				s[i] = addresses[i].toString();
+			}
+			return s;
+		}
+
+		/**
+		 * Parse address list: priority tiers are separated by "|" (first is highest priority), addresses
+		 * in the same tier by ",", optional zone label after "@"
+		 * 
+		 * @param addressList like "srv1:80@zone1,srv2:80@zone2|backup1:80"
+		 * @return
+		 */
+		static EndpointAddress[] valueOf(final String addressList) {
+			final ArrayList<EndpointAddress> addresses = new ArrayList<EndpointAddress>();
+			final String tokT[] = addressList.split("\\|");
+			for (int t = 0; t < tokT.length; t++) {
+				final String tokA[] = tokT[t].split(",");
+				for (int i = 0; i < tokA.length; i++) {
+					final String[] tokAZ = tokA[i].split("@", 2);
+					final String[] tokHP = tokAZ[0].split(":", 2);
+					final String host = tokHP[0];
+					final int port = Integer.valueOf(tokHP[1]);
+					final String zone = ((tokAZ.length > 1) ? tokAZ[1] : null);
+					addresses.add(new EndpointAddress(host, port, t, zone));
+				}
 			}
-			return addresses;
+			return addresses.toArray(new EndpointAddress[addresses.size()]);
 		}
 
 		@Override
 		public String toString() {
-			return host + ":" + port;
+			return host + ":" + port + ((zone != null) ? ("@" + zone) : "") + ((tier > 0) ? ("/" + tier) : "");
 		}
 	}
 }
@@ -2,9 +2,11 @@ package org.javastack.jrinetd;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Map;
 
-import org.javastack.jrinetd.BIOConnection.Connection;
 import org.javastack.jrinetd.LoadBalanceStrategy.LoadBalanceContext;
+import org.javastack.jrinetd.NIOConnection.Link;
 
 public interface GlobalEventHandler {
 	public void onStickyFromLocal(final BridgeContext bc,
@@ -12,5 +14,63 @@ public interface GlobalEventHandler {
 
 	public void onStickyFromCluster(final long clusterId, final StickyMessage msg);
 
-	public void onClusterClient(final long clusterId, final Connection c);
+	/**
+	 * New cluster client connected
+	 * 
+	 * @param clusterId
+	 * @param c
+	 * @param digests digests of client stores (by stickyId), null if client does not support them
+	 */
+	public void onClusterClient(final long clusterId, final Link c, final Map<Long, long[]> digests);
+
+	/**
+	 * Digests of local stores in cluster (by stickyId)
+	 * 
+	 * @param clusterId
+	 * @return
+	 */
+	public Map<Long, long[]> getClusterDigests(final long clusterId);
+
+	/**
+	 * Sticky stored locally in cluster (answer to lookup of other members)
+	 * 
+	 * @param clusterId
+	 * @param stickyId
+	 * @param stickyAddr
+	 * @return sticky with expiration of lease, null if not found
+	 */
+	public StickyMessage getClusterSticky(final long clusterId, final long stickyId,
+			final InetAddress stickyAddr);
+
+	/**
+	 * Active connections per backend of local forwards in cluster (reported to other nodes)
+	 * 
+	 * @param clusterId
+	 * @return
+	 */
+	public Map<InetSocketAddress, Integer> getClusterLoad(final long clusterId);
+
+	/**
+	 * Active connections per backend of other nodes in cluster
+	 * 
+	 * @param clusterId
+	 * @param connections sum of connections of other nodes (only backends reported)
+	 */
+	public void onClusterLoad(final long clusterId, final Map<InetSocketAddress, Integer> connections);
+
+	/**
+	 * Local connect to backend failed (backend was healthy)
+	 * 
+	 * @param bc
+	 * @param backend
+	 */
+	public void onBackendFailed(final BridgeContext bc, final InetSocketAddress backend);
+
+	/**
+	 * Backends failed in other nodes of cluster
+	 * 
+	 * @param clusterId
+	 * @param backends
+	 */
+	public void onClusterHealth(final long clusterId, final Collection<InetSocketAddress> backends);
 }
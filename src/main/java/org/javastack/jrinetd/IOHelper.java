@@ -178,6 +178,9 @@ public class IOHelper {
 	}
 
 	public static String inetAddrToHoman(final InetSocketAddress sockAddr) {
+		if (sockAddr == null) {
+			return "null"; // Not connected yet
+		}
 		return sockAddr.getAddress().getHostAddress() + ":" + sockAddr.getPort();
 	}
 
@@ -39,4 +39,19 @@ public class IpAddress {
 		applyMask(bytes, mask);
 		return getAddressByBytes(bytes);
 	}
+
+	public static final boolean isInNetwork(final InetAddress addr, final InetAddress network, final int bits) {
+		final byte[] bytes = addr.getAddress();
+		final byte[] net = network.getAddress();
+		if (bytes.length != net.length) {
+			return false;
+		}
+		applyMask(bytes, getBytesByCIDR(bits, bytes.length == 16));
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] != net[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
 }
@@ -21,17 +21,23 @@ import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.javastack.jrinetd.BIOConnection.Connection;
+import org.javastack.jrinetd.Cluster.ClusterDigest;
 import org.javastack.jrinetd.Cluster.ClusterServer;
 import org.javastack.jrinetd.LoadBalanceStrategy.LoadBalanceContext;
+import org.javastack.jrinetd.LoadBalanceStrategy.Snapshot;
+import org.javastack.jrinetd.NIOConnection.Link;
 import org.javastack.jrinetd.StickyStore.StickyEntry;
 
 /**
@@ -41,7 +47,8 @@ import org.javastack.jrinetd.StickyStore.StickyEntry;
  */
 public class Jrinetd implements GlobalEventHandler {
 	private final String configName;
-	private final Set<Server> srvs = new LinkedHashSet<Server>();
+	// Iterated by cluster and resolver threads while config reloads
+	private final Set<Server> srvs = new CopyOnWriteArraySet<Server>();
 	private final int id = Server.getId();
 	private final Listeners listeners = new Listeners();
 	private final AtomicBoolean run = new AtomicBoolean();
@@ -265,6 +272,10 @@ public class Jrinetd implements GlobalEventHandler {
 							parseIsOK = handleConfigCluster(false, toks);
 							break;
 						}
+						case CLUSTER_GOSSIP: {
+							parseIsOK = handleConfigGossip(toks);
+							break;
+						}
 						default:
 							parseIsOK = false;
 							break;
@@ -290,7 +301,11 @@ public class Jrinetd implements GlobalEventHandler {
 		// forward <bind-addr>:<bind-port> <remote-addr>:<remote-port>[,<remote-addr>:<remote-port>] [options]
 		int i = 0;
 		final String listenAddress = toks[++i].toLowerCase();
-		final String remoteAddress = toks[++i].toLowerCase();
+		final String endpoint = toks[++i];
+		// Path of endpoint file keeps case
+		final String remoteAddress = (endpoint.toLowerCase().startsWith(Endpoint.FILE_PREFIX) ? //
+				(Endpoint.FILE_PREFIX + endpoint.substring(Endpoint.FILE_PREFIX.length())) //
+				: endpoint.toLowerCase());
 		final Options opts = new Options(((toks.length > ++i) ? toks[i] : ""));
 		//
 		Log.info(getName(), "Readed bind-addr=" + listenAddress + " remote-addr=" + remoteAddress
@@ -312,6 +327,16 @@ public class Jrinetd implements GlobalEventHandler {
 		return true;
 	}
 
+	boolean handleConfigGossip(final String[] toks) throws IOException {
+		// ## cluster-gossip <clustername> <bind-addr>:<bind-port> [SEEDS=<addr>:<port>[;<addr>:<port>]][,REPLICAS=n]
+		int i = 0;
+		final String clusterName = toks[++i].toLowerCase();
+		final String address = toks[++i].toLowerCase();
+		final Options opts = new Options(((toks.length > ++i) ? toks[i] : ""));
+		Cluster.newTask(new ClusterGossip(clusterName, address, opts, this));
+		return true;
+	}
+
 	void releaseStickies() {
 		Server.getStickyFactory().releaseAll();
 	}
@@ -341,13 +366,11 @@ public class Jrinetd implements GlobalEventHandler {
 
 	void stopServers() {
 		if (!srvs.isEmpty()) {
-			final Iterator<Server> i = srvs.iterator();
-			while (i.hasNext()) {
-				final Server srv = i.next();
+			for (final Server srv : srvs) {
 				final InetSocketAddress listenAddress = srv.getListenAddress();
 				Log.info(getName(), "Stoping server: " + IOHelper.inetAddrToHoman(listenAddress));
 				srv.shutdown();
-				i.remove();
+				srvs.remove(srv);
 			}
 			final long shutdownInit = System.currentTimeMillis();
 			int running = 0;
@@ -388,8 +411,19 @@ public class Jrinetd implements GlobalEventHandler {
 		final StickyStore<InetAddress, InetSocketAddress> stickyStore = Server.getStickyFactory()
 				.getInstance(stickyCfg.stickyKey);
 		if (stickyStore != null) {
-			// if (!remoteAddr.equals(currentSticky)) less traffic, but... TTL of sticky are not updated
-			final StickyMessage msg = new StickyMessage(stickyCfg.stickyKey.stickyId, stickyAddr, remoteAddr);
+			// Unchanged sticky with long lease: peers already have it (less traffic)
+			if (stickyStore.isLeaseValid(stickyAddr, remoteAddr)) {
+				return;
+			}
+			// Balanced before owners answered: their sticky wins
+			if (ctx.isLookupPending()
+					&& ((remoteAddr == null) || stickyStore.putChosen(stickyAddr, remoteAddr))) {
+				return;
+			}
+			final long expires = System.currentTimeMillis() + (stickyCfg.ttlsec * 1000L);
+			// Masked key (same owners in partitioned cluster)
+			final StickyMessage msg = new StickyMessage(stickyCfg.stickyKey.stickyId,
+					stickyStore.maskKey(stickyAddr), remoteAddr, expires);
 			final ClusterServer clusterServer = ClusterServer.getInstance(stickyCfg.stickyKey.clusterId);
 			if (clusterServer != null) {
 				Log.info(getName(), "Sending to cluster: " + stickyCfg.stickyKey.clusterId + ": sticky="
@@ -408,26 +442,164 @@ public class Jrinetd implements GlobalEventHandler {
 				+ msg.stickyId + " stickyAddr=" + msg.stickyAddress + " remoteAddr=" + msg.remoteAddress);
 		//
 		if (stickyStore != null) {
-			stickyStore.put(msg.stickyAddress, msg.remoteAddress);
+			if (msg.expires == 0) {
+				// Older peers send no lease
+				stickyStore.put(msg.stickyAddress, msg.remoteAddress);
+				return;
+			}
+			if (msg.expires <= System.currentTimeMillis()) {
+				return;
+			}
+			// Same expiration in all nodes, last-writer-wins
+			final long ts = msg.expires - (stickyStore.getConfig().ttlsec * 1000L);
+			stickyStore.putIfNewer(new StickyEntry<InetAddress, InetSocketAddress>(msg.stickyAddress,
+					msg.remoteAddress, ts));
 		}
 	}
 
 	@Override
-	public void onClusterClient(final long clusterId, final Connection c) {
-		Log.info(getName(), "GlobalEvent: New Cluster Client clusterId=" + clusterId);
+	public void onClusterClient(final long clusterId, final Link c, final Map<Long, long[]> digests) {
+		Log.info(getName(), "GlobalEvent: New Cluster Client clusterId=" + clusterId + " digests="
+				+ ((digests == null) ? "none" : String.valueOf(digests.size())));
 		//
 		final ClusterServer clusterServer = ClusterServer.getInstance(clusterId);
 		if (clusterServer != null) {
 			final Collection<StickyStore<InetAddress, InetSocketAddress>> stores = Server.getStickyFactory()
 					.getStores();
+			// Streamed in batches (back-pressure of client), never the whole delta in memory
+			final List<StickyMessage> msgs = new ArrayList<StickyMessage>(Constants.CLUSTER_BATCH_SIZE);
 			if ((stores != null) && !stores.isEmpty()) {
 				for (final StickyStore<InetAddress, InetSocketAddress> store : stores) {
 					final StickyKey key = store.getConfig().stickyKey;
-					if (key.clusterId == clusterId) {
-						for (final StickyEntry<InetAddress, InetSocketAddress> s : store.getEntries()) {
-							clusterServer.send(c, new StickyMessage(key.stickyId, s.key, s.value));
+					if (key.clusterId != clusterId) {
+						continue;
+					}
+					final List<StickyEntry<InetAddress, InetSocketAddress>> entries = store.getEntries();
+					final long ttl = (store.getConfig().ttlsec * 1000L);
+					final long[] remote = ((digests == null) ? null : digests.get(Long.valueOf(key.stickyId)));
+					// Only buckets that differ (or all if client has no digest)
+					final boolean diff = ((remote != null) && (remote.length == Constants.CLUSTER_SYNC_BUCKETS));
+					final long[] local = (diff ? ClusterDigest.compute(entries) : null);
+					int sent = 0;
+					for (final StickyEntry<InetAddress, InetSocketAddress> s : entries) {
+						if (local != null) {
+							final int b = ClusterDigest.bucket(s.key);
+							if (local[b] == remote[b]) {
+								continue;
+							}
+						}
+						msgs.add(new StickyMessage(key.stickyId, s.key, s.value, s.ts + ttl));
+						sent++;
+						if (msgs.size() >= Constants.CLUSTER_BATCH_SIZE) {
+							clusterServer.send(c, msgs, false);
+							msgs.clear();
 						}
 					}
+					Log.info(getName(), "Sync stickyId=" + key.stickyId + " entries=" + sent + "/"
+							+ entries.size());
+				}
+			}
+			clusterServer.send(c, msgs, true);
+		}
+	}
+
+	@Override
+	public Map<Long, long[]> getClusterDigests(final long clusterId) {
+		final Map<Long, long[]> digests = new HashMap<Long, long[]>();
+		final Collection<StickyStore<InetAddress, InetSocketAddress>> stores = Server.getStickyFactory()
+				.getStores();
+		if (stores != null) {
+			for (final StickyStore<InetAddress, InetSocketAddress> store : stores) {
+				final StickyKey key = store.getConfig().stickyKey;
+				if (key.clusterId == clusterId) {
+					digests.put(Long.valueOf(key.stickyId), ClusterDigest.compute(store.getEntries()));
+				}
+			}
+		}
+		return digests;
+	}
+
+	@Override
+	public StickyMessage getClusterSticky(final long clusterId, final long stickyId,
+			final InetAddress stickyAddr) {
+		final StickyStore<InetAddress, InetSocketAddress> stickyStore = Server.getStickyFactory()
+				.getInstance(StickyKey.valueOf(clusterId, stickyId));
+		if (stickyStore != null) {
+			final StickyEntry<InetAddress, InetSocketAddress> e = stickyStore.getEntry(stickyAddr);
+			final long expires = ((e == null) ? 0 : e.ts + (stickyStore.getConfig().ttlsec * 1000L));
+			if ((e != null) && (e.value != null) && (expires > System.currentTimeMillis())) {
+				return new StickyMessage(stickyId, e.key, e.value, expires);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Map<InetSocketAddress, Integer> getClusterLoad(final long clusterId) {
+		final Map<InetSocketAddress, Integer> connections = new HashMap<InetSocketAddress, Integer>();
+		for (final Server s : srvs) {
+			final Endpoint endpoint = s.getEndPoint();
+			final StickyConfig stickyCfg = endpoint.getStickyConfig();
+			if ((stickyCfg == null) || (stickyCfg.stickyKey.clusterId != clusterId)) {
+				continue;
+			}
+			final Snapshot<InetSocketAddress> snapshot = endpoint.getSnapshot();
+			for (final InetSocketAddress addr : snapshot.getAddress()) {
+				final Integer c = connections.get(addr);
+				connections.put(addr, Integer.valueOf(((c == null) ? 0 : c.intValue())
+						+ snapshot.getStats(addr).getInflight()));
+			}
+		}
+		return connections;
+	}
+
+	@Override
+	public void onClusterLoad(final long clusterId, final Map<InetSocketAddress, Integer> connections) {
+		final long now = System.currentTimeMillis();
+		for (final Server s : srvs) {
+			final Endpoint endpoint = s.getEndPoint();
+			final StickyConfig stickyCfg = endpoint.getStickyConfig();
+			if ((stickyCfg == null) || (stickyCfg.stickyKey.clusterId != clusterId)) {
+				continue;
+			}
+			final Snapshot<InetSocketAddress> snapshot = endpoint.getSnapshot();
+			for (final Map.Entry<InetSocketAddress, Integer> e : connections.entrySet()) {
+				if (snapshot.contains(e.getKey())) {
+					snapshot.getStats(e.getKey()).setRemote(e.getValue().intValue(), now);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onBackendFailed(final BridgeContext bc, final InetSocketAddress backend) {
+		final StickyConfig stickyCfg = bc.getServer().getEndPoint().getStickyConfig();
+		if ((backend == null) || (stickyCfg == null)) {
+			return;
+		}
+		final ClusterServer clusterServer = ClusterServer.getInstance(stickyCfg.stickyKey.clusterId);
+		if (clusterServer != null) {
+			Log.info(getName(), "Sending to cluster: " + stickyCfg.stickyKey.clusterId + ": failed="
+					+ IOHelper.inetAddrToHoman(backend));
+			clusterServer.sendHealth(backend);
+		}
+	}
+
+	@Override
+	public void onClusterHealth(final long clusterId, final Collection<InetSocketAddress> backends) {
+		final long now = System.currentTimeMillis();
+		Log.info(getName(), "GlobalEvent: Backends failed in Cluster clusterId=" + clusterId + " failed="
+				+ backends);
+		for (final Server s : srvs) {
+			final Endpoint endpoint = s.getEndPoint();
+			final StickyConfig stickyCfg = endpoint.getStickyConfig();
+			if ((stickyCfg == null) || (stickyCfg.stickyKey.clusterId != clusterId)) {
+				continue;
+			}
+			final Snapshot<InetSocketAddress> snapshot = endpoint.getSnapshot();
+			for (final InetSocketAddress addr : backends) {
+				if (snapshot.contains(addr)) {
+					snapshot.getStats(addr).setRemoteFailure(now);
 				}
 			}
 		}
@@ -445,14 +617,33 @@ public class Jrinetd implements GlobalEventHandler {
 			public void run() {
 				try {
 					Thread.currentThread().setName("CacheResolver");
+					long version = 0;
+					long nextCheck = 0;
 					while (run.get()) {
+						// Endpoints read DNS cache (never blocks), new answers are applied at once
+						final long v = Endpoint.awaitChange(version, Constants.ENDPOINT_FILE_CHECK);
+						final boolean changed = (v != version);
+						final long now = System.currentTimeMillis();
+						final boolean check = (now >= nextCheck);
+						if (check) {
+							nextCheck = now + Constants.DNS_CACHE_TIME;
+						}
+						version = v;
 						for (final Server s : srvs) {
 							final Endpoint addr = s.getEndPoint();
-							if (addr.isUsed() || addr.isExpired()) {
-								addr.resolve();
+							// Endpoint files are swapped in place (no reload of config)
+							if (addr.checkSource() || changed
+									|| (check && (addr.isUsed() || addr.isExpired()))) {
+								try {
+									addr.resolve();
+								} catch (UnknownHostException e) {
+									// Logged by DNS cache (with back-off)
+									if (Log.isDebugEnabled()) {
+										Log.debug(getName(), "Unresolved endpoint: " + e.getMessage());
+									}
+								}
 							}
 						}
-						Thread.sleep(Constants.DNS_CACHE_TIME);
 					}
 				} catch (InterruptedException e) {
 					Thread.currentThread().interrupt();
@@ -478,6 +669,10 @@ public class Jrinetd implements GlobalEventHandler {
 		 * Cluster Connection (Client side)
 		 */
 		CLUSTER_OUT,
+		/**
+		 * Cluster Membership (Gossip)
+		 */
+		CLUSTER_GOSSIP,
 		/**
 		 * Unknown Parameter
 		 */
@@ -2,17 +2,42 @@ package org.javastack.jrinetd;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Load balancing strategies are lock-free: resolved nodes are published as an immutable {@link Snapshot}
+ * and per-connection state (iterators, retries) lives in the {@link LoadBalanceContext}
+ */
 public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetSocketAddress> implements
 		NodeListChangeEvent<V> {
 	protected final StickyStore<K, V> stickies;
 	protected final boolean useFailOver;
-	protected List<V> address;
+	private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+	protected final AtomicInteger inflight = new AtomicInteger(0);
+	protected final AtomicInteger reserved = new AtomicInteger(0); // admitted, not connecting yet
+	protected volatile Snapshot<V> snapshot = new Snapshot<V>();
+	private boolean resolved = false;
+	protected long slowStart = 0;
+	protected boolean adaptiveLimit = false;
+	protected int maxConn = 0;
+	protected RateLimit maxRate = null;
+	protected int backendMaxConn = 0;
+	protected int backendMaxRate = 0;
+	protected RetryBudget retryBudget = null;
+	protected Locality locality = null;
 
 	public LoadBalanceStrategy(final StickyStore<K, V> stickies, final boolean useFailOver) {
 		this.stickies = stickies;
@@ -23,6 +48,198 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 		return stickies.getConfig();
 	}
 
+	/**
+	 * Set slow-start window: new or recovered nodes receive a linearly increasing share of new connections
+	 * 
+	 * @param slowStart window in millis (0 disabled)
+	 */
+	public void setSlowStart(final long slowStart) {
+		this.slowStart = slowStart;
+	}
+
+	/**
+	 * Enable adaptive concurrency limits: saturated nodes are skipped while other nodes are available
+	 * 
+	 * @param adaptiveLimit
+	 */
+	public void setAdaptiveLimit(final boolean adaptiveLimit) {
+		this.adaptiveLimit = adaptiveLimit;
+	}
+
+	/**
+	 * Set static limits of connections
+	 * 
+	 * @param maxConn maximum concurrent connections of this forward (0 unlimited)
+	 * @param maxRate maximum new connections per second of this forward (0 unlimited)
+	 * @param backendMaxConn maximum concurrent connections per node (0 unlimited)
+	 * @param backendMaxRate maximum new connections per second per node (0 unlimited)
+	 */
+	public void setLimits(final int maxConn, final int maxRate, final int backendMaxConn,
+			final int backendMaxRate) {
+		this.maxConn = maxConn;
+		this.maxRate = ((maxRate > 0) ? new RateLimit(maxRate) : null);
+		this.backendMaxConn = backendMaxConn;
+		this.backendMaxRate = backendMaxRate;
+	}
+
+	/**
+	 * Set retry budget of failover
+	 * 
+	 * @param percent maximum retries as percentage of first attempts (0 unlimited)
+	 */
+	public void setRetryBudget(final int percent) {
+		this.retryBudget = ((percent > 0) ? new RetryBudget(percent) : null);
+	}
+
+	/**
+	 * Get retry budget of failover
+	 * 
+	 * @return budget or null if unlimited
+	 */
+	public RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+
+	/**
+	 * Set locality: prefer local nodes while enough of them are healthy and available
+	 * 
+	 * @param locality (null disabled)
+	 */
+	public void setLocality(final Locality locality) {
+		this.locality = locality;
+	}
+
+	/**
+	 * Static limits are configured
+	 * 
+	 * @return
+	 */
+	public boolean isLimited() {
+		return ((maxConn > 0) || (maxRate != null) || (backendMaxConn > 0) || (backendMaxRate > 0));
+	}
+
+	/**
+	 * Check if a new connection can be admitted now (limits of forward and at least one node available),
+	 * counting connections admitted that are not connecting yet
+	 * 
+	 * @return
+	 */
+	public boolean canAdmit() {
+		final int reserved = this.reserved.get();
+		if ((maxConn > 0) && ((inflight.get() + reserved) >= maxConn)) {
+			return false;
+		}
+		if ((maxRate != null) && !maxRate.isAvailable(reserved)) {
+			return false;
+		}
+		final Snapshot<V> snapshot = this.snapshot;
+		final List<V> address = snapshot.address;
+		int free = 0;
+		for (int i = 0; i < address.size(); i++) {
+			final BackendStats s = snapshot.getStats(address.get(i));
+			if (isAvailable(s)) {
+				free += ((backendMaxConn > 0) ? (backendMaxConn - s.getClusterInflight()) : (reserved + 1));
+				if (free > reserved) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Admit a new connection if limits allow it: a slot is reserved until connect to a node is started
+	 * or connection is closed (only one thread admits connections of a forward)
+	 * 
+	 * @return false if connection can not be admitted now
+	 */
+	public boolean admit() {
+		if (!canAdmit()) {
+			return false;
+		}
+		reserved.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Connection is accepted without checking limits (slot reserved anyway)
+	 */
+	public void reserve() {
+		reserved.incrementAndGet();
+	}
+
+	/**
+	 * Release slot reserved for connection not created
+	 */
+	public void unreserve() {
+		reserved.decrementAndGet();
+	}
+
+	/**
+	 * Current nodes (immutable)
+	 * 
+	 * @return
+	 */
+	public Snapshot<V> getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Invoked after list created, with nodes grouped in priority tiers (first is highest priority) and
+	 * zone labels of nodes. A new immutable snapshot is published, lists received are not retained.
+	 * 
+	 * @param address
+	 * @param tiers
+	 * @param zones
+	 */
+	public synchronized void onResolve(final List<V> address, final List<List<V>> tiers,
+			final Map<V, String> zones) {
+		final Snapshot<V> old = this.snapshot;
+		final Locality locality = this.locality;
+		// Nodes of first resolve are not subject to slow-start
+		final boolean warm = !resolved;
+		resolved = true;
+		final List<V> all = new ArrayList<V>(address);
+		reorder(all);
+		final List<List<V>> tiersCopy = new ArrayList<List<V>>(tiers.size());
+		if (tiers.size() > 1) {
+			for (final List<V> tier : tiers) {
+				final List<V> t = new ArrayList<V>(tier);
+				reorder(t);
+				tiersCopy.add(Collections.unmodifiableList(t));
+			}
+		} else {
+			tiersCopy.add(Collections.unmodifiableList(all));
+		}
+		// Local nodes of each tier
+		List<List<V>> locals = null;
+		if (locality != null) {
+			locals = new ArrayList<List<V>>(tiersCopy.size());
+			for (final List<V> tier : tiersCopy) {
+				final List<V> local = new ArrayList<V>();
+				for (final V a : tier) {
+					if (locality.isLocal(a, zones.get(a))) {
+						local.add(a);
+					}
+				}
+				locals.add(Collections.unmodifiableList(local));
+			}
+			locals = Collections.unmodifiableList(locals);
+		}
+		// Keep stats of surviving nodes, forget removed ones
+		final HashMap<V, BackendStats> stats = new HashMap<V, BackendStats>();
+		for (final V a : all) {
+			BackendStats s = old.stats.get(a);
+			if (s == null) {
+				s = new BackendStats(warm, backendMaxRate);
+			}
+			stats.put(a, s);
+		}
+		this.snapshot = new Snapshot<V>(tiersCopy.get(0) == all ? tiersCopy.get(0)
+				: Collections.unmodifiableList(all), Collections.unmodifiableList(tiersCopy), locals,
+				Collections.unmodifiableMap(stats));
+	}
+
 	/**
 	 * Invoked after list created for special ordering of the nodes
 	 * 
@@ -30,7 +247,130 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 	 */
 	@Override
 	public void onResolve(final List<V> address) {
-		this.address = address;
+		onResolve(address, Collections.singletonList(address), Collections.<V, String> emptyMap());
+	}
+
+	/**
+	 * Special ordering of the nodes
+	 * 
+	 * @param list
+	 */
+	protected void reorder(final List<V> list) {
+	}
+
+	/**
+	 * Nodes eligible for new connections: the highest priority tier with healthy and available nodes
+	 * (spillover to next tiers when exhausted), restricted to local nodes while enough of them are healthy
+	 * and available
+	 * 
+	 * @return
+	 */
+	protected List<V> candidates(final Snapshot<V> snapshot) {
+		final List<List<V>> tiers = snapshot.tiers;
+		for (int t = 0; t < tiers.size(); t++) {
+			final List<V> tier = tiers.get(t);
+			if (countUsable(snapshot, tier) > 0) {
+				if (snapshot.locals != null) {
+					final List<V> local = snapshot.locals.get(t);
+					if (!local.isEmpty()
+							&& ((countUsable(snapshot, local) * 100) >= (local.size() * locality.getMinPercent()))) {
+						return local;
+					}
+				}
+				return tier;
+			}
+		}
+		return snapshot.address;
+	}
+
+	private int countUsable(final Snapshot<V> snapshot, final List<V> list) {
+		int c = 0;
+		for (int i = 0; i < list.size(); i++) {
+			final BackendStats s = snapshot.getStats(list.get(i));
+			if (s.isHealthy() && isAvailable(s)) {
+				c++;
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Context has more nodes to try, when current tier is exhausted continue with the next eligible tier
+	 * 
+	 * @param ctx
+	 * @return
+	 */
+	protected boolean hasNextCandidate(final LoadBalanceContext<K, V> ctx) {
+		if (ctx.hasNext()) {
+			return true;
+		}
+		final List<V> next = candidates(ctx.snapshot);
+		if (next != ctx.list) {
+			ctx.set(next, next.iterator());
+			return ctx.hasNext();
+		}
+		return false;
+	}
+
+	/**
+	 * Random generator of current thread
+	 * 
+	 * @return
+	 */
+	protected static Random random() {
+		return random.get();
+	}
+
+	/**
+	 * Randomly accept a node in proportion of his effective weight (slow-start)
+	 * 
+	 * @param s stats of node
+	 * @return
+	 */
+	protected boolean acceptWeighted(final BackendStats s) {
+		if (slowStart <= 0) {
+			return true;
+		}
+		final double w = s.getWeight(slowStart);
+		return ((w >= 1d) || (random().nextDouble() < w));
+	}
+
+	/**
+	 * Node is below his static limits and adaptive concurrency limit (if enabled)
+	 * 
+	 * @param s stats of node
+	 * @return
+	 */
+	protected boolean isAvailable(final BackendStats s) {
+		if (!s.isBelowLimits(backendMaxConn)) {
+			return false;
+		}
+		return (!adaptiveLimit || !s.isSaturated());
+	}
+
+	/**
+	 * Node can be used for a new connection (health, concurrency limit and slow-start)
+	 * 
+	 * @param s stats of node
+	 * @return
+	 */
+	protected boolean accept(final BackendStats s) {
+		return (s.isHealthy() && isAvailable(s) && acceptWeighted(s));
+	}
+
+	/**
+	 * Get next node from context iterator, skipping nodes rejected by concurrency limit or slow-start (the
+	 * last node is always accepted)
+	 * 
+	 * @param ctx
+	 * @return
+	 */
+	protected V nextAccepted(final LoadBalanceContext<K, V> ctx) {
+		V addr = ctx.nextAndSet();
+		while ((addr != null) && ctx.hasNext() && !accept(ctx.snapshot.getStats(addr))) {
+			addr = ctx.nextAndSet();
+		}
+		return addr;
 	}
 
 	/**
@@ -55,42 +395,115 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 			return null;
 		}
 		// OK, find on stickies
-		return ctx.setRemoteAddress(findSticky(ctx.getStickyAddress()));
+		return ctx.setRemoteAddress(findSticky(ctx.snapshot, ctx.getStickyAddress()));
+	}
+
+	/**
+	 * Start lookup of sticky in cluster (partitioned stickies not found locally), asynchronous
+	 * 
+	 * @param ctx
+	 * @return true if answer of owners is pending
+	 */
+	public boolean lookupSticky(final LoadBalanceContext<K, V> ctx) {
+		final K stickyAddr = ctx.getStickyAddress();
+		if ((stickies != null) && (stickyAddr != null) && stickies.lookup(stickyAddr)) {
+			ctx.lookupPending = true;
+		}
+		return ctx.lookupPending;
 	}
 
 	/**
 	 * Find remote address for specified sticky address
 	 * 
+	 * @param snapshot
 	 * @param stickyAddr
 	 * @return
 	 */
-	protected V findSticky(final K stickyAddr) {
+	protected V findSticky(final Snapshot<V> snapshot, final K stickyAddr) {
 		// First, try sticky, if any...
 		if ((stickies != null) && (stickyAddr != null)) {
-			final V addr = stickies.get(stickyAddr);
-			if (addr != null) {
-				// Check if addr remain valid
-				final int len = address.size();
-				for (int i = 0; i < len; i++) { // TODO: Improve this (Set?)
-					final V a = address.get(i);
-					if (addr.equals(a)) {
-						Log.info(getClass().getSimpleName(), "Sticky id=" + stickyAddr + " result=" + addr);
-						return addr;
-					}
-				}
+			final V addr = stickies.find(stickyAddr);
+			// Check if addr remain valid
+			if ((addr != null) && snapshot.contains(addr)) {
+				Log.info(getClass().getSimpleName(), "Sticky id=" + stickyAddr + " result=" + addr);
+				return addr;
 			}
 		}
 		// Sorry, not found...
 		return null;
 	}
 
+	/**
+	 * Invoked when connect to selected node is started
+	 * 
+	 * @param ctx
+	 */
+	public void onConnectStart(final LoadBalanceContext<K, V> ctx) {
+		if ((++ctx.attempts == 1) && (retryBudget != null)) {
+			retryBudget.onAttempt();
+		}
+		final V addr = ctx.getRemoteAddress();
+		if (addr != null) {
+			if (useFailOver) {
+				ctx.tried(addr);
+			}
+			ctx.acquire(ctx.snapshot.getStats(addr));
+		}
+	}
+
 	/**
 	 * Invoked after connect is done
 	 * 
 	 * @param ctx
 	 */
 	public void onConnectFinished(final LoadBalanceContext<K, V> ctx) {
-		stickies.put(ctx.getStickyAddress(), ctx.getRemoteAddress());
+		final BackendStats s = ctx.stats;
+		if ((s != null) && (ctx.connectStart != 0) && (ctx.getRemoteAddress() != null)) {
+			ctx.connectLatency = System.nanoTime() - ctx.connectStart;
+			ctx.connectStart = 0;
+			s.onConnected(ctx.connectLatency);
+		}
+		if (!ctx.lookupPending) {
+			stickies.putLocal(ctx.getStickyAddress(), ctx.getRemoteAddress());
+		}
+	}
+
+	/**
+	 * Invoked when first response bytes are received from node
+	 * 
+	 * @param ctx
+	 * @param latency time waiting for response in nanos
+	 */
+	public void onFirstResponse(final LoadBalanceContext<K, V> ctx, final long latency) {
+		final BackendStats s = ctx.stats;
+		if (s != null) {
+			s.onResponse(ctx.connectLatency + latency);
+		}
+	}
+
+	/**
+	 * Invoked when connect to selected node fail
+	 * 
+	 * @param ctx
+	 * @return true if node was healthy (new failure)
+	 */
+	public boolean onConnectFailed(final LoadBalanceContext<K, V> ctx) {
+		final BackendStats s = ctx.stats;
+		if (s != null) {
+			final boolean failed = s.onFailed();
+			ctx.release();
+			return failed;
+		}
+		return false;
+	}
+
+	/**
+	 * Invoked when connection is closed
+	 * 
+	 * @param ctx
+	 */
+	public void onDisconnect(final LoadBalanceContext<K, V> ctx) {
+		ctx.release();
 	}
 
 	/**
@@ -102,6 +515,21 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 		return useFailOver;
 	}
 
+	/**
+	 * Spend a retry from budget (invoked after {@link #canRetry(LoadBalanceContext)} allows it)
+	 * 
+	 * @param ctx
+	 * @return false if retry budget is exhausted
+	 */
+	public boolean spendRetry(final LoadBalanceContext<K, V> ctx) {
+		if ((retryBudget == null) || retryBudget.tryRetry()) {
+			return true;
+		}
+		Log.warn(getClass().getSimpleName(), "Retry suppressed by budget: sticky=" + ctx.getStickyAddress()
+				+ " " + retryBudget);
+		return false;
+	}
+
 	public static class NoStrategy<K extends InetAddress, V extends InetSocketAddress> extends
 			LoadBalanceStrategy<K, V> {
 		public NoStrategy(final StickyStore<K, V> stickies, final boolean useFailOver) {
@@ -110,7 +538,9 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 
 		@Override
 		public LoadBalanceContext<K, V> createContext(final K stickyAddr) {
-			return super.createContext(stickyAddr).set(address.iterator());
+			final LoadBalanceContext<K, V> ctx = super.createContext(stickyAddr);
+			final List<V> list = candidates(ctx.snapshot);
+			return ctx.set(list, list.iterator());
 		}
 
 		@Override
@@ -119,53 +549,60 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 			if (sticky != null) {
 				return sticky;
 			}
-			if (address.isEmpty())
+			if (!ctx.hasNext())
 				return null;
-			return ctx.nextAndSet();
+			return nextAccepted(ctx);
 		}
 
 		@Override
 		public boolean canRetry(final LoadBalanceContext<K, V> ctx) {
-			return (super.canRetry(ctx) && ctx.hasNext());
+			return (super.canRetry(ctx) && hasNextCandidate(ctx));
 		}
 	}
 
 	public static class RandomStrategy<K extends InetAddress, V extends InetSocketAddress> extends
 			LoadBalanceStrategy<K, V> {
-		final Random r = new Random();
-		protected int current = 0;
-
 		public RandomStrategy(final StickyStore<K, V> stickies, final boolean useFailOver) {
 			super(stickies, useFailOver);
 		}
 
-		@Override
-		public LoadBalanceContext<K, V> createContext(final K stickyAddr) {
-			current = address.size();
-			return super.createContext(stickyAddr);
-		}
-
 		@Override
 		public V onConnect(final LoadBalanceContext<K, V> ctx) {
 			final V sticky = super.onConnect(ctx);
 			if (sticky != null) {
 				return sticky;
 			}
+			final List<V> address = candidates(ctx.snapshot);
 			if (address.isEmpty())
 				return null;
-			current--;
-			return ctx.setRemoteAddress(address.get((r.nextInt() & Integer.MAX_VALUE) % address.size()));
+			final Random r = random();
+			final int len = address.size();
+			for (int i = 0; i < len; i++) {
+				final V addr = address.get((r.nextInt() & Integer.MAX_VALUE) % len);
+				if (!ctx.isTried(addr) && accept(ctx.snapshot.getStats(addr))) {
+					return ctx.setRemoteAddress(addr);
+				}
+			}
+			// Unlucky, scan for a node not tried yet
+			final int offset = (r.nextInt() & Integer.MAX_VALUE);
+			for (int i = 0; i < len; i++) {
+				final V addr = address.get((offset + i) % len);
+				if (!ctx.isTried(addr)) {
+					return ctx.setRemoteAddress(addr);
+				}
+			}
+			return ctx.setRemoteAddress(address.get(offset % len));
 		}
 
 		@Override
 		public boolean canRetry(final LoadBalanceContext<K, V> ctx) {
-			return (super.canRetry(ctx) && (current > 0));
+			return (super.canRetry(ctx) && (ctx.attempts < ctx.snapshot.size()));
 		}
 	}
 
 	public static class RoundRobinStrategy<K extends InetAddress, V extends InetSocketAddress> extends
 			LoadBalanceStrategy<K, V> {
-		protected int current = 0;
+		protected final AtomicInteger current = new AtomicInteger(0);
 
 		public RoundRobinStrategy(final StickyStore<K, V> stickies, final boolean useFailOver) {
 			super(stickies, useFailOver);
@@ -173,7 +610,9 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 
 		@Override
 		public LoadBalanceContext<K, V> createContext(final K stickyAddr) {
-			return super.createContext(stickyAddr).set(new RingIterator<V>(address, current++));
+			final LoadBalanceContext<K, V> ctx = super.createContext(stickyAddr);
+			final List<V> list = candidates(ctx.snapshot);
+			return ctx.set(list, new RingIterator<V>(list, current.getAndIncrement()));
 		}
 
 		@Override
@@ -182,12 +621,12 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 			if (sticky != null) {
 				return sticky;
 			}
-			return ctx.nextAndSet();
+			return nextAccepted(ctx);
 		}
 
 		@Override
 		public boolean canRetry(final LoadBalanceContext<K, V> ctx) {
-			return (super.canRetry(ctx) && ctx.hasNext());
+			return (super.canRetry(ctx) && hasNextCandidate(ctx));
 		}
 	}
 
@@ -202,9 +641,8 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 		}
 
 		@Override
-		public void onResolve(final List<V> list) {
-			super.onResolve(list);
-			Collections.sort(this.address, comparator);
+		protected void reorder(final List<V> list) {
+			Collections.sort(list, comparator);
 		}
 	}
 
@@ -215,20 +653,140 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 		}
 
 		@Override
-		public void onResolve(final List<V> list) {
-			super.onResolve(list);
-			Collections.shuffle(this.address);
+		protected void reorder(final List<V> list) {
+			Collections.shuffle(list);
+		}
+	}
+
+	/**
+	 * Power of two choices: pick two random nodes, use the one with lower score (EWMA latency and
+	 * inflight connections), prefer healthy nodes
+	 */
+	public static class PowerOfTwoChoicesStrategy<K extends InetAddress, V extends InetSocketAddress>
+			extends LoadBalanceStrategy<K, V> {
+		public PowerOfTwoChoicesStrategy(final StickyStore<K, V> stickies, final boolean useFailOver) {
+			super(stickies, useFailOver);
+		}
+
+		@Override
+		public V onConnect(final LoadBalanceContext<K, V> ctx) {
+			final V sticky = super.onConnect(ctx);
+			if (sticky != null) {
+				return sticky;
+			}
+			// Retry: sample among nodes not tried yet (any tier), last resort tried nodes again
+			List<V> address = untried(ctx, candidates(ctx.snapshot));
+			if (address.isEmpty()) {
+				address = untried(ctx, ctx.snapshot.address);
+				if (address.isEmpty()) {
+					address = candidates(ctx.snapshot);
+				}
+			}
+			final int len = address.size();
+			if (len == 0)
+				return null;
+			if (len == 1)
+				return ctx.setRemoteAddress(address.get(0));
+			final Random r = random();
+			final int i = (r.nextInt() & Integer.MAX_VALUE) % len;
+			final int j = (i + 1 + ((r.nextInt() & Integer.MAX_VALUE) % (len - 1))) % len;
+			final V a = address.get(i), b = address.get(j);
+			final BackendStats sa = ctx.snapshot.getStats(a), sb = ctx.snapshot.getStats(b);
+			final boolean ha = sa.isHealthy() && isAvailable(sa), hb = sb.isHealthy() && isAvailable(sb);
+			if (ha != hb) {
+				return ctx.setRemoteAddress(ha ? a : b);
+			}
+			final double scoreA = sa.getScore() / sa.getWeight(slowStart);
+			final double scoreB = sb.getScore() / sb.getWeight(slowStart);
+			return ctx.setRemoteAddress((scoreA <= scoreB) ? a : b);
+		}
+
+		private List<V> untried(final LoadBalanceContext<K, V> ctx, final List<V> list) {
+			if (ctx.tried == null) {
+				return list;
+			}
+			final List<V> l = new ArrayList<V>(list.size());
+			for (int i = 0; i < list.size(); i++) {
+				final V addr = list.get(i);
+				if (!ctx.isTried(addr)) {
+					l.add(addr);
+				}
+			}
+			return l;
+		}
+
+		@Override
+		public boolean canRetry(final LoadBalanceContext<K, V> ctx) {
+			return (super.canRetry(ctx) && (ctx.attempts < ctx.snapshot.size()));
+		}
+	}
+
+	/**
+	 * Immutable, indexed view of resolved nodes
+	 */
+	public static class Snapshot<V extends InetSocketAddress> {
+		private final List<V> address;
+		private final List<List<V>> tiers;
+		private final List<List<V>> locals;
+		private final Map<V, BackendStats> stats;
+
+		private Snapshot() {
+			this(Collections.<V> emptyList(), Collections.singletonList(Collections.<V> emptyList()), null,
+					Collections.<V, BackendStats> emptyMap());
+		}
+
+		private Snapshot(final List<V> address, final List<List<V>> tiers, final List<List<V>> locals,
+				final Map<V, BackendStats> stats) {
+			this.address = address;
+			this.tiers = tiers;
+			this.locals = locals;
+			this.stats = stats;
+		}
+
+		public List<V> getAddress() {
+			return address;
+		}
+
+		public int size() {
+			return address.size();
+		}
+
+		public boolean contains(final V addr) {
+			return stats.containsKey(addr);
+		}
+
+		/**
+		 * Get runtime statistics of a node
+		 * 
+		 * @param addr
+		 * @return stats (detached instance if node is unknown)
+		 */
+		public BackendStats getStats(final V addr) {
+			final BackendStats s = stats.get(addr);
+			return ((s == null) ? new BackendStats(false, 0) : s);
 		}
 	}
 
 	public static class LoadBalanceContext<K extends InetAddress, V extends InetSocketAddress> {
 		private final LoadBalanceStrategy<K, V> strategy;
+		private final Snapshot<V> snapshot;
 		private final K stickyAddress;
+		private List<V> list = null;
 		private Iterator<V> i = null;
 		private V remoteAddress = null;
+		private List<V> tried = null;
+		private BackendStats stats = null;
+		private long connectStart = 0;
+		private long connectLatency = 0;
+		// Node balanced without answer of sticky owners (must not override their sticky)
+		private boolean lookupPending = false;
+		// Slot reserved at admission, until first connect is started (or released)
+		private boolean reserved = true;
+		int attempts = 0;
 
 		private LoadBalanceContext(final LoadBalanceStrategy<K, V> strategy, final K stickyAddress) {
 			this.strategy = strategy;
+			this.snapshot = strategy.snapshot;
 			this.stickyAddress = stickyAddress;
 		}
 
@@ -244,11 +802,16 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 			return remoteAddress;
 		}
 
+		public boolean isLookupPending() {
+			return lookupPending;
+		}
+
 		protected V setRemoteAddress(final V remoteAddress) {
 			return (this.remoteAddress = remoteAddress);
 		}
 
-		protected LoadBalanceContext<K, V> set(final Iterator<V> i) {
+		protected LoadBalanceContext<K, V> set(final List<V> list, final Iterator<V> i) {
+			this.list = list;
 			this.i = i;
 			return this;
 		}
@@ -260,5 +823,40 @@ public abstract class LoadBalanceStrategy<K extends InetAddress, V extends InetS
 		protected V nextAndSet() {
 			return setRemoteAddress(i.hasNext() ? i.next() : null);
 		}
+
+		private void tried(final V addr) {
+			if (tried == null) {
+				tried = new ArrayList<V>(2);
+			}
+			tried.add(addr);
+		}
+
+		protected boolean isTried(final V addr) {
+			return ((tried != null) && tried.contains(addr));
+		}
+
+		private void acquire(final BackendStats stats) {
+			release();
+			strategy.inflight.incrementAndGet();
+			if (strategy.maxRate != null) {
+				strategy.maxRate.acquire();
+			}
+			stats.acquire();
+			this.stats = stats;
+			this.connectStart = System.nanoTime();
+		}
+
+		private void release() {
+			if (reserved) {
+				reserved = false;
+				strategy.reserved.decrementAndGet();
+			}
+			final BackendStats s = this.stats;
+			if (s != null) {
+				this.stats = null;
+				s.release();
+				strategy.inflight.decrementAndGet();
+			}
+		}
 	}
 }
@@ -0,0 +1,105 @@
+package org.javastack.jrinetd;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Locality of backends: local zone label or local subnets (CIDR)
+ */
+public class Locality {
+	private final String zone;
+	private final List<InetAddress> networks;
+	private final int bits;
+	private final int minPercent;
+
+	private Locality(final String zone, final List<InetAddress> networks, final int bits,
+			final int minPercent) {
+		this.zone = zone;
+		this.networks = networks;
+		this.bits = bits;
+		this.minPercent = minPercent;
+	}
+
+	/**
+	 * Parse locality config
+	 *
+	 * @param cfg "zone:label" or "bits" (subnet of listen address) or "network/bits"
+	 * @param listenAddress listen address of forward
+	 * @param minPercent minimum percentage of local nodes healthy to stay local
+	 * @return
+	 * @throws IOException
+	 */
+	public static Locality valueOf(final String cfg, final InetSocketAddress listenAddress,
+			final int minPercent) throws IOException {
+		if (cfg.toLowerCase().startsWith("zone:")) {
+			return new Locality(cfg.substring(5).toLowerCase(), Collections.<InetAddress> emptyList(), 0,
+					minPercent);
+		}
+		final int slash = cfg.indexOf('/');
+		if (slash > 0) {
+			final int bits = Integer.parseInt(cfg.substring(slash + 1));
+			final InetAddress addr = InetAddress.getByName(cfg.substring(0, slash));
+			final InetAddress net = IpAddress.getAddressMasked(addr, bits);
+			return new Locality(null, Collections.singletonList(net), bits, minPercent);
+		}
+		final int bits = Integer.parseInt(cfg);
+		final ArrayList<InetAddress> networks = new ArrayList<InetAddress>();
+		final InetAddress listen = listenAddress.getAddress();
+		if (!listen.isAnyLocalAddress()) {
+			networks.add(IpAddress.getAddressMasked(listen, bits));
+		} else {
+			// Listening on all interfaces, use every configured address
+			final Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
+			while ((e != null) && e.hasMoreElements()) {
+				for (final InterfaceAddress ia : e.nextElement().getInterfaceAddresses()) {
+					final InetAddress a = ia.getAddress();
+					if (!a.isLoopbackAddress() && !a.isLinkLocalAddress()) {
+						networks.add(IpAddress.getAddressMasked(a, bits));
+					}
+				}
+			}
+		}
+		return new Locality(null, networks, bits, minPercent);
+	}
+
+	/**
+	 * Check if node is local
+	 *
+	 * @param addr node address
+	 * @param zone zone label of node (may be null)
+	 * @return
+	 */
+	public boolean isLocal(final InetSocketAddress addr, final String zone) {
+		if (this.zone != null) {
+			return this.zone.equalsIgnoreCase(zone);
+		}
+		for (final InetAddress net : networks) {
+			if (IpAddress.isInNetwork(addr.getAddress(), net, bits)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Minimum percentage of local nodes healthy to stay local
+	 *
+	 * @return
+	 */
+	public int getMinPercent() {
+		return minPercent;
+	}
+
+	@Override
+	public String toString() {
+		return ((zone != null) ? ("zone=" + zone) : ("networks=" + networks + "/" + bits)) + " min="
+				+ minPercent + "%";
+	}
+}
@@ -0,0 +1,584 @@
+package org.javastack.jrinetd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking connections served by a shared event loop (a single thread for all cluster links)
+ */
+public class NIOConnection {
+	public final InetSocketAddress address;
+	final EventLoop loop;
+	final Handler handler;
+	SelectionKey key = null;
+
+	NIOConnection(final EventLoop loop, final InetSocketAddress address, final Handler handler) {
+		this.loop = loop;
+		this.address = address;
+		this.handler = handler;
+	}
+
+	String getName() {
+		return getClass().getSimpleName() + "-" + String.valueOf(address);
+	}
+
+	/**
+	 * Bind listener (must be called from event loop)
+	 *
+	 * @param loop
+	 * @param address
+	 * @param handler for accepted links
+	 * @return
+	 * @throws IOException
+	 */
+	public static Listener listen(final EventLoop loop, final InetSocketAddress address,
+			final Handler handler) throws IOException {
+		ServerSocketChannel ssc = null;
+		try {
+			ssc = ServerSocketChannel.open();
+			ssc.configureBlocking(false);
+			ssc.socket().setReuseAddress(true);
+			ssc.socket().bind(address);
+			final Listener listener = new Listener(loop, address, handler, ssc);
+			listener.key = ssc.register(loop.selector, SelectionKey.OP_ACCEPT, listener);
+			return listener;
+		} catch (IOException e) {
+			IOHelper.closeSilent(ssc);
+			throw e;
+		}
+	}
+
+	/**
+	 * Start connection (must be called from event loop); {@link Handler#onOpen(Link)} is called when
+	 * connected
+	 *
+	 * @param loop
+	 * @param address
+	 * @param handler
+	 * @return
+	 * @throws IOException
+	 */
+	public static Link connect(final EventLoop loop, final InetSocketAddress address, final Handler handler)
+			throws IOException {
+		SocketChannel sc = null;
+		try {
+			sc = SocketChannel.open();
+			sc.configureBlocking(false);
+			setupSocket(sc);
+			final Link link = new Link(loop, address, handler, sc, null);
+			if (sc.connect(address)) {
+				link.key = sc.register(loop.selector, SelectionKey.OP_READ, link);
+				link.onConnected();
+			} else {
+				link.key = sc.register(loop.selector, SelectionKey.OP_CONNECT, link);
+			}
+			return link;
+		} catch (IOException e) {
+			IOHelper.closeSilent(sc);
+			throw e;
+		}
+	}
+
+	/**
+	 * Bind datagram endpoint (must be called from event loop)
+	 *
+	 * @param loop
+	 * @param address
+	 * @param handler
+	 * @return
+	 * @throws IOException
+	 */
+	public static Datagram bind(final EventLoop loop, final InetSocketAddress address,
+			final DatagramHandler handler) throws IOException {
+		DatagramChannel dc = null;
+		try {
+			dc = DatagramChannel.open();
+			dc.configureBlocking(false);
+			dc.socket().setReuseAddress(true);
+			dc.socket().setSendBufferSize(Constants.CLUSTER_BUFFER_LEN);
+			dc.socket().setReceiveBufferSize(Constants.CLUSTER_BUFFER_LEN);
+			dc.socket().bind(address);
+			final Datagram datagram = new Datagram(loop, address, handler, dc);
+			datagram.key = dc.register(loop.selector, SelectionKey.OP_READ, datagram);
+			return datagram;
+		} catch (IOException e) {
+			IOHelper.closeSilent(dc);
+			throw e;
+		}
+	}
+
+	private static void setupSocket(final SocketChannel sc) throws IOException {
+		sc.socket().setReuseAddress(true);
+		sc.socket().setKeepAlive(true);
+		sc.socket().setTcpNoDelay(true);
+		sc.socket().setSendBufferSize(Constants.CLUSTER_BUFFER_LEN);
+		sc.socket().setReceiveBufferSize(Constants.CLUSTER_BUFFER_LEN);
+	}
+
+	/**
+	 * Events of links (called from event loop)
+	 */
+	interface Handler {
+		/**
+		 * Link accepted or connected
+		 *
+		 * @param link
+		 * @throws IOException
+		 */
+		void onOpen(Link link) throws IOException;
+
+		/**
+		 * Consume complete messages from buffer; throw {@link BufferUnderflowException} (after reset)
+		 * or return leaving remaining bytes if more are needed
+		 *
+		 * @param link
+		 * @param in
+		 * @throws IOException
+		 */
+		void onRead(Link link, ByteBuffer in) throws IOException;
+
+		/**
+		 * Link closed
+		 *
+		 * @param link
+		 */
+		void onClose(Link link);
+	}
+
+	/**
+	 * Events of datagram endpoints (called from event loop)
+	 */
+	interface DatagramHandler {
+		/**
+		 * Datagram received
+		 *
+		 * @param from
+		 * @param in
+		 * @throws IOException if datagram is invalid (discarded)
+		 */
+		void onDatagram(InetSocketAddress from, ByteBuffer in) throws IOException;
+	}
+
+	/**
+	 * Periodic work (called from event loop)
+	 */
+	interface Tickable {
+		void onTick(long now);
+	}
+
+	/**
+	 * Selector thread: runs tasks, I/O events and ticks
+	 */
+	static class EventLoop implements Runnable {
+		private static EventLoop instance = null;
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final CopyOnWriteArrayList<Tickable> tickables = new CopyOnWriteArrayList<Tickable>();
+		private final AtomicBoolean awake = new AtomicBoolean(false);
+		private final Thread thread;
+
+		private EventLoop() throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, getClass().getSimpleName());
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * Shared event loop (started on first use)
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		public synchronized static EventLoop getInstance() throws IOException {
+			if (instance == null) {
+				instance = new EventLoop();
+				instance.thread.start();
+			}
+			return instance;
+		}
+
+		public boolean inLoop() {
+			return (Thread.currentThread() == thread);
+		}
+
+		/**
+		 * Run task in event loop (thread-safe)
+		 *
+		 * @param r
+		 */
+		public void execute(final Runnable r) {
+			tasks.offer(r);
+			if (!inLoop() && awake.compareAndSet(false, true)) {
+				selector.wakeup();
+			}
+		}
+
+		public void addTickable(final Tickable t) {
+			tickables.add(t);
+		}
+
+		public void removeTickable(final Tickable t) {
+			tickables.remove(t);
+		}
+
+		@Override
+		public void run() {
+			Log.info(getClass().getSimpleName(), "Started");
+			while (true) {
+				try {
+					Runnable r = null;
+					while ((r = tasks.poll()) != null) {
+						try {
+							r.run();
+						} catch (Exception e) {
+							Log.error(getClass().getSimpleName(), "Exception in task: " + e, e);
+						}
+					}
+					selector.select(Constants.CLUSTER_SEND_DELAY);
+					awake.set(false);
+					final Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+					while (i.hasNext()) {
+						final SelectionKey key = i.next();
+						i.remove();
+						final Object att = key.attachment();
+						if (att instanceof Listener) {
+							((Listener) att).onAcceptable();
+						} else if (att instanceof Link) {
+							((Link) att).onSelected(key);
+						} else if (att instanceof Datagram) {
+							((Datagram) att).onReadable();
+						}
+					}
+					final long now = System.currentTimeMillis();
+					for (final Tickable t : tickables) {
+						try {
+							t.onTick(now);
+						} catch (Exception e) {
+							Log.error(getClass().getSimpleName(), "Exception in tick: " + e, e);
+						}
+					}
+				} catch (Throwable t) {
+					Log.error(getClass().getSimpleName(), "Unhandled Exception: " + t, t);
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+	}
+
+	static class Listener extends NIOConnection implements Closeable {
+		private final ServerSocketChannel ssc;
+		private final CopyOnWriteArraySet<Link> links = new CopyOnWriteArraySet<Link>();
+
+		Listener(final EventLoop loop, final InetSocketAddress address, final Handler handler,
+				final ServerSocketChannel ssc) {
+			super(loop, address, handler);
+			this.ssc = ssc;
+		}
+
+		/**
+		 * Accepted links
+		 *
+		 * @return
+		 */
+		Iterator<Link> connections() {
+			return links.iterator();
+		}
+
+		void onAcceptable() {
+			SocketChannel sc = null;
+			try {
+				while ((sc = ssc.accept()) != null) {
+					sc.configureBlocking(false);
+					setupSocket(sc);
+					final Link link = new Link(loop, address, handler, sc, this);
+					link.key = sc.register(loop.selector, SelectionKey.OP_READ, link);
+					links.add(link);
+					link.onConnected();
+				}
+			} catch (IOException e) {
+				IOHelper.closeSilent(sc);
+				Log.error(getName(), "IOException (accept): " + e);
+			}
+		}
+
+		@Override
+		public void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			IOHelper.closeSilent(ssc);
+			for (final Link link : links) {
+				link.close();
+			}
+		}
+	}
+
+	static class Datagram extends NIOConnection implements Closeable {
+		private final DatagramChannel dc;
+		private final DatagramHandler datagramHandler;
+		private final ByteBuffer in = ByteBuffer.allocate(Constants.CLUSTER_GOSSIP_PACKET_MAX);
+
+		Datagram(final EventLoop loop, final InetSocketAddress address, final DatagramHandler handler,
+				final DatagramChannel dc) {
+			super(loop, address, null);
+			this.dc = dc;
+			this.datagramHandler = handler;
+		}
+
+		/**
+		 * Send datagram (must be called from event loop); dropped if socket buffer is full
+		 *
+		 * @param bb
+		 * @param to
+		 * @return false if dropped
+		 */
+		public boolean send(final ByteBuffer bb, final InetSocketAddress to) {
+			try {
+				return (dc.send(bb, to) > 0);
+			} catch (IOException e) {
+				Log.warn(getName(), "IOException (send " + to + "): " + e);
+				return false;
+			}
+		}
+
+		void onReadable() {
+			while (true) {
+				in.clear();
+				final InetSocketAddress from;
+				try {
+					from = (InetSocketAddress) dc.receive(in);
+				} catch (IOException e) {
+					Log.error(getName(), "IOException (receive): " + e);
+					return;
+				}
+				if (from == null) {
+					return;
+				}
+				in.flip();
+				try {
+					datagramHandler.onDatagram(from, in);
+				} catch (IOException e) {
+					Log.warn(getName(), "Invalid datagram from " + from + ": " + e);
+				} catch (RuntimeException e) {
+					Log.warn(getName(), "Invalid datagram from " + from + ": " + e);
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			IOHelper.closeSilent(dc);
+		}
+	}
+
+	static class Link extends NIOConnection implements Closeable {
+		private final SocketChannel sc;
+		private final Listener parent;
+		private final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicLong pending = new AtomicLong(0);
+		private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+		private final Runnable flushTask = new Runnable() {
+			@Override
+			public void run() {
+				flushQueued.set(false);
+				flush();
+			}
+		};
+		private ByteBuffer in = ByteBuffer.allocate(Constants.CLUSTER_BUFFER_LEN);
+		private volatile boolean open = true;
+		private volatile boolean connected = false;
+		final long created = System.currentTimeMillis();
+		volatile long lastRead = created;
+		volatile long lastWrite = created;
+		/**
+		 * State of handler
+		 */
+		volatile Object attachment = null;
+
+		Link(final EventLoop loop, final InetSocketAddress address, final Handler handler,
+				final SocketChannel sc, final Listener parent) {
+			super(loop, address, handler);
+			this.sc = sc;
+			this.parent = parent;
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		public boolean isConnected() {
+			return connected;
+		}
+
+		public InetSocketAddress getRemoteAddress() {
+			return (InetSocketAddress) sc.socket().getRemoteSocketAddress();
+		}
+
+		/**
+		 * Queue data to send (thread-safe); a link too slow to drain its output is closed
+		 *
+		 * @param bb
+		 * @return false if link is closed
+		 */
+		public boolean write(final ByteBuffer bb) {
+			if (!open) {
+				return false;
+			}
+			if (pending.addAndGet(bb.remaining()) > Constants.CLUSTER_MAX_PENDING) {
+				Log.warn(getName(), "Output queue full (slow peer), closing: " + getRemoteAddress());
+				close();
+				return false;
+			}
+			out.offer(bb);
+			if (loop.inLoop()) {
+				flush();
+			} else if (flushQueued.compareAndSet(false, true)) {
+				loop.execute(flushTask);
+			}
+			return true;
+		}
+
+		/**
+		 * Bytes queued and not yet sent
+		 *
+		 * @return
+		 */
+		public long getPending() {
+			return pending.get();
+		}
+
+		void onConnected() throws IOException {
+			connected = true;
+			lastRead = lastWrite = System.currentTimeMillis();
+			handler.onOpen(this);
+			flush();
+		}
+
+		void onSelected(final SelectionKey key) {
+			try {
+				if (!key.isValid()) {
+					return;
+				}
+				if (key.isConnectable()) {
+					sc.finishConnect();
+					key.interestOps(SelectionKey.OP_READ);
+					onConnected();
+				}
+				if (key.isValid() && key.isReadable()) {
+					onReadable();
+				}
+				if (key.isValid() && key.isWritable()) {
+					flush();
+				}
+			} catch (IOException e) {
+				Log.error(getName(), "IOException: " + e);
+				close();
+			} catch (RuntimeException e) {
+				// Handler failed, unread bytes of input are lost (stream can't be resumed)
+				Log.error(getName(), "Exception: " + e, e);
+				close();
+			}
+		}
+
+		private void onReadable() throws IOException {
+			final int len = sc.read(in);
+			if (len < 0) {
+				throw new IOException("Connection closed by peer");
+			}
+			lastRead = System.currentTimeMillis();
+			in.flip();
+			try {
+				handler.onRead(this, in);
+			} catch (BufferUnderflowException e) {
+				// Incomplete message, wait more bytes
+			}
+			in.compact();
+			if (!in.hasRemaining()) {
+				// Buffer full with incomplete message
+				if (in.capacity() >= Constants.CLUSTER_MAX_MESSAGE) {
+					throw new IOException("Message too large: " + in.capacity());
+				}
+				final ByteBuffer bigger = ByteBuffer.allocate(in.capacity() << 1);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+		}
+
+		private void flush() {
+			if (!open || !connected) {
+				return;
+			}
+			try {
+				ByteBuffer bb = null;
+				while ((bb = out.peek()) != null) {
+					final int len = sc.write(bb);
+					pending.addAndGet(-len);
+					if (bb.hasRemaining()) {
+						break;
+					}
+					out.poll();
+				}
+				lastWrite = System.currentTimeMillis();
+				if (connected && key.isValid()) {
+					key.interestOps(out.isEmpty() ? SelectionKey.OP_READ
+							: (SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+				}
+			} catch (IOException e) {
+				Log.error(getName(), "IOException (write): " + e);
+				close();
+			}
+		}
+
+		/**
+		 * Close link (thread-safe)
+		 */
+		@Override
+		public void close() {
+			if (!loop.inLoop()) {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				});
+				return;
+			}
+			if (!open) {
+				return;
+			}
+			open = false;
+			if (key != null) {
+				key.cancel();
+			}
+			IOHelper.closeSilent(sc);
+			out.clear();
+			if (parent != null) {
+				parent.links.remove(this);
+			}
+			handler.onClose(this);
+		}
+	}
+}
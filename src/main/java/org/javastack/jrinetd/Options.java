@@ -17,10 +17,33 @@ public class Options {
 	public static final int LB_RANDRR    = 0x00000004; 	// Random Round robin
 	public static final int LB_ORDER     = 0x00000008; 	// Original order, pick next only on error
 	public static final int FAILOVER     = 0x00000010; 	// FailOver ON
+	public static final int LB_P2C       = 0x00000020; 	// Power of two choices (latency / inflight)
+	public static final int LIMIT_ADAPTIVE = 0x00000040; // Adaptive concurrency limit per backend
 	public static final int PROXY_SEND   = 0x00001000; 	// Send PROXY protocol (outbound)
 	// @formatter:on
 	//
 	public static final String P_STICKY = "STICKY"; // STICKY=MEM:bitmask:elements:ttl:sticky-name[:cluster-name]
+	public static final String P_STICKY_SERVER = "STICKY_SERVER"; // STICKY_SERVER=host:port
+	public static final String P_SLOWSTART = "SLOWSTART"; // SLOWSTART=seconds
+	public static final String P_MAXCONN = "MAXCONN"; // MAXCONN=connections
+	public static final String P_MAXRATE = "MAXRATE"; // MAXRATE=connections/second
+	public static final String P_BACKEND_MAXCONN = "BACKEND_MAXCONN"; // BACKEND_MAXCONN=connections
+	public static final String P_BACKEND_MAXRATE = "BACKEND_MAXRATE"; // BACKEND_MAXRATE=connections/second
+	public static final String P_QUEUE_SIZE = "QUEUE_SIZE"; // QUEUE_SIZE=clients
+	public static final String P_QUEUE_TIMEOUT = "QUEUE_TIMEOUT"; // QUEUE_TIMEOUT=millis
+	public static final String P_RETRY_BUDGET = "RETRY_BUDGET"; // RETRY_BUDGET=percent
+	public static final String P_LOCALITY = "LOCALITY"; // LOCALITY=<zone:label|bits|network/bits>
+	public static final String P_LOCALITY_MIN = "LOCALITY_MIN"; // LOCALITY_MIN=percent
+	public static final String P_REPLAY = "REPLAY"; // REPLAY=bytes
+	public static final String P_AFFINITY = "AFFINITY"; // AFFINITY=<cookie:name|header:name|mqtt|tls>
+	public static final String P_AFFINITY_PEEK = "AFFINITY_PEEK"; // AFFINITY_PEEK=bytes
+	public static final String P_SYNC_WAIT = "SYNC_WAIT"; // SYNC_WAIT=seconds
+	public static final String P_HEARTBEAT = "HEARTBEAT"; // HEARTBEAT=millis
+	public static final String P_RECONNECT_MIN = "RECONNECT_MIN"; // RECONNECT_MIN=millis
+	public static final String P_RECONNECT_MAX = "RECONNECT_MAX"; // RECONNECT_MAX=millis
+	public static final String P_SEEDS = "SEEDS"; // SEEDS=host:port[;host:port]
+	public static final String P_ADVERTISE = "ADVERTISE"; // ADVERTISE=host:port
+	public static final String P_REPLICAS = "REPLICAS"; // REPLICAS=members
 	//
 	@SuppressWarnings("serial")
 	private final static Map<String, Integer> MAP_FLAGS = Collections
@@ -31,7 +54,9 @@ public class Options {
 					put("LB=RR", LB_RR);
 					put("LB=RAND", LB_RAND);
 					put("LB=RANDRR", LB_RANDRR);
+					put("LB=P2C", LB_P2C);
 					put("FAILOVER", FAILOVER);
+					put("LIMIT=ADAPTIVE", LIMIT_ADAPTIVE);
 					put("PROXY=SEND", PROXY_SEND);
 				}
 			});
@@ -42,11 +67,32 @@ public class Options {
 	final Map<String, String> strParams = Collections.synchronizedMap(new HashMap<String, String>() {
 		{
 			put(P_STICKY, S_NULL);		// STICKY=<name>
+			put(P_STICKY_SERVER, S_NULL);	// STICKY_SERVER=host:port
+			put(P_LOCALITY, S_NULL);	// LOCALITY=<zone:label|bits|network/bits>
+			put(P_AFFINITY, S_NULL);	// AFFINITY=<cookie:name|header:name|mqtt|tls>
+			put(P_SEEDS, S_NULL);		// SEEDS=host:port[;host:port]
+			put(P_ADVERTISE, S_NULL);	// ADVERTISE=host:port
 		}
 	});
 	@SuppressWarnings("serial")
 	final Map<String, Integer> intParams = Collections.synchronizedMap(new HashMap<String, Integer>() {
 		{
+			put(P_SLOWSTART, I_NULL);	// SLOWSTART=seconds
+			put(P_MAXCONN, I_NULL);		// MAXCONN=connections
+			put(P_MAXRATE, I_NULL);		// MAXRATE=connections/second
+			put(P_BACKEND_MAXCONN, I_NULL);	// BACKEND_MAXCONN=connections
+			put(P_BACKEND_MAXRATE, I_NULL);	// BACKEND_MAXRATE=connections/second
+			put(P_QUEUE_SIZE, I_NULL);	// QUEUE_SIZE=clients
+			put(P_QUEUE_TIMEOUT, I_NULL);	// QUEUE_TIMEOUT=millis
+			put(P_RETRY_BUDGET, I_NULL);	// RETRY_BUDGET=percent
+			put(P_LOCALITY_MIN, I_NULL);	// LOCALITY_MIN=percent
+			put(P_REPLAY, I_NULL);		// REPLAY=bytes
+			put(P_AFFINITY_PEEK, I_NULL);	// AFFINITY_PEEK=bytes
+			put(P_SYNC_WAIT, I_NULL);	// SYNC_WAIT=seconds
+			put(P_HEARTBEAT, I_NULL);	// HEARTBEAT=millis
+			put(P_RECONNECT_MIN, I_NULL);	// RECONNECT_MIN=millis
+			put(P_RECONNECT_MAX, I_NULL);	// RECONNECT_MAX=millis
+			put(P_REPLICAS, I_NULL);	// REPLICAS=members
 			// put(P_CONNECT_TIMEOUT, I_NULL); // CONNECT_TIMEOUT=millis
 			// put(P_READ_TIMEOUT, I_NULL); // READ_TIMEOUT=millis
 		}
@@ -264,7 +310,12 @@ public class Options {
 				final int ttl = Integer.parseInt(toks[i++]);
 				final String stickyName = toks[i++];
 				final String clusterName = ((i < toks.length) ? toks[i++] : null);
-				stickyConfig = StickyConfig.valueOf(type, bitmask, elements, ttl, clusterName, stickyName);
+				final String server = getString(P_STICKY_SERVER);
+				if ((type == StickyConfig.Type.RESP) && (server == null)) {
+					throw new IllegalArgumentException("STICKY=RESP requires STICKY_SERVER=host:port");
+				}
+				stickyConfig = StickyConfig.valueOf(type, bitmask, elements, ttl, clusterName, stickyName,
+						server);
 			}
 		}
 		return stickyConfig;
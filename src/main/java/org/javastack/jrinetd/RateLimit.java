@@ -0,0 +1,57 @@
+package org.javastack.jrinetd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limit of events per second (lock-free, GCRA / virtual scheduling)
+ */
+public class RateLimit {
+	private static final long SECOND = 1000000000L;
+
+	private final long interval; // nanos between events
+	private final AtomicLong tat = new AtomicLong(System.nanoTime()); // theoretical arrival time
+
+	/**
+	 * Create a rate limit
+	 *
+	 * @param rate events per second (burst of one second)
+	 */
+	public RateLimit(final int rate) {
+		this.interval = (SECOND / Math.max(1, rate));
+	}
+
+	/**
+	 * Check if an event is allowed now (without consuming)
+	 *
+	 * @return
+	 */
+	public boolean isAvailable() {
+		return isAvailable(0);
+	}
+
+	/**
+	 * Check if an event is allowed now after other events not consumed yet (without consuming)
+	 *
+	 * @param pending events allowed before but not consumed yet
+	 * @return
+	 */
+	public boolean isAvailable(final int pending) {
+		return ((tat.get() + (pending * interval) - System.nanoTime()) < SECOND);
+	}
+
+	/**
+	 * Consume an event
+	 *
+	 * @return false if rate was exceeded (the event is registered anyway)
+	 */
+	public boolean acquire() {
+		while (true) {
+			final long now = System.nanoTime();
+			final long old = tat.get();
+			final long base = (((old - now) > 0) ? old : now);
+			if (tat.compareAndSet(old, base + interval)) {
+				return ((base - now) < SECOND);
+			}
+		}
+	}
+}
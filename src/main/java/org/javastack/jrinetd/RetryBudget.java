@@ -0,0 +1,82 @@
+package org.javastack.jrinetd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Retry budget: retries may not exceed a percentage of first attempts over a sliding window (lock-free)
+ */
+public class RetryBudget {
+	private final int percent;
+	private final int buckets = Constants.RETRY_BUDGET_BUCKETS;
+	private final long bucketTime = (Constants.RETRY_BUDGET_WINDOW / Constants.RETRY_BUDGET_BUCKETS);
+	private final AtomicLongArray epochs = new AtomicLongArray(buckets);
+	private final AtomicLongArray attempts = new AtomicLongArray(buckets);
+	private final AtomicLongArray retries = new AtomicLongArray(buckets);
+	private final AtomicLong suppressed = new AtomicLong(0);
+
+	/**
+	 * Create retry budget
+	 *
+	 * @param percent maximum retries as percentage of first attempts
+	 */
+	public RetryBudget(final int percent) {
+		this.percent = percent;
+	}
+
+	/**
+	 * Register a first attempt
+	 */
+	public void onAttempt() {
+		attempts.incrementAndGet(bucket());
+	}
+
+	/**
+	 * Try to spend a retry
+	 *
+	 * @return true if retry is allowed
+	 */
+	public boolean tryRetry() {
+		final int current = bucket();
+		final long now = (System.currentTimeMillis() / bucketTime);
+		long a = 0, r = 0;
+		for (int i = 0; i < buckets; i++) {
+			if ((now - epochs.get(i)) < buckets) {
+				a += attempts.get(i);
+				r += retries.get(i);
+			}
+		}
+		if ((r * 100) < ((a * percent) + (Constants.RETRY_BUDGET_MIN * 100))) {
+			retries.incrementAndGet(current);
+			return true;
+		}
+		suppressed.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Total retries suppressed by budget
+	 *
+	 * @return
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	private int bucket() {
+		final long epoch = (System.currentTimeMillis() / bucketTime);
+		final int i = (int) (epoch % buckets);
+		final long old = epochs.get(i);
+		if ((old != epoch) && epochs.compareAndSet(i, old, epoch)) {
+			// Bucket recycled (a few concurrent events may be lost)
+			attempts.set(i, 0);
+			retries.set(i, 0);
+		}
+		return i;
+	}
+
+	@Override
+	public String toString() {
+		return "percent=" + percent + " suppressed=" + getSuppressed();
+	}
+}
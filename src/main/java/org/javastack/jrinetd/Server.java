@@ -26,6 +26,7 @@ import org.javastack.jrinetd.GenericPool.GenericPoolFactory;
 import org.javastack.jrinetd.Listeners.Listener;
 import org.javastack.jrinetd.LoadBalanceStrategy.NoStrategy;
 import org.javastack.jrinetd.LoadBalanceStrategy.OrderedRoundRobinStrategy;
+import org.javastack.jrinetd.LoadBalanceStrategy.PowerOfTwoChoicesStrategy;
 import org.javastack.jrinetd.LoadBalanceStrategy.RandomRoundRobinStrategy;
 import org.javastack.jrinetd.LoadBalanceStrategy.RandomStrategy;
 import org.javastack.jrinetd.LoadBalanceStrategy.RoundRobinStrategy;
@@ -50,6 +51,7 @@ public class Server implements Runnable {
 	private final Endpoint remoteAddress;
 	private final Options opts;
 	private final GlobalEventHandler events;
+	private final Affinity affinity;
 
 	private final int id = getId();
 	private final AtomicBoolean running = new AtomicBoolean(false);
@@ -69,6 +71,14 @@ public class Server implements Runnable {
 		this.remoteAddress = new Endpoint(remoteAddress, getLoadBalanceStrategy(opts));
 		this.opts = opts;
 		this.events = events;
+		final String affinity = opts.getString(Options.P_AFFINITY);
+		if (affinity != null) {
+			this.affinity = Affinity.valueOf(affinity,
+					opts.getInteger(Options.P_AFFINITY_PEEK, Constants.AFFINITY_PEEK).intValue());
+			Log.info(getName(), "Affinity: " + this.affinity);
+		} else {
+			this.affinity = null;
+		}
 		try {
 			listener = listeners.getServerSocketChannel(this.listenAddress);
 		} catch (IOException e) {
@@ -109,11 +119,36 @@ public class Server implements Runnable {
 		return events;
 	}
 
-	LoadBalanceStrategy<InetAddress, InetSocketAddress> getLoadBalanceStrategy(final Options opts) {
+	public Affinity getAffinity() {
+		return affinity;
+	}
+
+	LoadBalanceStrategy<InetAddress, InetSocketAddress> getLoadBalanceStrategy(final Options opts)
+			throws IOException {
+		final LoadBalanceStrategy<InetAddress, InetSocketAddress> lb = newLoadBalanceStrategy(opts);
+		lb.setSlowStart(opts.getInteger(Options.P_SLOWSTART, Options.I_NULL).intValue() * 1000L);
+		lb.setAdaptiveLimit(opts.isOption(Options.LIMIT_ADAPTIVE));
+		lb.setLimits(opts.getInteger(Options.P_MAXCONN, Options.I_NULL).intValue(), //
+				opts.getInteger(Options.P_MAXRATE, Options.I_NULL).intValue(), //
+				opts.getInteger(Options.P_BACKEND_MAXCONN, Options.I_NULL).intValue(), //
+				opts.getInteger(Options.P_BACKEND_MAXRATE, Options.I_NULL).intValue());
+		lb.setRetryBudget(opts.getInteger(Options.P_RETRY_BUDGET, Options.I_NULL).intValue());
+		final String locality = opts.getString(Options.P_LOCALITY);
+		if (locality != null) {
+			final Locality l = Locality.valueOf(locality, listenAddress,
+					opts.getInteger(Options.P_LOCALITY_MIN, Constants.LOCALITY_MIN).intValue());
+			Log.info(getName(), "Locality: " + l);
+			lb.setLocality(l);
+		}
+		return lb;
+	}
+
+	LoadBalanceStrategy<InetAddress, InetSocketAddress> newLoadBalanceStrategy(final Options opts) {
 		final StickyConfig stickyConfig = opts.getStickyConfig();
 		final StickyStore<InetAddress, InetSocketAddress> stickies = stickyFactory.getInstance(stickyConfig);
 		final boolean useFailOver = opts.isOption(Options.FAILOVER);
-		final int filterFlags = (Options.LB_ORDER | Options.LB_RR | Options.LB_RAND | Options.LB_RANDRR);
+		final int filterFlags = (Options.LB_ORDER | Options.LB_RR | Options.LB_RAND | Options.LB_RANDRR
+				| Options.LB_P2C);
 		switch (opts.getFlags(filterFlags)) {
 			case Options.LB_ORDER:
 				return new OrderedRoundRobinStrategy<InetAddress, InetSocketAddress>(stickies, useFailOver,
@@ -124,6 +159,8 @@ public class Server implements Runnable {
 				return new RandomStrategy<InetAddress, InetSocketAddress>(stickies, useFailOver);
 			case Options.LB_RANDRR:
 				return new RandomRoundRobinStrategy<InetAddress, InetSocketAddress>(stickies, useFailOver);
+			case Options.LB_P2C:
+				return new PowerOfTwoChoicesStrategy<InetAddress, InetSocketAddress>(stickies, useFailOver);
 		}
 		return new NoStrategy<InetAddress, InetSocketAddress>(stickies, useFailOver);
 	}
@@ -162,6 +199,42 @@ public class Server implements Runnable {
 		return handlers.get((handler.incrementAndGet() & Integer.MAX_VALUE) % handlers.size());
 	}
 
+	/**
+	 * Delay accepting connections until initial sync of sticky cluster completes (or timeout)
+	 */
+	void waitClusterSync() {
+		final long wait = opts.getInteger(Options.P_SYNC_WAIT, Options.I_NULL).intValue() * 1000L;
+		final StickyConfig stickyConfig = opts.getStickyConfig();
+		if ((wait <= 0) || (stickyConfig == null) || !stickyConfig.isReplicated()) {
+			return;
+		}
+		final long clusterId = stickyConfig.stickyKey.clusterId;
+		final long begin = System.currentTimeMillis();
+		Log.info(getName(), "Waiting initial sync of cluster: " + clusterId);
+		while (isRunning()) {
+			final long elapsed = (System.currentTimeMillis() - begin);
+			final Boolean synced = Cluster.isSynced(clusterId);
+			if (Boolean.TRUE.equals(synced)) {
+				Log.info(getName(), "Cluster synced: " + clusterId + " (" + elapsed + "ms)");
+				break;
+			}
+			if ((synced == null) && (elapsed >= Constants.CLUSTER_SYNC_GRACE)) {
+				Log.info(getName(), "Cluster without peers (cluster-out): " + clusterId);
+				break;
+			}
+			if (elapsed >= wait) {
+				Log.warn(getName(), "Cluster sync timeout: " + clusterId);
+				break;
+			}
+			try {
+				Thread.sleep(Constants.CLUSTER_SYNC_CHECK);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
 	@Override
 	public void run() {
 		runningServers.incrementAndGet();
@@ -174,6 +247,7 @@ public class Server implements Runnable {
 			}
 			Thread.currentThread().setName(
 					"srv-" + Server.getId() + "-" + IOHelper.inetAddrToHoman(getListenAddress()));
+			waitClusterSync();
 			Log.info(getName(), "Accepting connections on " + IOHelper.inetAddrToHoman(getListenAddress()));
 			final ServerEventHandler handler = new ServerEventHandler(this, listener.s);
 			while (isRunning()) {
@@ -8,6 +8,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -17,10 +18,19 @@ public class ServerEventHandler implements Runnable {
 	private final int id = Server.getId();
 	private final Selector selector;
 	private final ArrayBlockingQueue<SocketChannel> clientQueue = new ArrayBlockingQueue<SocketChannel>(8);
+	// Clients waiting for backend capacity (FIFO)
+	private final ArrayDeque<WaitingClient> waitQueue = new ArrayDeque<WaitingClient>();
+	private final int waitQueueSize;
+	private final long waitQueueTimeout;
+	// Clients peeking initial bytes (content-keyed affinity)
+	private final ArrayDeque<ConnectionHandler> peekQueue = new ArrayDeque<ConnectionHandler>();
 
 	public ServerEventHandler(final Server srv, final Selector selector) {
 		this.srv = srv;
 		this.selector = selector;
+		final Options opts = srv.getOpts();
+		this.waitQueueSize = opts.getInteger(Options.P_QUEUE_SIZE, Options.I_NULL).intValue();
+		this.waitQueueTimeout = opts.getInteger(Options.P_QUEUE_TIMEOUT, Constants.QUEUE_TIMEOUT).intValue();
 	}
 
 	public String getName() {
@@ -32,20 +42,142 @@ public class ServerEventHandler implements Runnable {
 		selector.wakeup();
 	}
 
-	private void registerClient(final SocketChannel sc) throws IOException {
+	/**
+	 * Register accepted client (errors close only this client, never the event loop)
+	 * 
+	 * @param sc
+	 */
+	private void registerClient(final SocketChannel sc) {
+		try {
+			admitClient(sc);
+		} catch (IOException e) {
+			Log.error(getName(), "IOException registering client: " + e.toString());
+			IOHelper.closeSilent(sc);
+		} catch (RuntimeException e) {
+			Log.error(getName(), "Exception registering client: " + e.toString(), e);
+			IOHelper.closeSilent(sc);
+		}
+	}
+
+	private void admitClient(final SocketChannel sc) throws IOException {
+		final Endpoint endpoint = srv.getEndPoint();
+		// Keep FIFO order if clients are waiting
+		if (!waitQueue.isEmpty() || !endpoint.admit()) {
+			if (waitQueue.size() < waitQueueSize) {
+				waitQueue.addLast(new WaitingClient(sc));
+				if (Log.isDebugEnabled())
+					Log.debug(getName(), "Queued connection: " + sc.socket().getRemoteSocketAddress()
+							+ " waiting=" + waitQueue.size());
+				return;
+			}
+			if ((waitQueueSize > 0) || endpoint.isLimited()) {
+				Log.warn(getName(), "Rejected connection (limits reached): "
+						+ sc.socket().getRemoteSocketAddress() + " > "
+						+ IOHelper.inetAddrToHoman(srv.getListenAddress()));
+				IOHelper.closeSilent(sc);
+				return;
+			}
+			// Unlimited: connect anyway (no node available fails like before)
+			endpoint.reserve();
+		}
+		connectClient(sc, endpoint);
+	}
+
+	private void processWaitQueue() {
+		final Endpoint endpoint = srv.getEndPoint();
+		final long now = System.currentTimeMillis();
+		WaitingClient wc = null;
+		while ((wc = waitQueue.peekFirst()) != null) {
+			if ((now - wc.queued) > waitQueueTimeout) {
+				waitQueue.removeFirst();
+				Log.warn(getName(), "Timeout waiting in queue: " + wc.sc.socket().getRemoteSocketAddress());
+				IOHelper.closeSilent(wc.sc);
+				continue;
+			}
+			if (!wc.sc.isOpen()) {
+				waitQueue.removeFirst();
+				continue;
+			}
+			if (!endpoint.admit()) {
+				break;
+			}
+			waitQueue.removeFirst();
+			try {
+				connectClient(wc.sc, endpoint);
+			} catch (IOException e) {
+				Log.error(getName(), "IOException connecting queued client: " + e.toString());
+			} catch (RuntimeException e) {
+				Log.error(getName(), "Exception connecting queued client: " + e.toString(), e);
+			}
+		}
+	}
+
+	/**
+	 * Connect client admitted (slot reserved in endpoint, released by remote connection)
+	 * 
+	 * @param sc
+	 * @param endpoint
+	 * @throws IOException
+	 */
+	private void connectClient(final SocketChannel sc, final Endpoint endpoint) throws IOException {
 		final Socket sock = sc.socket();
-		IOHelper.setupSocket(sock);
 		final BridgeContext bc = new BridgeContext(srv, selector);
-		final ConnectionHandler cli = new ConnectionHandler(bc, sc);
-		bc.setConnectionHandlerA(cli);
-		final ConnectionHandler rem = new ConnectionHandler(bc, sock.getInetAddress(), srv.getEndPoint());
-		bc.setConnectionHandlerB(rem);
-		rem.connect();
+		ConnectionHandler cli = null;
+		ConnectionHandler rem = null;
+		boolean done = false;
+		try {
+			IOHelper.setupSocket(sock);
+			cli = new ConnectionHandler(bc, sc);
+			bc.setConnectionHandlerA(cli);
+			rem = new ConnectionHandler(bc, sock.getInetAddress(), endpoint);
+			bc.setConnectionHandlerB(rem);
+			if (srv.getAffinity() != null) {
+				cli.startPeek();
+				peekQueue.addLast(cli);
+			} else {
+				rem.connect();
+			}
+			done = true;
+		} finally {
+			if (!done) {
+				// Release reserved slot
+				if (rem != null) {
+					rem.onClose();
+				} else {
+					endpoint.unreserve();
+					IOHelper.closeSilent(sc);
+				}
+			}
+		}
 		Log.info(cli.getName(),
 				"New connection: " + IOHelper.inetAddrToHoman(bc.getConnectionHandlerA().getRemoteAddress())
 						+ " > " + IOHelper.inetAddrToHoman(srv.getListenAddress()));
 	}
 
+	private void processPeekQueue() {
+		final long now = System.currentTimeMillis();
+		ConnectionHandler ctx = null;
+		while ((ctx = peekQueue.peekFirst()) != null) {
+			if (!ctx.isPeeking() || !ctx.isOpen()) {
+				peekQueue.removeFirst();
+				continue;
+			}
+			if ((now - ctx.getPeekStart()) <= Constants.AFFINITY_PEEK_TIMEOUT) {
+				break;
+			}
+			peekQueue.removeFirst();
+			try {
+				ctx.onPeek(true);
+			} catch (IOException e) {
+				Log.error(ctx.getName(), "IOException[" + ctx.getRemoteAddress() + "]: " + e.toString());
+				ctx.onClose();
+			} catch (RuntimeException e) {
+				Log.error(ctx.getName(), "Exception[" + ctx.getRemoteAddress() + "]: " + e.toString(), e);
+				ctx.onClose();
+			}
+		}
+	}
+
 	protected void process() throws InterruptedException {
 		try {
 			SocketChannel sc = null;
@@ -54,7 +186,14 @@ public class ServerEventHandler implements Runnable {
 					registerClient(sc);
 				}
 			}
-			final int events = selector.select(Constants.SELECT_TIMEOUT);
+			if (!waitQueue.isEmpty()) {
+				processWaitQueue();
+			}
+			if (!peekQueue.isEmpty()) {
+				processPeekQueue();
+			}
+			final int events = selector.select((waitQueue.isEmpty() && peekQueue.isEmpty())
+					? Constants.SELECT_TIMEOUT : Constants.QUEUE_SELECT_TIMEOUT);
 			if (events <= 0) {
 				Thread.yield();
 				return;
@@ -104,6 +243,10 @@ public class ServerEventHandler implements Runnable {
 				ctx.onClose();
 			} catch (ClosedChannelException e) {
 				final ConnectionHandler ctx = (ConnectionHandler) key.attachment();
+				if (ctx.tryReplay()) {
+					i.remove();
+					continue;
+				}
 				final String msg = "ClosedChannelException[" + ctx.getRemoteAddress() + "]: " + e.toString();
 				if (ctx.canClose() && ctx.getContext().getPeer(ctx).canClose()) {
 					Log.info(ctx.getName(), msg);
@@ -113,6 +256,11 @@ public class ServerEventHandler implements Runnable {
 				ctx.onClose();
 			} catch (IOException e) {
 				final ConnectionHandler ctx = (ConnectionHandler) key.attachment();
+				if (ctx.tryReplay()) {
+					Log.warn(ctx.getName(), "IOException: " + e.toString());
+					i.remove();
+					continue;
+				}
 				Log.error(ctx.getName(), "IOException[" + ctx.getRemoteAddress() + "]: " + e.toString(), e);
 				ctx.onClose();
 			} catch (Throwable t) {
@@ -126,6 +274,16 @@ public class ServerEventHandler implements Runnable {
 		}
 	}
 
+	static class WaitingClient {
+		final SocketChannel sc;
+		final long queued;
+
+		WaitingClient(final SocketChannel sc) {
+			this.sc = sc;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+
 	@Override
 	public void run() {
 		try {
@@ -1,25 +1,44 @@
 package org.javastack.jrinetd;
 
 public class StickyConfig {
-	public static final StickyConfig NULL = new StickyConfig(Type.NULL, 0, 0, 0, StickyKey.DEFAULT);
+	public static final StickyConfig NULL = new StickyConfig(Type.NULL, 0, 0, 0, StickyKey.DEFAULT, null);
 	public final Type type;
 	public final int bitmask;
 	public final int elements;
 	public final int ttlsec;
 	public final StickyKey stickyKey;
+	public final String server;
 
 	private StickyConfig(final Type type, final int bitmask, final int elements, final int ttlsec,
-			final StickyKey stickyKey) {
+			final StickyKey stickyKey, final String server) {
 		this.type = type;
 		this.bitmask = bitmask;
 		this.elements = elements;
 		this.ttlsec = ttlsec;
 		this.stickyKey = stickyKey;
+		this.server = server;
 	}
 
 	public static StickyConfig valueOf(final Type type, final int bitmask, final int elements,
 			final int ttlsec, final String clusterName, final String stickyName) {
-		return new StickyConfig(type, bitmask, elements, ttlsec, StickyKey.valueOf(clusterName, stickyName));
+		return valueOf(type, bitmask, elements, ttlsec, clusterName, stickyName, null);
+	}
+
+	public static StickyConfig valueOf(final Type type, final int bitmask, final int elements,
+			final int ttlsec, final String clusterName, final String stickyName, final String server) {
+		return new StickyConfig(type, bitmask, elements, ttlsec, StickyKey.valueOf(clusterName, stickyName),
+				server);
+	}
+
+	/**
+	 * Same store parameters (type, bitmask, elements, ttl, server)
+	 * 
+	 * @param o
+	 * @return
+	 */
+	public boolean isSameStore(final StickyConfig o) {
+		return ((type == o.type) && (bitmask == o.bitmask) && (elements == o.elements) && (ttlsec == o.ttlsec)
+				&& ((server == null) ? (o.server == null) : server.equals(o.server)));
 	}
 
 	public boolean isReplicated() {
@@ -29,7 +48,8 @@ public class StickyConfig {
 	@Override
 	public String toString() {
 		return super.toString() + "[type=" + type + " bitmask=" + bitmask + " elements=" + elements
-				+ " ttlsec=" + ttlsec + " stickyKey=" + stickyKey + "]";
+				+ " ttlsec=" + ttlsec + " stickyKey=" + stickyKey + ((server != null) ? (" server=" + server) : "")
+				+ "]";
 	}
 
 	public enum Type {
@@ -40,6 +60,18 @@ public class StickyConfig {
 		/**
 		 * MEMORY
 		 */
-		MEM;
+		MEM,
+		/**
+		 * OFF-HEAP MEMORY
+		 */
+		OFFHEAP,
+		/**
+		 * MEMORY-MAPPED FILE (persistent)
+		 */
+		MMAP,
+		/**
+		 * REDIS-COMPATIBLE SERVER (RESP protocol, shared)
+		 */
+		RESP;
 	}
 }
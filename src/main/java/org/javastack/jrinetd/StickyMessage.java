@@ -7,10 +7,50 @@ public class StickyMessage {
 	public final long stickyId;
 	public final InetAddress stickyAddress;
 	public final InetSocketAddress remoteAddress;
+	public final long expires; // absolute expiration of lease (millis), 0 if unknown (older peers)
 
 	public StickyMessage(final long stickyId, final InetAddress stickyAddress, final InetSocketAddress remoteAddress) {
+		this(stickyId, stickyAddress, remoteAddress, 0);
+	}
+
+	public StickyMessage(final long stickyId, final InetAddress stickyAddress,
+			final InetSocketAddress remoteAddress, final long expires) {
 		this.stickyId = stickyId;
 		this.stickyAddress = stickyAddress;
 		this.remoteAddress = remoteAddress;
+		this.expires = expires;
+	}
+
+	/**
+	 * Identity of sticky (for coalescing)
+	 * 
+	 * @return
+	 */
+	public Key getKey() {
+		return new Key(stickyId, stickyAddress);
+	}
+
+	public static class Key {
+		private final long stickyId;
+		private final InetAddress stickyAddress;
+
+		Key(final long stickyId, final InetAddress stickyAddress) {
+			this.stickyId = stickyId;
+			this.stickyAddress = stickyAddress;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (obj instanceof Key) {
+				final Key o = (Key) obj;
+				return ((stickyId == o.stickyId) && stickyAddress.equals(o.stickyAddress));
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (stickyId ^ (stickyId >>> 32)) ^ stickyAddress.hashCode();
+		}
 	}
 }
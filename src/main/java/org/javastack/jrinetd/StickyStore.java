@@ -1,13 +1,27 @@
 package org.javastack.jrinetd;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.javastack.jrinetd.Cluster.ClusterServer;
 
 public abstract class StickyStore<K extends InetAddress, V extends InetSocketAddress> {
 	protected final StickyConfig stickyConfig;
@@ -35,6 +49,26 @@ public abstract class StickyStore<K extends InetAddress, V extends InetSocketAdd
 		return !inUse;
 	}
 
+	/**
+	 * Apply bitmask to key (content-keyed affinity addresses are not masked)
+	 * 
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected final K maskKey(final K key) {
+		if (Affinity.isStickyAddress(key)) {
+			return key;
+		}
+		return (K) IpAddress.getAddressMasked(key, stickyConfig.bitmask);
+	}
+
+	/**
+	 * Free resources (store is unregistered)
+	 */
+	void destroy() {
+	}
+
 	/**
 	 * Put Sticky
 	 * 
@@ -58,13 +92,267 @@ public abstract class StickyStore<K extends InetAddress, V extends InetSocketAdd
 	 */
 	public abstract List<StickyEntry<K, V>> getEntries();
 
+	/**
+	 * Get Sticky entry with its timestamp (null if not found or unsupported by store)
+	 * 
+	 * @param key
+	 * @return
+	 */
+	StickyEntry<K, V> getEntry(final K key) {
+		return null;
+	}
+
+	/**
+	 * Check if Sticky is unchanged and its lease is still long (replicated stickies are renewed,
+	 * locally and in cluster, only when remaining lease drops below a fraction of TTL)
+	 * 
+	 * @param key
+	 * @param value
+	 * @return true if renewal can be skipped
+	 */
+	public boolean isLeaseValid(final K key, final V value) {
+		if (value == null) {
+			return false;
+		}
+		StickyEntry<K, V> e = getEntry(key);
+		if (e == null) {
+			e = getCached(key);
+		}
+		if ((e == null) || !value.equals(e.value)) {
+			return false;
+		}
+		final long ttl = (stickyConfig.ttlsec * 1000L);
+		return ((e.ts + ttl - System.currentTimeMillis()) > (ttl * Constants.CLUSTER_LEASE_RENEW / 100));
+	}
+
+	/**
+	 * Get Sticky value, local or answered by owners in cluster (partitioned stickies)
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public V find(final K key) {
+		final V value = get(key);
+		if (value != null) {
+			return value;
+		}
+		final StickyEntry<K, V> e = getCached(key);
+		return ((e == null) ? null : e.value);
+	}
+
+	/**
+	 * Put Sticky of local connection: replicated stickies are renewed only near expiration of lease
+	 * (same as peers) and partitioned stickies are only stored by owners (others keep it cached)
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void putLocal(final K key, final V value) {
+		if (!stickyConfig.isReplicated()) {
+			put(key, value);
+			return;
+		}
+		if (isLeaseValid(key, value)) {
+			return;
+		}
+		final RemoteLookup remote = getRemoteLookup();
+		if (remote != null) {
+			final K k = maskKey(key);
+			final long stickyId = stickyConfig.stickyKey.stickyId;
+			if (!remote.isOwner(stickyId, k)) {
+				final long expires = System.currentTimeMillis() + (stickyConfig.ttlsec * 1000L);
+				remote.cache(new StickyMessage(stickyId, k, value, expires));
+				return;
+			}
+		}
+		put(key, value);
+	}
+
+	/**
+	 * Start lookup of Sticky in owners (partitioned stickies) if not found locally
+	 * 
+	 * @param key
+	 * @return true if lookup is pending (answer is used by next connections)
+	 */
+	public boolean lookup(final K key) {
+		final RemoteLookup remote = getRemoteLookup();
+		if ((remote == null) || (get(key) != null)) {
+			return false;
+		}
+		return remote.lookup(stickyConfig.stickyKey.stickyId, maskKey(key));
+	}
+
+	/**
+	 * Node chosen for connection balanced before owners answered lookup (partitioned stickies): sticky
+	 * of owners wins, chosen node is stored only if they have none
+	 * 
+	 * @param key
+	 * @param value
+	 * @return true if done (must not be sent to cluster)
+	 */
+	public boolean putChosen(final K key, final V value) {
+		final RemoteLookup remote = getRemoteLookup();
+		if (remote == null) {
+			return false;
+		}
+		final K k = maskKey(key);
+		final long stickyId = stickyConfig.stickyKey.stickyId;
+		final long expires = System.currentTimeMillis() + (stickyConfig.ttlsec * 1000L);
+		if (remote.choose(new StickyMessage(stickyId, k, value, expires))) {
+			return true;
+		}
+		// Lookup finished: answered by owners or chosen node already stored
+		final StickyMessage answer = remote.getCached(stickyId, k);
+		return ((answer != null) && (answer.remoteAddress != null));
+	}
+
+	/**
+	 * Answer of owners cached (partitioned stickies), null if not found or not cached
+	 * 
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private StickyEntry<K, V> getCached(final K key) {
+		final RemoteLookup remote = getRemoteLookup();
+		if (remote == null) {
+			return null;
+		}
+		final K k = maskKey(key);
+		final StickyMessage msg = remote.getCached(stickyConfig.stickyKey.stickyId, k);
+		if ((msg == null) || (msg.remoteAddress == null) || (msg.expires <= System.currentTimeMillis())) {
+			return null;
+		}
+		final long ts = msg.expires - (stickyConfig.ttlsec * 1000L);
+		return new StickyEntry<K, V>(k, (V) msg.remoteAddress, ts);
+	}
+
+	/**
+	 * Owners of stickies in cluster
+	 * 
+	 * @return null if stickies are not partitioned
+	 */
+	private RemoteLookup getRemoteLookup() {
+		if (!stickyConfig.isReplicated()) {
+			return null;
+		}
+		final ClusterServer c = ClusterServer.getInstance(stickyConfig.stickyKey.clusterId);
+		if ((c instanceof RemoteLookup) && ((RemoteLookup) c).isPartitioned()) {
+			return (RemoteLookup) c;
+		}
+		return null;
+	}
+
+	/**
+	 * Put Sticky only if newer than current entry (last-writer-wins on replicated stickies)
+	 * 
+	 * @param entry
+	 * @return true if stored
+	 */
+	boolean putIfNewer(final StickyEntry<K, V> entry) {
+		final StickyEntry<K, V> e = getEntry(entry.key);
+		if ((e != null) && (e.ts > entry.ts)) {
+			return false;
+		}
+		putEntry(entry);
+		return true;
+	}
+
+	/**
+	 * Put Sticky keeping original timestamp (migration between stores)
+	 * 
+	 * @param entry
+	 */
+	void putEntry(final StickyEntry<K, V> entry) {
+		put(entry.key, entry.value);
+	}
+
+	/**
+	 * Copy entries from other store (config reload): keys are masked again, expired entries (with
+	 * current TTL) are skipped and oldest entries are trimmed by current size (inserted oldest first, so
+	 * eviction keeps the newest)
+	 * 
+	 * @param entries of old store
+	 * @return migrated entries
+	 */
+	int migrateFrom(final List<StickyEntry<K, V>> entries) {
+		final long expire = System.currentTimeMillis() - (stickyConfig.ttlsec * 1000L);
+		final List<StickyEntry<K, V>> sorted = new ArrayList<StickyEntry<K, V>>(entries);
+		Collections.sort(sorted, new Comparator<StickyEntry<K, V>>() {
+			@Override
+			public int compare(final StickyEntry<K, V> o1, final StickyEntry<K, V> o2) {
+				return ((o1.ts < o2.ts) ? -1 : ((o1.ts == o2.ts) ? 0 : 1));
+			}
+		});
+		int count = 0;
+		for (final StickyEntry<K, V> e : sorted) {
+			if ((e.value != null) && (e.ts >= expire)) {
+				putEntry(e);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Stickies partitioned in cluster: each key is stored only by a few owners (consistent hashing),
+	 * other members ask them on miss and cache the answer briefly
+	 */
+	interface RemoteLookup {
+		boolean isPartitioned();
+
+		/**
+		 * Check if this member is owner of sticky
+		 * 
+		 * @param stickyId
+		 * @param key masked key
+		 * @return
+		 */
+		boolean isOwner(long stickyId, InetAddress key);
+
+		/**
+		 * Ask owners of sticky (thread-safe, asynchronous)
+		 * 
+		 * @param stickyId
+		 * @param key masked key
+		 * @return true if lookup is pending, false if answer is cached or there are no other owners
+		 */
+		boolean lookup(long stickyId, InetAddress key);
+
+		/**
+		 * Node chosen locally while lookup was pending, stored when lookup finishes if owners have no
+		 * sticky (thread-safe)
+		 * 
+		 * @param msg
+		 * @return false if lookup is not pending
+		 */
+		boolean choose(StickyMessage msg);
+
+		/**
+		 * Cached answer of owners
+		 * 
+		 * @param stickyId
+		 * @param key masked key
+		 * @return null if not cached (remoteAddress is null if owners have no entry)
+		 */
+		StickyMessage getCached(long stickyId, InetAddress key);
+
+		void cache(StickyMessage msg);
+	}
+
 	static class StickyEntry<K extends InetAddress, V extends InetSocketAddress> {
 		public final K key;
 		public final V value;
+		public final long ts;
 
 		StickyEntry(final K key, final V value) {
+			this(key, value, System.currentTimeMillis());
+		}
+
+		StickyEntry(final K key, final V value, final long ts) {
 			this.key = key;
 			this.value = value;
+			this.ts = ts;
 		}
 	}
 
@@ -86,16 +374,16 @@ public abstract class StickyStore<K extends InetAddress, V extends InetSocketAdd
 			};
 		}
 
-		@SuppressWarnings("unchecked")
-		private final K maskKey(final K key) {
-			return (K) IpAddress.getAddressMasked(key, stickyConfig.bitmask);
-		}
-
 		@Override
 		public synchronized void put(final K key, final V value) {
 			stickies.put(maskKey(key), new TSEntry<V>(value));
 		}
 
+		@Override
+		synchronized void putEntry(final StickyEntry<K, V> entry) {
+			stickies.put(maskKey(entry.key), new TSEntry<V>(entry.value, entry.ts));
+		}
+
 		@Override
 		public synchronized V get(final K key) {
 			final TSEntry<V> e = stickies.get(maskKey(key));
@@ -108,11 +396,23 @@ public abstract class StickyStore<K extends InetAddress, V extends InetSocketAdd
 			return null;
 		}
 
+		@Override
+		synchronized StickyEntry<K, V> getEntry(final K key) {
+			final K k = maskKey(key);
+			final TSEntry<V> e = stickies.get(k);
+			return ((e == null) ? null : new StickyEntry<K, V>(k, e.value, e.ts));
+		}
+
+		@Override
+		synchronized boolean putIfNewer(final StickyEntry<K, V> entry) {
+			return super.putIfNewer(entry);
+		}
+
 		@Override
 		public synchronized List<StickyEntry<K, V>> getEntries() {
 			final ArrayList<StickyEntry<K, V>> l = new ArrayList<StickyEntry<K, V>>();
 			for (final Entry<K, TSEntry<V>> e : stickies.entrySet()) {
-				l.add(new StickyEntry<K, V>(e.getKey(), e.getValue().value));
+				l.add(new StickyEntry<K, V>(e.getKey(), e.getValue().value, e.getValue().ts));
 			}
 			return l;
 		}
@@ -122,12 +422,547 @@ public abstract class StickyStore<K extends InetAddress, V extends InetSocketAdd
 			final E value;
 
 			public TSEntry(final E value) {
-				this.ts = System.currentTimeMillis();
+				this(value, System.currentTimeMillis());
+			}
+
+			public TSEntry(final E value, final long ts) {
+				this.ts = ts;
 				this.value = value;
 			}
 		}
 	}
 
+	/**
+	 * Off-heap store: set-associative open addressing table in direct memory, lock striped, CLOCK
+	 * eviction (approximate LRU) and TTL in time buckets (expired lazily)
+	 */
+	static class StickyStoreOFFHEAP<K extends InetAddress, V extends InetSocketAddress> extends
+			StickyStore<K, V> {
+		// Slot: key-high(8) key-low(8) value(4) clock-bit+stamp(4)
+		static final int SLOT_LEN = 24;
+		static final int OFF_KEY_HI = 0;
+		static final int OFF_KEY_LO = 8;
+		static final int OFF_VALUE = 16;
+		static final int OFF_META = 20;
+		static final int REF_BIT = 0x80000000;
+		static final long EPOCH = 1577836800000L; // 2020-01-01
+		static final long IPV4_MAPPED = 0x0000FFFF00000000L;
+		static final int WAYS = Constants.STICKY_OFFHEAP_WAYS;
+
+		protected final ByteBuffer[] stripes;
+		protected final int slotLen;
+		private final int[] hands;
+		private final int stripeMask;
+		private final int setMask;
+		private final long bucketMillis;
+		private final int ttlBuckets;
+		// Backend dictionary (append only)
+		private final Map<V, Integer> valueIndex = new HashMap<V, Integer>();
+		private final List<V> values = new CopyOnWriteArrayList<V>();
+
+		StickyStoreOFFHEAP(final StickyConfig stickyConfig) {
+			this(stickyConfig, allocate(stickyConfig.elements), bucketMillis(stickyConfig.ttlsec), SLOT_LEN);
+		}
+
+		protected StickyStoreOFFHEAP(final StickyConfig stickyConfig, final ByteBuffer[] stripes,
+				final long bucketMillis, final int slotLen) {
+			super(stickyConfig);
+			this.stripes = stripes;
+			this.slotLen = slotLen;
+			this.hands = new int[stripes.length];
+			this.stripeMask = stripes.length - 1;
+			this.setMask = (stripes[0].capacity() / slotLen / WAYS) - 1;
+			this.bucketMillis = bucketMillis;
+			this.ttlBuckets = (int) ((stickyConfig.ttlsec * 1000L + bucketMillis - 1) / bucketMillis);
+		}
+
+		static long bucketMillis(final int ttlsec) {
+			return Math.max(1000L, ttlsec * 1000L / Constants.STICKY_TTL_BUCKETS);
+		}
+
+		/**
+		 * Number of stripes and slots per stripe (powers of 2) for requested elements
+		 * 
+		 * @param elements
+		 * @return {stripes, slots per stripe}
+		 */
+		static int[] geometry(final int elements) {
+			long slots = WAYS;
+			while (slots < elements) {
+				slots <<= 1;
+			}
+			int stripes = 1;
+			while ((stripes < Constants.STICKY_OFFHEAP_STRIPES) && ((slots / stripes) > WAYS)) {
+				stripes <<= 1;
+			}
+			return new int[] {
+					stripes, (int) (slots / stripes)
+			};
+		}
+
+		private static ByteBuffer[] allocate(final int elements) {
+			final int[] g = geometry(elements);
+			final ByteBuffer[] stripes = new ByteBuffer[g[0]];
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = ByteBuffer.allocateDirect(g[1] * SLOT_LEN);
+			}
+			return stripes;
+		}
+
+		private final long keyHigh(final K key, final byte[] b) {
+			if (b == null) {
+				return 0;
+			}
+			final int bits = stickyConfig.bitmask;
+			final long hi = IOHelper.longFromByteArray(b, 0);
+			if (Affinity.isStickyAddress(key) || (bits >= 64)) {
+				return hi;
+			}
+			return ((bits <= 0) ? 0 : (hi & (-1L << (64 - bits))));
+		}
+
+		private final long keyLow(final K key, final byte[] b) {
+			final int bits = stickyConfig.bitmask;
+			if (b == null) {
+				// IPv4 (hashCode is the address)
+				final int addr = key.hashCode();
+				final int mask = ((bits >= 32) ? -1 : ((bits <= 0) ? 0 : (-1 << (32 - bits))));
+				return (IPV4_MAPPED | ((addr & mask) & 0xFFFFFFFFL));
+			}
+			final long lo = IOHelper.longFromByteArray(b, 8);
+			if (Affinity.isStickyAddress(key) || (bits >= 128)) {
+				return lo;
+			}
+			return ((bits <= 64) ? 0 : (lo & (-1L << (128 - bits))));
+		}
+
+		private static final long hash(final long hi, final long lo) {
+			long h = (hi * 0x9E3779B97F4A7C15L) ^ lo;
+			h ^= (h >>> 32);
+			h *= 0x9E3779B97F4A7C15L;
+			return (h ^ (h >>> 29));
+		}
+
+		private final int stamp() {
+			return (int) ((System.currentTimeMillis() - EPOCH) / bucketMillis);
+		}
+
+		private final boolean isExpired(final int meta, final int now) {
+			return ((now - (meta & ~REF_BIT)) > ttlBuckets);
+		}
+
+		/**
+		 * Index of value stored in slot (0 is empty)
+		 * 
+		 * @param value
+		 * @return index
+		 */
+		protected int valueToIndex(final V value) {
+			synchronized (valueIndex) {
+				Integer i = valueIndex.get(value);
+				if (i == null) {
+					values.add(value);
+					i = Integer.valueOf(values.size());
+					valueIndex.put(value, i);
+				}
+				return i.intValue();
+			}
+		}
+
+		/**
+		 * Write value in slot, invoked with stripe locked (after key, before index)
+		 * 
+		 * @param bb stripe
+		 * @param off slot
+		 * @param value
+		 */
+		protected void putValue(final ByteBuffer bb, final int off, final V value) {
+		}
+
+		/**
+		 * Read value of slot, invoked with stripe locked
+		 * 
+		 * @param bb stripe
+		 * @param off slot
+		 * @param index of value (not 0)
+		 * @return value
+		 */
+		protected V getValue(final ByteBuffer bb, final int off, final int index) {
+			return values.get(index - 1);
+		}
+
+		/**
+		 * Lock stripe, invoked with monitor of stripe held (memory shared with other processes)
+		 * 
+		 * @param s stripe
+		 * @return false if lock is not available (operation is skipped)
+		 */
+		protected boolean lockStripe(final int s) {
+			return true;
+		}
+
+		protected void unlockStripe(final int s) {
+		}
+
+		@Override
+		public void put(final K key, final V value) {
+			put(key, value, stamp());
+		}
+
+		@Override
+		void putEntry(final StickyEntry<K, V> entry) {
+			put(entry.key, entry.value, (int) ((entry.ts - EPOCH) / bucketMillis));
+		}
+
+		private void put(final K key, final V value, final int stamp) {
+			final byte[] b = ((key instanceof Inet4Address) ? null : key.getAddress());
+			final long hi = keyHigh(key, b), lo = keyLow(key, b);
+			final int v = ((value == null) ? 0 : valueToIndex(value));
+			final long h = hash(hi, lo);
+			final int s = ((int) (h >>> 48) & stripeMask);
+			final ByteBuffer bb = stripes[s];
+			final int base = ((int) h & setMask) * WAYS * slotLen;
+			synchronized (bb) {
+				if (!lockStripe(s)) {
+					return; // Dropped
+				}
+				try {
+					final int now = stamp();
+					int free = -1;
+					for (int w = 0; w < WAYS; w++) {
+						final int off = base + (w * slotLen);
+						if (bb.getInt(off + OFF_VALUE) == 0) {
+							if (free < 0) {
+								free = off;
+							}
+							continue;
+						}
+						if ((bb.getLong(off + OFF_KEY_HI) == hi) && (bb.getLong(off + OFF_KEY_LO) == lo)) {
+							if (v != 0) {
+								putValue(bb, off, value);
+							}
+							bb.putInt(off + OFF_VALUE, v);
+							bb.putInt(off + OFF_META, REF_BIT | stamp);
+							return;
+						}
+						if ((free < 0) && isExpired(bb.getInt(off + OFF_META), now)) {
+							free = off;
+						}
+					}
+					if (v == 0) {
+						return;
+					}
+					if (free < 0) {
+						free = evict(s, bb, base);
+					}
+					bb.putInt(free + OFF_VALUE, 0);
+					bb.putLong(free + OFF_KEY_HI, hi);
+					bb.putLong(free + OFF_KEY_LO, lo);
+					putValue(bb, free, value);
+					bb.putInt(free + OFF_VALUE, v);
+					bb.putInt(free + OFF_META, REF_BIT | stamp);
+				} finally {
+					unlockStripe(s);
+				}
+			}
+		}
+
+		/**
+		 * CLOCK: sweep the set clearing reference bits until an unreferenced slot is found
+		 */
+		private final int evict(final int s, final ByteBuffer bb, final int base) {
+			int hand = hands[s];
+			while (true) {
+				final int off = base + ((hand++ & (WAYS - 1)) * slotLen);
+				final int meta = bb.getInt(off + OFF_META);
+				if ((meta & REF_BIT) == 0) {
+					hands[s] = hand;
+					return off;
+				}
+				bb.putInt(off + OFF_META, meta & ~REF_BIT);
+			}
+		}
+
+		@Override
+		public V get(final K key) {
+			final byte[] b = ((key instanceof Inet4Address) ? null : key.getAddress());
+			final long hi = keyHigh(key, b), lo = keyLow(key, b);
+			final long h = hash(hi, lo);
+			final int s = ((int) (h >>> 48) & stripeMask);
+			final ByteBuffer bb = stripes[s];
+			final int base = ((int) h & setMask) * WAYS * slotLen;
+			synchronized (bb) {
+				if (!lockStripe(s)) {
+					return null; // Miss
+				}
+				try {
+					for (int w = 0; w < WAYS; w++) {
+						final int off = base + (w * slotLen);
+						if ((bb.getLong(off + OFF_KEY_LO) != lo) || (bb.getLong(off + OFF_KEY_HI) != hi)) {
+							continue;
+						}
+						final int v = bb.getInt(off + OFF_VALUE);
+						if (v == 0) {
+							continue;
+						}
+						final int meta = bb.getInt(off + OFF_META);
+						if (isExpired(meta, stamp())) {
+							bb.putInt(off + OFF_VALUE, 0);
+							return null;
+						}
+						bb.putInt(off + OFF_META, meta | REF_BIT);
+						return getValue(bb, off, v);
+					}
+				} finally {
+					unlockStripe(s);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		StickyEntry<K, V> getEntry(final K key) {
+			final byte[] b = ((key instanceof Inet4Address) ? null : key.getAddress());
+			final long hi = keyHigh(key, b), lo = keyLow(key, b);
+			final long h = hash(hi, lo);
+			final int s = ((int) (h >>> 48) & stripeMask);
+			final ByteBuffer bb = stripes[s];
+			final int base = ((int) h & setMask) * WAYS * slotLen;
+			synchronized (bb) {
+				if (!lockStripe(s)) {
+					return null; // Miss
+				}
+				try {
+					for (int w = 0; w < WAYS; w++) {
+						final int off = base + (w * slotLen);
+						if ((bb.getLong(off + OFF_KEY_LO) != lo) || (bb.getLong(off + OFF_KEY_HI) != hi)) {
+							continue;
+						}
+						final int v = bb.getInt(off + OFF_VALUE);
+						final int meta = bb.getInt(off + OFF_META);
+						if ((v == 0) || isExpired(meta, stamp())) {
+							continue;
+						}
+						final long ts = EPOCH + ((meta & ~REF_BIT) * bucketMillis);
+						return new StickyEntry<K, V>(key, getValue(bb, off, v), ts);
+					}
+				} finally {
+					unlockStripe(s);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public List<StickyEntry<K, V>> getEntries() {
+			final ArrayList<StickyEntry<K, V>> l = new ArrayList<StickyEntry<K, V>>();
+			final int now = stamp();
+			for (int s = 0; s < stripes.length; s++) {
+				final ByteBuffer bb = stripes[s];
+				synchronized (bb) {
+					if (!lockStripe(s)) {
+						continue;
+					}
+					try {
+						for (int off = 0; off < bb.capacity(); off += slotLen) {
+							final int v = bb.getInt(off + OFF_VALUE);
+							final int meta = bb.getInt(off + OFF_META);
+							if ((v == 0) || isExpired(meta, now)) {
+								continue;
+							}
+							final long hi = bb.getLong(off + OFF_KEY_HI);
+							final long lo = bb.getLong(off + OFF_KEY_LO);
+							final byte[] b;
+							if ((hi == 0) && ((lo & ~0xFFFFFFFFL) == IPV4_MAPPED)) {
+								b = new byte[4];
+								IOHelper.intToByteArray((int) lo, b, 0);
+							} else {
+								b = new byte[16];
+								IOHelper.longToByteArray(hi, b, 0);
+								IOHelper.longToByteArray(lo, b, 8);
+							}
+							final long ts = EPOCH + ((meta & ~REF_BIT) * bucketMillis);
+							l.add(new StickyEntry<K, V>((K) IpAddress.getAddressByBytes(b), getValue(bb, off, v), ts));
+						}
+					} finally {
+						unlockStripe(s);
+					}
+				}
+			}
+			return l;
+		}
+	}
+
+	/**
+	 * Persistent store: same layout of {@link StickyStoreOFFHEAP} in a memory-mapped file (header with
+	 * geometry, followed by stripes; backend address is stored in the slot), reloaded on startup without
+	 * parsing; other processes can map the same file (stripes are locked with byte-range locks, one file per
+	 * geometry)
+	 */
+	static class StickyStoreMMAP<K extends InetAddress, V extends InetSocketAddress> extends
+			StickyStoreOFFHEAP<K, V> {
+		static final long MAGIC = 0x4A52535449434B32L; // JRSTICK2
+		static final int HEADER_LEN = 4096;
+		static final int OFF_STRIPES = 8;
+		static final int OFF_SLOTS = 12;
+		static final int OFF_BUCKET = 16;
+		// Slot: offheap slot, address-length(1) address(16) port(2) reserved(1)
+		static final int OFF_ADDR = SLOT_LEN;
+		static final int OFF_PORT = OFF_ADDR + 17;
+		static final int MMAP_SLOT_LEN = SLOT_LEN + 20;
+		// Index of used slot (value is in slot)
+		static final int IN_SLOT = 1;
+
+		private final MappedFile mf;
+		private final FileLock[] locks;
+
+		StickyStoreMMAP(final StickyConfig stickyConfig) throws IOException {
+			this(stickyConfig, MappedFile.open(stickyConfig));
+		}
+
+		private StickyStoreMMAP(final StickyConfig stickyConfig, final MappedFile mf) {
+			super(stickyConfig, mf.stripes, mf.bucketMillis, MMAP_SLOT_LEN);
+			this.mf = mf;
+			this.locks = new FileLock[mf.stripes.length];
+		}
+
+		@Override
+		protected int valueToIndex(final V value) {
+			return IN_SLOT;
+		}
+
+		@Override
+		protected void putValue(final ByteBuffer bb, final int off, final V value) {
+			final byte[] addr = value.getAddress().getAddress();
+			bb.put(off + OFF_ADDR, (byte) addr.length);
+			for (int j = 0; j < addr.length; j++) {
+				bb.put(off + OFF_ADDR + 1 + j, addr[j]);
+			}
+			bb.putShort(off + OFF_PORT, (short) value.getPort());
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected V getValue(final ByteBuffer bb, final int off, final int index) {
+			final byte[] addr = new byte[(bb.get(off + OFF_ADDR) == 16) ? 16 : 4];
+			for (int j = 0; j < addr.length; j++) {
+				addr[j] = bb.get(off + OFF_ADDR + 1 + j);
+			}
+			final int port = (bb.getShort(off + OFF_PORT) & 0xFFFF);
+			return (V) new InetSocketAddress(IpAddress.getAddressByBytes(addr), port);
+		}
+
+		/**
+		 * Lock stripe in file (a system call per operation); if the lock is not available (I/O error, or
+		 * file locked by other store of this process) the operation is skipped: get is a miss and put is
+		 * dropped
+		 */
+		@Override
+		protected boolean lockStripe(final int s) {
+			try {
+				locks[s] = mf.raf.getChannel().lock(HEADER_LEN + (s * mf.stripeLen), mf.stripeLen, false);
+				return true;
+			} catch (IOException e) {
+				Log.error(getClass().getSimpleName(), "IOException (lock): " + mf.file + ": " + e.toString());
+			} catch (OverlappingFileLockException e) {
+				Log.error(getClass().getSimpleName(), "Locked by other store: " + mf.file);
+			}
+			return false;
+		}
+
+		@Override
+		protected void unlockStripe(final int s) {
+			final FileLock lock = locks[s];
+			locks[s] = null;
+			try {
+				lock.release();
+			} catch (IOException e) {
+				Log.error(getClass().getSimpleName(), "IOException (unlock): " + mf.file + ": " + e.toString());
+			}
+		}
+
+		@Override
+		void destroy() {
+			for (final ByteBuffer bb : stripes) {
+				((MappedByteBuffer) bb).force();
+			}
+			IOHelper.closeSilent(mf.raf);
+		}
+
+		static class MappedFile {
+			final File file;
+			final RandomAccessFile raf;
+			final MappedByteBuffer header;
+			final ByteBuffer[] stripes;
+			final long stripeLen;
+			final long bucketMillis;
+
+			private MappedFile(final File file, final RandomAccessFile raf, final MappedByteBuffer header,
+					final ByteBuffer[] stripes, final long stripeLen) {
+				this.file = file;
+				this.raf = raf;
+				this.header = header;
+				this.stripes = stripes;
+				this.stripeLen = stripeLen;
+				this.bucketMillis = header.getLong(OFF_BUCKET);
+			}
+
+			static MappedFile open(final StickyConfig stickyConfig) throws IOException {
+				final File dir = new File(System.getProperty(Constants.PROP_STICKY_DIR,
+						System.getProperty("java.io.tmpdir")));
+				final int[] g = geometry(stickyConfig.elements);
+				// Other geometry (elements) is other file: mapped files are never resized
+				final File file = new File(dir, "jrinetd-sticky-"
+						+ Long.toHexString(stickyConfig.stickyKey.stickyId) + "-" + g[0] + "x" + g[1] + ".map");
+				final long stripeLen = ((long) g[1] * MMAP_SLOT_LEN);
+				final long len = HEADER_LEN + (g[0] * stripeLen);
+				final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					final FileChannel fc = raf.getChannel();
+					final FileLock lock = fc.lock(0, HEADER_LEN, false);
+					try {
+						final long size = fc.size();
+						if ((size != 0) && (size != len)) {
+							throw new IOException("Invalid size of sticky file (" + size + " expected " + len
+									+ "): " + file);
+						}
+						if (size == 0) {
+							raf.setLength(len);
+						}
+						final MappedByteBuffer header = fc.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LEN);
+						if (header.getLong(0) == 0) {
+							// New file (or creator died before magic was written)
+							Log.warn(StickyStoreMMAP.class.getSimpleName(), "Initializing: " + file);
+							header.putInt(OFF_STRIPES, g[0]);
+							header.putInt(OFF_SLOTS, g[1]);
+							header.putLong(OFF_BUCKET, bucketMillis(stickyConfig.ttlsec));
+							header.force();
+							header.putLong(0, MAGIC);
+							header.force();
+						} else if ((header.getLong(0) != MAGIC) || (header.getInt(OFF_STRIPES) != g[0])
+								|| (header.getInt(OFF_SLOTS) != g[1])) {
+							throw new IOException("Invalid header of sticky file: " + file);
+						} else {
+							Log.info(StickyStoreMMAP.class.getSimpleName(), "Mapped: " + file);
+						}
+						final ByteBuffer[] stripes = new ByteBuffer[g[0]];
+						for (int i = 0; i < stripes.length; i++) {
+							stripes[i] = fc.map(FileChannel.MapMode.READ_WRITE, HEADER_LEN + (i * stripeLen),
+									stripeLen);
+						}
+						return new MappedFile(file, raf, header, stripes, stripeLen);
+					} finally {
+						lock.release();
+					}
+				} catch (IOException e) {
+					IOHelper.closeSilent(raf);
+					throw e;
+				}
+			}
+		}
+	}
+
 	static class StickyStoreNULL<K extends InetAddress, V extends InetSocketAddress> extends
 			StickyStore<K, V> {
 		StickyStoreNULL(final StickyConfig stickyConfig) {
@@ -153,7 +988,14 @@ public abstract class StickyStore<K extends InetAddress, V extends InetSocketAdd
 	 * Simple Test
 	 */
 	public static void main(final String[] args) throws Throwable {
-		StickyConfig cfg = StickyConfig.valueOf(StickyConfig.Type.MEM, 32, 2, 1, "default", "default");
+		StickyConfig.Type type = ((args.length > 0) ? StickyConfig.Type.valueOf(args[0]) : StickyConfig.Type.MEM);
+		StickyStoreRESP.LocalServer resp = null;
+		String server = null;
+		if (type == StickyConfig.Type.RESP) {
+			resp = new StickyStoreRESP.LocalServer();
+			server = resp.getAddress();
+		}
+		StickyConfig cfg = StickyConfig.valueOf(type, 32, 2, 1, "default", "default", server);
 		StickyStoreFactory<InetAddress, InetSocketAddress> factory = new StickyStoreFactory<InetAddress, InetSocketAddress>();
 		StickyStore<InetAddress, InetSocketAddress> store = factory.getInstance(cfg);
 		InetAddress k1 = InetAddress.getByName("127.0.0.1");
@@ -171,5 +1013,24 @@ public abstract class StickyStore<K extends InetAddress, V extends InetSocketAdd
 		System.out.println(store.get(k3));
 		Thread.sleep(1100);
 		System.out.println(store.get(k3));
+		if (resp != null) {
+			// Other node: first read misses near-cache and is fetched in background
+			StickyStore<InetAddress, InetSocketAddress> other = new StickyStoreRESP<InetAddress, InetSocketAddress>(
+					cfg);
+			store.put(k2, v2);
+			Thread.sleep(100);
+			System.out.println(other.get(k2));
+			Thread.sleep(100);
+			System.out.println(other.get(k2));
+			// First choice of other node for a stored key: not overwritten, shared value is adopted
+			store.put(k1, v1);
+			Thread.sleep(100);
+			other.put(k1, v2);
+			Thread.sleep(100);
+			System.out.println(other.get(k1));
+			other.destroy();
+			store.destroy();
+			resp.close();
+		}
 	}
 }
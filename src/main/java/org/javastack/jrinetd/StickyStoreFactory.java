@@ -1,5 +1,6 @@
 package org.javastack.jrinetd;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
@@ -7,8 +8,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 
+import org.javastack.jrinetd.StickyStore.StickyEntry;
 import org.javastack.jrinetd.StickyStore.StickyStoreMEM;
+import org.javastack.jrinetd.StickyStore.StickyStoreMMAP;
 import org.javastack.jrinetd.StickyStore.StickyStoreNULL;
+import org.javastack.jrinetd.StickyStore.StickyStoreOFFHEAP;
 
 public class StickyStoreFactory<K extends InetAddress, V extends InetSocketAddress> {
 	private final LinkedHashMap<StickyKey, StickyStore<K, V>> instances = new LinkedHashMap<StickyKey, StickyStore<K, V>>();
@@ -39,7 +43,10 @@ public class StickyStoreFactory<K extends InetAddress, V extends InetSocketAddre
 	 * @return
 	 */
 	synchronized void unregister(final StickyKey key) {
-		instances.remove(key);
+		final StickyStore<K, V> store = instances.remove(key);
+		if (store != null) {
+			store.destroy();
+		}
 	}
 
 	/**
@@ -50,12 +57,45 @@ public class StickyStoreFactory<K extends InetAddress, V extends InetSocketAddre
 	 */
 	public synchronized StickyStore<K, V> getInstance(final StickyConfig stickyConfig) {
 		StickyStore<K, V> store = instances.get(stickyConfig.stickyKey);
+		StickyStore<K, V> old = null;
+		List<StickyEntry<K, V>> oldEntries = null;
+		if ((store != null) && store.isReleased() && !store.getConfig().isSameStore(stickyConfig)) {
+			// Config reload with new parameters
+			old = store;
+			store = null;
+		}
 		if (store == null) {
+			// Config reload: keep entries of old store with same sticky name
+			if (old == null) {
+				old = findReleased(stickyConfig.stickyKey.stickyId);
+			}
+			if (old != null) {
+				oldEntries = old.getEntries();
+				unregister(old.getConfig().stickyKey);
+			}
 			switch (stickyConfig.type) {
 				case MEM:
 					Log.info(getClass().getSimpleName(), "New StickyStoreMEM config=" + stickyConfig);
 					store = new StickyStoreMEM<K, V>(stickyConfig).retain();
 					break;
+				case OFFHEAP:
+					Log.info(getClass().getSimpleName(), "New StickyStoreOFFHEAP config=" + stickyConfig);
+					store = new StickyStoreOFFHEAP<K, V>(stickyConfig).retain();
+					break;
+				case MMAP:
+					Log.info(getClass().getSimpleName(), "New StickyStoreMMAP config=" + stickyConfig);
+					try {
+						store = new StickyStoreMMAP<K, V>(stickyConfig).retain();
+					} catch (IOException e) {
+						Log.error(getClass().getSimpleName(),
+								"Unable to map sticky file (using OFFHEAP): " + e.toString());
+						store = new StickyStoreOFFHEAP<K, V>(stickyConfig).retain();
+					}
+					break;
+				case RESP:
+					Log.info(getClass().getSimpleName(), "New StickyStoreRESP config=" + stickyConfig);
+					store = new StickyStoreRESP<K, V>(stickyConfig).retain();
+					break;
 				case NULL:
 					Log.info(getClass().getSimpleName(), "New StickyStoreNULL config=" + stickyConfig);
 					store = new StickyStoreNULL<K, V>(stickyConfig).retain();
@@ -63,11 +103,31 @@ public class StickyStoreFactory<K extends InetAddress, V extends InetSocketAddre
 			}
 			if (store != null) {
 				instances.put(stickyConfig.stickyKey, store);
+				if (oldEntries != null) {
+					final int count = store.migrateFrom(oldEntries);
+					Log.info(getClass().getSimpleName(), "Migrated " + count + "/" + oldEntries.size()
+							+ " entries from " + old.getConfig());
+				}
 			}
 		}
 		return store.retain();
 	}
 
+	/**
+	 * Find a released store (old config) with same sticky name
+	 * 
+	 * @param stickyId
+	 * @return
+	 */
+	private StickyStore<K, V> findReleased(final long stickyId) {
+		for (final StickyStore<K, V> store : instances.values()) {
+			if ((store.getConfig().stickyKey.stickyId == stickyId) && store.isReleased()) {
+				return store;
+			}
+		}
+		return null;
+	}
+
 	public synchronized void releaseAll() {
 		for (final Entry<StickyKey, StickyStore<K, V>> e : instances.entrySet()) {
 			e.getValue().release();
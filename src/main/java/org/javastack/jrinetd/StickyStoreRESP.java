@@ -0,0 +1,448 @@
+package org.javastack.jrinetd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javastack.jrinetd.BIOConnection.Connection;
+import org.javastack.jrinetd.StickyStore.StickyStoreMEM.TSEntry;
+
+/**
+ * Shared store in a Redis-compatible server (RESP protocol). Reads are served from a local near-cache
+ * (never block), misses / stale entries are fetched and writes are sent asynchronously in pipelined
+ * batches. First choices are stored only if absent (SET NX), so a node never overwrites the mapping of
+ * other node, it adopts it.
+ */
+public class StickyStoreRESP<K extends InetAddress, V extends InetSocketAddress> extends StickyStore<K, V>
+		implements Runnable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final InetSocketAddress server;
+	private final String prefix;
+	private final Map<K, TSEntry<V>> near;
+	private final Set<K> fetching = new HashSet<K>();
+	private final ArrayBlockingQueue<Command<K, V>> queue = new ArrayBlockingQueue<Command<K, V>>(
+			Constants.STICKY_RESP_QUEUE);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final Thread worker;
+	private volatile boolean running = true;
+
+	StickyStoreRESP(final StickyConfig stickyConfig) {
+		super(stickyConfig);
+		this.server = IOHelper.parseAddress(stickyConfig.server);
+		this.prefix = "jrinetd:" + Long.toHexString(stickyConfig.stickyKey.stickyId) + ":";
+		this.near = new LinkedHashMap<K, TSEntry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 42L;
+
+			protected boolean removeEldestEntry(final Map.Entry<K, TSEntry<V>> eldest) {
+				return size() > stickyConfig.elements;
+			}
+		};
+		this.worker = new Thread(this, "sticky-resp-" + server);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	public String getName() {
+		return getClass().getSimpleName() + "-" + server;
+	}
+
+	@Override
+	public void put(final K key, final V value) {
+		final K k = maskKey(key);
+		boolean renew = false;
+		synchronized (near) {
+			if (value == null) {
+				near.remove(k);
+			} else {
+				final TSEntry<V> e = near.put(k, new TSEntry<V>(value));
+				renew = ((e != null) && value.equals(e.value) && !isExpired(e, System.currentTimeMillis()));
+			}
+		}
+		// Renewal of unchanged value: SET, first choice: SET NX (and GET to adopt value of other node)
+		enqueue(new Command<K, V>(k, value, false, ((value != null) && !renew)));
+	}
+
+	private boolean isExpired(final TSEntry<V> e, final long now) {
+		return ((e.ts + (stickyConfig.ttlsec * 1000L)) < now);
+	}
+
+	@Override
+	public V get(final K key) {
+		final K k = maskKey(key);
+		final long now = System.currentTimeMillis();
+		TSEntry<V> e = null;
+		boolean refresh = false;
+		synchronized (near) {
+			e = near.get(k);
+			if ((e != null) && isExpired(e, now)) {
+				near.remove(k);
+				e = null;
+			}
+			if ((e == null) || ((now - e.ts) > Constants.STICKY_NEAR_TTL)) {
+				refresh = fetching.add(k);
+			}
+		}
+		if (refresh) {
+			enqueue(new Command<K, V>(k, null, true, false));
+		}
+		return ((e == null) ? null : e.value);
+	}
+
+	@Override
+	public List<StickyEntry<K, V>> getEntries() {
+		final ArrayList<StickyEntry<K, V>> l = new ArrayList<StickyEntry<K, V>>();
+		synchronized (near) {
+			for (final Entry<K, TSEntry<V>> e : near.entrySet()) {
+				l.add(new StickyEntry<K, V>(e.getKey(), e.getValue().value, e.getValue().ts));
+			}
+		}
+		return l;
+	}
+
+	@Override
+	void destroy() {
+		running = false;
+		worker.interrupt();
+	}
+
+	/**
+	 * Commands dropped (queue full or server unavailable)
+	 *
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private void enqueue(final Command<K, V> cmd) {
+		if (!queue.offer(cmd)) {
+			onDropped(cmd);
+		}
+	}
+
+	private void onDropped(final Command<K, V> cmd) {
+		if ((dropped.incrementAndGet() % Constants.STICKY_RESP_QUEUE) == 1) {
+			Log.warn(getName(), "Dropped commands: " + dropped.get());
+		}
+		if (cmd.get) {
+			synchronized (near) {
+				fetching.remove(cmd.key);
+			}
+		}
+	}
+
+	/**
+	 * Apply value read from server (GET or GET after SET NX)
+	 * 
+	 * @param cmd
+	 * @param reply
+	 */
+	@SuppressWarnings("unchecked")
+	private void onFetch(final Command<K, V> cmd, final Object reply) {
+		synchronized (near) {
+			if (cmd.get) {
+				fetching.remove(cmd.key);
+			}
+			final TSEntry<V> e = near.get(cmd.key);
+			if ((e != null) && (e.ts > cmd.ts)) {
+				return; // Local put after request (its SET NX / GET resolves it)
+			}
+			if (reply instanceof String) {
+				final String s = (String) reply;
+				final int i = s.lastIndexOf(':');
+				final V value = (V) new InetSocketAddress(s.substring(0, i), //
+						Integer.parseInt(s.substring(i + 1)));
+				if ((e == null) || !value.equals(e.value)) {
+					near.put(cmd.key, new TSEntry<V>(value)); // Shared value wins
+				}
+			} else if (reply == null) {
+				near.remove(cmd.key);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		final ArrayList<Command<K, V>> batch = new ArrayList<Command<K, V>>(Constants.STICKY_RESP_BATCH);
+		Connection conn = null;
+		Log.info(getName(), "Starting store: " + stickyConfig);
+		while (running) {
+			try {
+				final Command<K, V> first = queue.poll(Constants.STICKY_RESP_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, Constants.STICKY_RESP_BATCH - 1);
+				if (conn == null) {
+					conn = BIOConnection.openConnection(server, Constants.STICKY_RESP_TIMEOUT,
+							Constants.STICKY_RESP_TIMEOUT);
+					Log.info(getName(), "Connected");
+				}
+				// Pipeline: write all, then read replies in order
+				for (final Command<K, V> c : batch) {
+					writeCommand(conn.getOutputStream(), c);
+				}
+				conn.flush();
+				for (final Command<K, V> c : batch) {
+					Object reply = readReply(conn.getInputStream());
+					if (c.nx) {
+						reply = readReply(conn.getInputStream()); // GET after SET NX
+					}
+					if (c.get || c.nx) {
+						onFetch(c, reply);
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				Log.error(getName(), "Exception: " + e.toString());
+				IOHelper.closeSilent(conn);
+				conn = null;
+				for (final Command<K, V> c : batch) {
+					onDropped(c);
+				}
+				try {
+					Thread.sleep(Constants.STICKY_RESP_RETRY);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+		IOHelper.closeSilent(conn);
+		Log.info(getName(), "Ending store");
+	}
+
+	private void writeCommand(final OutputStream os, final Command<K, V> c) throws IOException {
+		final String key = prefix + c.key.getHostAddress();
+		if (c.get) {
+			writeArray(os, "GET", key);
+		} else if (c.value == null) {
+			writeArray(os, "DEL", key);
+		} else {
+			final String value = c.value.getAddress().getHostAddress() + ":" + c.value.getPort();
+			final String ttl = String.valueOf(stickyConfig.ttlsec * 1000L);
+			if (c.nx) {
+				writeArray(os, "SET", key, value, "NX", "PX", ttl);
+				writeArray(os, "GET", key);
+			} else {
+				writeArray(os, "SET", key, value, "PX", ttl);
+			}
+		}
+	}
+
+	static void writeArray(final OutputStream os, final String... args) throws IOException {
+		os.write(('*' + String.valueOf(args.length) + "\r\n").getBytes(UTF8));
+		for (final String arg : args) {
+			writeBulk(os, arg);
+		}
+	}
+
+	static void writeBulk(final OutputStream os, final String arg) throws IOException {
+		if (arg == null) {
+			os.write("$-1\r\n".getBytes(UTF8));
+			return;
+		}
+		final byte[] b = arg.getBytes(UTF8);
+		os.write(('$' + String.valueOf(b.length) + "\r\n").getBytes(UTF8));
+		os.write(b);
+		os.write("\r\n".getBytes(UTF8));
+	}
+
+	/**
+	 * Read a RESP value
+	 *
+	 * @param is
+	 * @return String (simple or bulk), Long, List (array), null (nil)
+	 * @throws IOException if error reply or stream closed
+	 */
+	static Object readReply(final InputStream is) throws IOException {
+		final int type = is.read();
+		final String line = readLine(is);
+		switch (type) {
+			case '+':
+				return line;
+			case '-':
+				throw new IOException("Error reply: " + line);
+			case ':':
+				return Long.valueOf(line);
+			case '$': {
+				final int len = Integer.parseInt(line);
+				if (len < 0) {
+					return null;
+				}
+				final byte[] b = new byte[len + 2];
+				if (IOHelper.fullRead(is, b, b.length) != b.length) {
+					throw new IOException("Stream closed");
+				}
+				return new String(b, 0, len, UTF8);
+			}
+			case '*': {
+				final int len = Integer.parseInt(line);
+				if (len < 0) {
+					return null;
+				}
+				final ArrayList<Object> l = new ArrayList<Object>(len);
+				for (int i = 0; i < len; i++) {
+					l.add(readReply(is));
+				}
+				return l;
+			}
+			case -1:
+				throw new IOException("Stream closed");
+		}
+		throw new IOException("Invalid reply type: " + type);
+	}
+
+	private static String readLine(final InputStream is) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = is.read()) != '\n') {
+			if (c < 0) {
+				throw new IOException("Stream closed");
+			}
+			if (c != '\r') {
+				sb.append((char) c);
+			}
+		}
+		return sb.toString();
+	}
+
+	static class Command<K, V> {
+		final K key;
+		final V value;
+		final boolean get;
+		// Set only if absent (first choice)
+		final boolean nx;
+		final long ts;
+
+		Command(final K key, final V value, final boolean get, final boolean nx) {
+			this.key = key;
+			this.value = value;
+			this.get = get;
+			this.nx = nx;
+			this.ts = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Tiny in-process RESP server (GET, SET [NX] [PX], DEL, PING) for tests
+	 */
+	static class LocalServer implements Runnable {
+		private final ServerSocket sock;
+		// Entry timestamp is the expiration
+		private final HashMap<String, TSEntry<String>> data = new HashMap<String, TSEntry<String>>();
+
+		LocalServer() throws IOException {
+			this.sock = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			final Thread t = new Thread(this, "resp-local");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		String getAddress() {
+			return "127.0.0.1:" + sock.getLocalPort();
+		}
+
+		void close() {
+			IOHelper.closeSilent(sock);
+		}
+
+		@Override
+		public void run() {
+			while (!sock.isClosed()) {
+				try {
+					final Socket client = sock.accept();
+					final Thread t = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							handle(client);
+						}
+					}, "resp-local-client");
+					t.setDaemon(true);
+					t.start();
+				} catch (IOException e) {
+					break;
+				}
+			}
+		}
+
+		private void handle(final Socket client) {
+			try {
+				final InputStream is = new BufferedInputStream(client.getInputStream());
+				final OutputStream os = new BufferedOutputStream(client.getOutputStream());
+				while (true) {
+					final Object req = readReply(is);
+					if (!(req instanceof List)) {
+						break;
+					}
+					execute((List<?>) req, os);
+					if (is.available() <= 0) {
+						os.flush();
+					}
+				}
+			} catch (IOException e) {
+				// Closed
+			} finally {
+				IOHelper.closeSilent(client);
+			}
+		}
+
+		private void execute(final List<?> req, final OutputStream os) throws IOException {
+			final String cmd = String.valueOf(req.get(0)).toUpperCase();
+			final long now = System.currentTimeMillis();
+			synchronized (data) {
+				if ("PING".equals(cmd)) {
+					os.write("+PONG\r\n".getBytes(UTF8));
+				} else if ("GET".equals(cmd)) {
+					final TSEntry<String> e = data.get(req.get(1));
+					writeBulk(os, (((e == null) || (e.ts < now)) ? null : e.value));
+				} else if ("SET".equals(cmd)) {
+					long expire = Long.MAX_VALUE;
+					boolean nx = false;
+					for (int i = 3; i < req.size(); i++) {
+						final String opt = String.valueOf(req.get(i));
+						if ("NX".equalsIgnoreCase(opt)) {
+							nx = true;
+						} else if ("PX".equalsIgnoreCase(opt) && ((i + 1) < req.size())) {
+							expire = now + Long.parseLong(String.valueOf(req.get(++i)));
+						}
+					}
+					final TSEntry<String> e = data.get(req.get(1));
+					if (nx && (e != null) && (e.ts >= now)) {
+						writeBulk(os, null);
+						return;
+					}
+					data.put(String.valueOf(req.get(1)), new TSEntry<String>(String.valueOf(req.get(2)), expire));
+					os.write("+OK\r\n".getBytes(UTF8));
+				} else if ("DEL".equals(cmd)) {
+					final boolean removed = (data.remove(req.get(1)) != null);
+					os.write((":" + (removed ? 1 : 0) + "\r\n").getBytes(UTF8));
+				} else {
+					os.write(("-ERR unknown command '" + cmd + "'\r\n").getBytes(UTF8));
+				}
+			}
+		}
+	}
+}